@@ -0,0 +1,47 @@
+package keycloak.kafka;
+
+import org.apache.kafka.clients.producer.ProducerRecord;
+
+import java.util.List;
+
+/**
+ * Storage for the records that could not be sent immediately.
+ * The records are read with {@link #peek(int)} and only removed once they have been sent,
+ * so that they are not lost when sending them fails again.
+ */
+public interface EventSpool {
+
+    /**
+     * Store a record
+     *
+     * @return false if the spool is full and the record has been rejected
+     */
+    boolean offer(ProducerRecord<String, String> record);
+
+    /**
+     * Read the oldest records without removing them
+     *
+     * @param max maximum number of records
+     * @return the oldest records, empty if the spool is empty
+     */
+    List<ProducerRecord<String, String>> peek(int max);
+
+    /**
+     * Remove the oldest records
+     *
+     * @param count number of records to remove
+     */
+    void remove(int count);
+
+    /**
+     * @return true if no record is stored
+     */
+    boolean isEmpty();
+
+    /**
+     * Release the resources of the spool
+     */
+    default void close() {
+        // nothing to release
+    }
+}
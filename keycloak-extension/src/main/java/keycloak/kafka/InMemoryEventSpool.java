@@ -0,0 +1,54 @@
+package keycloak.kafka;
+
+import org.apache.kafka.clients.producer.ProducerRecord;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Spool keeping a bounded number of records in memory, they are lost when Keycloak stops
+ */
+public class InMemoryEventSpool implements EventSpool {
+
+    private final Deque<ProducerRecord<String, String>> records = new ArrayDeque<>();
+
+    private final int capacity;
+
+    public InMemoryEventSpool(int capacity) {
+        this.capacity = capacity;
+    }
+
+    @Override
+    public synchronized boolean offer(ProducerRecord<String, String> record) {
+        if (records.size() >= capacity) {
+            return false;
+        }
+        records.addLast(record);
+        return true;
+    }
+
+    @Override
+    public synchronized List<ProducerRecord<String, String>> peek(int max) {
+        List<ProducerRecord<String, String>> oldest = new ArrayList<>(Math.min(max, records.size()));
+        Iterator<ProducerRecord<String, String>> iterator = records.iterator();
+        while (oldest.size() < max && iterator.hasNext()) {
+            oldest.add(iterator.next());
+        }
+        return oldest;
+    }
+
+    @Override
+    public synchronized void remove(int count) {
+        for (int i = 0; i < count && !records.isEmpty(); i++) {
+            records.removeFirst();
+        }
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        return records.isEmpty();
+    }
+}
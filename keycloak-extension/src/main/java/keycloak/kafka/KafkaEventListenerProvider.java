@@ -1,28 +1,36 @@
 package keycloak.kafka;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.apache.kafka.clients.producer.Producer;
 import org.apache.kafka.clients.producer.ProducerRecord;
-import org.apache.kafka.clients.producer.RecordMetadata;
 import org.jboss.logging.Logger;
 import org.keycloak.events.Event;
 import org.keycloak.events.EventListenerProvider;
 import org.keycloak.events.EventType;
 import org.keycloak.events.admin.AdminEvent;
 
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 
 public class KafkaEventListenerProvider implements EventListenerProvider {
 
     private static final Logger LOG = Logger.getLogger(KafkaEventListenerProvider.class);
 
+    private static final String REPRESENTATION = "representation";
+
+    private static final String CREDENTIALS = "credentials";
+
+    static final int DEFAULT_MAX_IN_FLIGHT = 1000;
+
+    static final long DEFAULT_BLOCK_TIMEOUT_MS = 100;
+
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+
     private final String topicEvents;
 
     private final List<EventType> events;
@@ -31,10 +39,19 @@ public class KafkaEventListenerProvider implements EventListenerProvider {
 
     private final Producer<String, String> producer;
 
+    private final KafkaEventSender sender;
+
     private final ObjectMapper mapper;
 
     public KafkaEventListenerProvider(String bootstrapServers, String clientId, String topicEvents, String[] events,
                                       String topicAdminEvents, Map<String, Object> kafkaProducerProperties, KafkaProducerFactory factory) {
+        this(bootstrapServers, clientId, topicEvents, events, topicAdminEvents, kafkaProducerProperties, factory,
+                DEFAULT_MAX_IN_FLIGHT, OverflowPolicy.BLOCK, DEFAULT_BLOCK_TIMEOUT_MS, null);
+    }
+
+    public KafkaEventListenerProvider(String bootstrapServers, String clientId, String topicEvents, String[] events,
+                                      String topicAdminEvents, Map<String, Object> kafkaProducerProperties, KafkaProducerFactory factory,
+                                      int maxInFlight, OverflowPolicy overflowPolicy, long blockTimeoutMs, EventSpool spool) {
         this.topicEvents = topicEvents;
         this.events = new ArrayList<>();
         this.topicAdminEvents = topicAdminEvents;
@@ -49,28 +66,59 @@ public class KafkaEventListenerProvider implements EventListenerProvider {
         }
 
         producer = factory.createProducer(clientId, bootstrapServers, kafkaProducerProperties);
+        sender = new KafkaEventSender(producer, maxInFlight, overflowPolicy, blockTimeoutMs, spool);
         mapper = new ObjectMapper();
     }
 
-    private void produceEvent(String eventAsString, String topic)
-            throws InterruptedException, ExecutionException, TimeoutException {
-        LOG.debug("Produce to topic: " + topicEvents + " ...");
-        ProducerRecord<String, String> record = new ProducerRecord<>(topic, eventAsString);
-        Future<RecordMetadata> metaData = producer.send(record);
-        RecordMetadata recordMetadata = metaData.get(30, TimeUnit.SECONDS);
-        LOG.debug("Produced to topic: " + recordMetadata.topic());
+    private void produceEvent(String key, String eventAsString, String topic) {
+        LOG.debug("Produce to topic: " + topic + " ...");
+        // the outcome is handled by the sender, Keycloak does not wait for the broker
+        sender.send(new ProducerRecord<>(topic, key, eventAsString));
+    }
+
+    /**
+     * Key of a user event, the events of a user go to the same partition and keep their order
+     */
+    static String eventKey(Event event) {
+        if (event.getUserId() == null) {
+            return null;
+        }
+        return event.getRealmId() + ":" + event.getUserId();
+    }
+
+    /**
+     * Key of an admin event, the resource path of the changed resource.
+     * Sub-resources such as users/{id}/groups/{groupId} are keyed by their parent
+     * so that all changes of a user go to the same partition.
+     */
+    static String adminEventKey(AdminEvent event) {
+        String resourcePath = event.getResourcePath();
+        if (resourcePath == null) {
+            return null;
+        }
+        String[] segments = resourcePath.split("/", 3);
+        String resource = segments.length > 1 ? segments[0] + "/" + segments[1] : resourcePath;
+        return event.getRealmId() + ":" + resource;
+    }
+
+    KafkaEventSender getSender() {
+        return sender;
+    }
+
+    /**
+     * Send the events in flight and release the producer, called when Keycloak shuts down
+     */
+    void shutdown() {
+        sender.close(Duration.ofSeconds(SHUTDOWN_TIMEOUT_SECONDS));
     }
 
     @Override
     public void onEvent(Event event) {
         if (events.contains(event.getType())) {
             try {
-                produceEvent(mapper.writeValueAsString(event), topicEvents);
-            } catch (JsonProcessingException | ExecutionException | TimeoutException e) {
-                LOG.error(e.getMessage(), e);
-            } catch (InterruptedException e) {
+                produceEvent(eventKey(event), mapper.writeValueAsString(event), topicEvents);
+            } catch (JsonProcessingException e) {
                 LOG.error(e.getMessage(), e);
-                Thread.currentThread().interrupt();
             }
         }
     }
@@ -79,16 +127,36 @@ public class KafkaEventListenerProvider implements EventListenerProvider {
     public void onEvent(AdminEvent event, boolean includeRepresentation) {
         if (topicAdminEvents != null) {
             try {
-                produceEvent(mapper.writeValueAsString(event), topicAdminEvents);
-            } catch (JsonProcessingException | ExecutionException | TimeoutException e) {
+                produceEvent(adminEventKey(event), writeAdminEvent(event), topicAdminEvents);
+            } catch (JsonProcessingException e) {
                 LOG.error(e.getMessage(), e);
-            } catch (InterruptedException e) {
-                LOG.error(e.getMessage(), e);
-                Thread.currentThread().interrupt();
             }
         }
     }
 
+    /**
+     * Serialize an admin event with the representation of the changed resource whenever Keycloak provides it,
+     * so that consumers can apply the change without fetching the resource.
+     * Credentials are removed from the representation.
+     */
+    String writeAdminEvent(AdminEvent event) throws JsonProcessingException {
+        ObjectNode eventNode = mapper.valueToTree(event);
+        String representation = event.getRepresentation();
+        if (representation != null) {
+            try {
+                JsonNode representationNode = mapper.readTree(representation);
+                if (representationNode.isObject()) {
+                    ((ObjectNode) representationNode).remove(CREDENTIALS);
+                    eventNode.put(REPRESENTATION, mapper.writeValueAsString(representationNode));
+                }
+            } catch (JsonProcessingException e) {
+                LOG.debug("Dropping representation of admin event " + event.getId() + " that is not JSON");
+                eventNode.remove(REPRESENTATION);
+            }
+        }
+        return mapper.writeValueAsString(eventNode);
+    }
+
     @Override
     public void close() {
         // ignore
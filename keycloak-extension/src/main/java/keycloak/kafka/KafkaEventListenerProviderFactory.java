@@ -7,6 +7,8 @@ import org.keycloak.events.EventListenerProviderFactory;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
 
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.Map;
 
 public class KafkaEventListenerProviderFactory implements EventListenerProviderFactory {
@@ -22,17 +24,42 @@ public class KafkaEventListenerProviderFactory implements EventListenerProviderF
     private String clientId;
     private String[] events;
     private Map<String, Object> kafkaProducerProperties;
+    private int maxInFlight;
+    private OverflowPolicy overflowPolicy;
+    private long blockTimeoutMs;
+    private int spoolCapacity;
+    private String spoolDirectory;
+    private int spoolSegmentBytes;
+    private int spoolMaxSegments;
 
     @Override
     public EventListenerProvider create(KeycloakSession session) {
         if (instance == null) {
+            // with a spool directory the failed sends are spooled whatever the overflow policy
+            EventSpool spool = overflowPolicy == OverflowPolicy.SPOOL || spoolDirectory != null ? createSpool() : null;
             instance = new KafkaEventListenerProvider(bootstrapServers, clientId, topicEvents, events, topicAdminEvents,
-                    kafkaProducerProperties, new KafkaStandardProducerFactory());
+                    kafkaProducerProperties, new KafkaStandardProducerFactory(),
+                    maxInFlight, overflowPolicy, blockTimeoutMs, spool);
         }
 
         return instance;
     }
 
+    /**
+     * Spool in the spool directory if one is configured, the events survive a restart then
+     */
+    private EventSpool createSpool() {
+        if (spoolDirectory == null) {
+            return new InMemoryEventSpool(spoolCapacity);
+        }
+        try {
+            return MappedFileEventSpool.open(Paths.get(spoolDirectory), spoolSegmentBytes, spoolMaxSegments);
+        } catch (IOException e) {
+            LOG.error("Failed to open the spool in " + spoolDirectory + ", spooling in memory", e);
+            return new InMemoryEventSpool(spoolCapacity);
+        }
+    }
+
     @Override
     public String getId() {
         return ID;
@@ -69,9 +96,27 @@ public class KafkaEventListenerProviderFactory implements EventListenerProviderF
             events[0] = "REGISTER";
         }
 
+        maxInFlight = Integer.parseInt(config.get("maxInFlight", getenv("KAFKA_MAX_IN_FLIGHT",
+                String.valueOf(KafkaEventListenerProvider.DEFAULT_MAX_IN_FLIGHT))));
+        blockTimeoutMs = Long.parseLong(config.get("blockTimeoutMs", getenv("KAFKA_BLOCK_TIMEOUT_MS",
+                String.valueOf(KafkaEventListenerProvider.DEFAULT_BLOCK_TIMEOUT_MS))));
+        spoolCapacity = Integer.parseInt(config.get("spoolCapacity", getenv("KAFKA_SPOOL_CAPACITY", "10000")));
+        spoolDirectory = config.get("spoolDirectory", System.getenv("KAFKA_SPOOL_DIRECTORY"));
+        // events survive an outage of Kafka by default when they can be spooled to disk
+        overflowPolicy = OverflowPolicy.valueOf(config.get("overflowPolicy", getenv("KAFKA_OVERFLOW_POLICY",
+                (spoolDirectory != null ? OverflowPolicy.SPOOL : OverflowPolicy.BLOCK).name())).toUpperCase());
+        spoolSegmentBytes = Integer.parseInt(config.get("spoolSegmentBytes", getenv("KAFKA_SPOOL_SEGMENT_BYTES",
+                String.valueOf(16 * 1024 * 1024))));
+        spoolMaxSegments = Integer.parseInt(config.get("spoolMaxSegments", getenv("KAFKA_SPOOL_MAX_SEGMENTS", "8")));
+
         kafkaProducerProperties = KafkaProducerConfig.init(config);
     }
 
+    private static String getenv(String name, String defaultValue) {
+        String value = System.getenv(name);
+        return value != null ? value : defaultValue;
+    }
+
     @Override
     public void postInit(KeycloakSessionFactory arg0) {
         // ignore
@@ -79,6 +124,8 @@ public class KafkaEventListenerProviderFactory implements EventListenerProviderF
 
     @Override
     public void close() {
-        // ignore
+        if (instance != null) {
+            instance.shutdown();
+        }
     }
 }
@@ -0,0 +1,295 @@
+package keycloak.kafka;
+
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.jboss.logging.Logger;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends records without waiting for the broker.
+ * The number of sends in flight is bounded, the overflow policy decides about the records above the bound.
+ * The records below the bound are sent concurrently, the producer keeps the order of the records of a key.
+ * With a spool, the records above the bound and the records whose send failed are spooled
+ * and replayed in order by a background thread once sends succeed again,
+ * while the spool is not empty the new records are spooled behind.
+ * The outcome of each record is counted.
+ */
+public class KafkaEventSender {
+
+    private static final Logger LOG = Logger.getLogger(KafkaEventSender.class);
+
+    static final long DEFAULT_RETRY_BACKOFF_MS = 1000;
+
+    // spooled records sent before waiting for their outcome
+    private static final int REPLAY_BATCH_SIZE = 100;
+
+    private final Producer<String, String> producer;
+
+    private final Semaphore inFlight;
+
+    private final OverflowPolicy overflowPolicy;
+
+    private final long blockTimeoutMs;
+
+    private final EventSpool spool;
+
+    private final long retryBackoffMs;
+
+    // replays the spooled records outside of the producer's I/O thread that runs the callbacks
+    private final ScheduledExecutorService replayExecutor;
+
+    private final AtomicBoolean replayScheduled = new AtomicBoolean();
+
+    // makes checking the spool and enqueuing a record atomic with the reads and removals of the replay
+    private final Object spoolLock = new Object();
+
+    private final AtomicLong sent = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final AtomicLong spooled = new AtomicLong();
+
+    public KafkaEventSender(Producer<String, String> producer, int maxInFlight, OverflowPolicy overflowPolicy,
+                            long blockTimeoutMs, EventSpool spool) {
+        this(producer, maxInFlight, overflowPolicy, blockTimeoutMs, spool, DEFAULT_RETRY_BACKOFF_MS);
+    }
+
+    public KafkaEventSender(Producer<String, String> producer, int maxInFlight, OverflowPolicy overflowPolicy,
+                            long blockTimeoutMs, EventSpool spool, long retryBackoffMs) {
+        if (overflowPolicy == OverflowPolicy.SPOOL && spool == null) {
+            throw new IllegalArgumentException("overflow policy SPOOL requires a spool");
+        }
+        this.producer = producer;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.overflowPolicy = overflowPolicy;
+        this.blockTimeoutMs = blockTimeoutMs;
+        this.spool = spool;
+        this.retryBackoffMs = retryBackoffMs;
+        this.replayExecutor = spool == null ? null : Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "kafka-event-spool");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // records left by the previous run
+        scheduleReplay(0);
+    }
+
+    /**
+     * Send a record unless the maximum number of sends in flight has been reached and the overflow policy rejects it
+     */
+    public void send(ProducerRecord<String, String> record) {
+        boolean acquired;
+        if (spool == null) {
+            acquired = inFlight.tryAcquire();
+        } else {
+            synchronized (spoolLock) {
+                // records wait behind the spooled ones to keep their order
+                acquired = spool.isEmpty() && inFlight.tryAcquire();
+                if (!acquired && (overflowPolicy == OverflowPolicy.SPOOL || !spool.isEmpty())) {
+                    spool(record, 0);
+                    return;
+                }
+            }
+        }
+        if (acquired || overflowPolicy == OverflowPolicy.BLOCK && acquireWithTimeout()) {
+            doSend(record);
+        } else {
+            drop(record);
+        }
+    }
+
+    /**
+     * Wait for the sends in flight and release the producer and the spool
+     */
+    public void close(Duration timeout) {
+        if (replayExecutor != null) {
+            // interrupts a replay waiting for its sends, the records stay in the spool
+            replayExecutor.shutdownNow();
+        }
+        producer.close(timeout);
+        if (spool != null) {
+            spool.close();
+        }
+        LOG.info("Kafka events sent: " + sent.get() + ", failed: " + failed.get()
+                + ", dropped: " + dropped.get() + ", spooled: " + spooled.get());
+    }
+
+    public long getSent() {
+        return sent.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getSpooled() {
+        return spooled.get();
+    }
+
+    private boolean acquireWithTimeout() {
+        try {
+            return inFlight.tryAcquire(blockTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Send a record with an acquired permit, the permit is released when the send has completed
+     */
+    private void doSend(ProducerRecord<String, String> record) {
+        try {
+            producer.send(record, (metadata, exception) -> {
+                inFlight.release();
+                if (exception == null) {
+                    sent.incrementAndGet();
+                    LOG.debug("Produced to topic: " + metadata.topic());
+                    scheduleReplay(0);
+                } else {
+                    failed(record, exception);
+                }
+            });
+        } catch (RuntimeException e) {
+            // the producer rejects records synchronously for example when its buffer is full
+            inFlight.release();
+            failed(record, e);
+        }
+    }
+
+    private void failed(ProducerRecord<String, String> record, Exception exception) {
+        failed.incrementAndGet();
+        LOG.error("Failed to produce to topic: " + record.topic(), exception);
+        if (spool != null) {
+            // the broker is likely unavailable, the replay is retried after the backoff
+            synchronized (spoolLock) {
+                spool(record, retryBackoffMs);
+            }
+        }
+    }
+
+    private void spool(ProducerRecord<String, String> record, long replayDelayMs) {
+        if (spool.offer(record)) {
+            spooled.incrementAndGet();
+            // a send may have completed since the permit was refused
+            scheduleReplay(replayDelayMs);
+        } else {
+            drop(record);
+        }
+    }
+
+    /**
+     * Schedule the replay of the spooled records unless it is already scheduled
+     */
+    private void scheduleReplay(long delayMs) {
+        if (replayExecutor == null || spool.isEmpty() || !replayScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            replayExecutor.schedule(this::replay, delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // closing, the records stay in the spool
+            replayScheduled.set(false);
+        }
+    }
+
+    private void replay() {
+        replayScheduled.set(false);
+        try {
+            if (!replaySpool()) {
+                scheduleReplay(retryBackoffMs);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            LOG.error("Failed to replay the spooled events", e);
+            scheduleReplay(retryBackoffMs);
+        }
+    }
+
+    /**
+     * Send the spooled records in order, each record is removed from the spool once it has been sent.
+     * The sends of a batch are in flight together, so a record following a failed one may be sent twice.
+     *
+     * @return false if a send has failed
+     */
+    private boolean replaySpool() throws InterruptedException {
+        while (true) {
+            List<ProducerRecord<String, String>> records;
+            synchronized (spoolLock) {
+                records = spool.peek(REPLAY_BATCH_SIZE);
+            }
+            if (records.isEmpty()) {
+                return true;
+            }
+            List<Future<RecordMetadata>> results = new ArrayList<>(records.size());
+            for (ProducerRecord<String, String> record : records) {
+                inFlight.acquire();
+                results.add(sendSpooled(record));
+            }
+            int sentRecords = 0;
+            for (Future<RecordMetadata> result : results) {
+                try {
+                    result.get();
+                    sentRecords++;
+                } catch (ExecutionException e) {
+                    LOG.warn("Failed to replay the spooled events: " + e.getCause().getMessage());
+                    break;
+                }
+            }
+            synchronized (spoolLock) {
+                spool.remove(sentRecords);
+            }
+            if (sentRecords < records.size()) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Send a spooled record with an acquired permit, a failed record stays in the spool
+     */
+    private Future<RecordMetadata> sendSpooled(ProducerRecord<String, String> record) {
+        try {
+            return producer.send(record, (metadata, exception) -> {
+                inFlight.release();
+                if (exception == null) {
+                    sent.incrementAndGet();
+                } else {
+                    failed.incrementAndGet();
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.release();
+            failed.incrementAndGet();
+            CompletableFuture<RecordMetadata> result = new CompletableFuture<>();
+            result.completeExceptionally(e);
+            return result;
+        }
+    }
+
+    private void drop(ProducerRecord<String, String> record) {
+        dropped.incrementAndGet();
+        LOG.warn("Dropped event for topic " + record.topic() + ", too many sends in flight or spool full");
+    }
+}
@@ -10,6 +10,8 @@ import java.util.Properties;
 
 public final class KafkaStandardProducerFactory implements KafkaProducerFactory {
 
+    private static final String DEFAULT_MAX_BLOCK_MS = "1000";
+
     @Override
     public Producer<String, String> createProducer(String clientId, String bootstrapServer,
                                                    Map<String, Object> optionalProperties) {
@@ -18,6 +20,8 @@ public final class KafkaStandardProducerFactory implements KafkaProducerFactory
         props.put(ProducerConfig.CLIENT_ID_CONFIG, clientId);
         props.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class.getName());
         props.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, StringSerializer.class.getName());
+        // send() waits for the metadata of the topic and for buffer space on the calling Keycloak thread
+        props.put(ProducerConfig.MAX_BLOCK_MS_CONFIG, DEFAULT_MAX_BLOCK_MS);
 
         props.putAll(optionalProperties);
 
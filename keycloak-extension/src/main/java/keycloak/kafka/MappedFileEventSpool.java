@@ -0,0 +1,469 @@
+package keycloak.kafka;
+
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.utils.ByteBufferUnmapper;
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only spool in memory-mapped segment files of a directory, the records survive a restart of Keycloak.
+ * <p>
+ * A segment starts with a header holding a magic number and the position of the oldest record not yet removed.
+ * Each record is framed by its length and the CRC32 of its content, the first frame that is empty
+ * or does not match its CRC ends the segment, so a record torn by a crash is discarded when the segment is opened.
+ * A new segment is started when the record does not fit into the last one,
+ * segments are deleted once all their records have been removed.
+ * The writes reach the file system when the segment is rotated or the spool closed,
+ * before that they are only lost if the whole machine fails.
+ * <p>
+ * The segment files are mapped ahead, forced and deleted by a background thread,
+ * so the threads offering records only copy them into memory.
+ */
+public class MappedFileEventSpool implements EventSpool {
+
+    private static final Logger LOG = Logger.getLogger(MappedFileEventSpool.class);
+
+    private static final String SUFFIX = ".spool";
+
+    private static final int MAGIC = 0x4b455653;
+
+    // magic number and read position
+    private static final int HEADER_SIZE = 8;
+
+    // length and CRC of the record
+    private static final int FRAME_HEADER_SIZE = 8;
+
+    private static final int NULL_LENGTH = -1;
+
+    private final Path directory;
+
+    private final int segmentSize;
+
+    private final int maxSegments;
+
+    private final Deque<Segment> segments = new ArrayDeque<>();
+
+    // maps, forces and deletes the segment files in order, a segment is unmapped after its last force
+    private final ExecutorService fileExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "kafka-event-spool-files");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // segment mapped ahead for the next rotation
+    private Future<Segment> nextSegment;
+
+    private long nextSequence;
+
+    private boolean closed;
+
+    private MappedFileEventSpool(Path directory, int segmentSize, int maxSegments) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+    }
+
+    /**
+     * Open the spool of a directory with the records left by the previous run
+     *
+     * @param directory   directory of the segment files, created if missing
+     * @param segmentSize size of a segment file in bytes
+     * @param maxSegments maximum number of segment files, the spool rejects records above
+     */
+    public static MappedFileEventSpool open(Path directory, int segmentSize, int maxSegments) throws IOException {
+        if (segmentSize <= HEADER_SIZE + FRAME_HEADER_SIZE || maxSegments < 1) {
+            throw new IllegalArgumentException("segment size " + segmentSize + " or max segments " + maxSegments);
+        }
+        Files.createDirectories(directory);
+        MappedFileEventSpool spool = new MappedFileEventSpool(directory, segmentSize, maxSegments);
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            stream.forEach(files::add);
+        }
+        // the sequence numbers are zero-padded so the names sort in the order of the segments
+        files.sort(null);
+        try {
+            for (Path file : files) {
+                Segment segment = spool.load(file);
+                spool.nextSequence = sequenceOf(file) + 1;
+                if (segment.pending == 0) {
+                    spool.delete(segment);
+                } else {
+                    spool.segments.addLast(segment);
+                }
+            }
+        } catch (IOException e) {
+            spool.fileExecutor.shutdownNow();
+            throw e;
+        }
+        spool.prepareNextSegment();
+        LOG.info("Opened spool in " + directory + " with " + spool.size() + " records");
+        return spool;
+    }
+
+    @Override
+    public synchronized boolean offer(ProducerRecord<String, String> record) {
+        if (closed) {
+            return false;
+        }
+        byte[] content = encode(record);
+        if (FRAME_HEADER_SIZE + content.length > segmentSize - HEADER_SIZE) {
+            LOG.warn("Record of " + content.length + " bytes does not fit into a spool segment");
+            return false;
+        }
+        Segment segment = segments.peekLast();
+        if (segment == null || segment.remaining() < FRAME_HEADER_SIZE + content.length) {
+            segment = rotate();
+            if (segment == null) {
+                return false;
+            }
+        }
+        segment.append(content);
+        return true;
+    }
+
+    @Override
+    public synchronized List<ProducerRecord<String, String>> peek(int max) {
+        List<ProducerRecord<String, String>> records = new ArrayList<>();
+        for (Segment segment : segments) {
+            int position = segment.readPosition;
+            while (records.size() < max && position < segment.writePosition) {
+                int length = segment.buffer.getInt(position);
+                records.add(decode(segment.buffer, position + FRAME_HEADER_SIZE));
+                position += FRAME_HEADER_SIZE + length;
+            }
+            if (records.size() == max) {
+                break;
+            }
+        }
+        return records;
+    }
+
+    @Override
+    public synchronized void remove(int count) {
+        int removed = 0;
+        while (removed < count && !segments.isEmpty()) {
+            Segment segment = segments.peekFirst();
+            while (removed < count && segment.pending > 0) {
+                segment.removeFirst();
+                removed++;
+            }
+            // the last segment is kept for the next records
+            if (segment.pending == 0 && segments.size() > 1) {
+                segments.removeFirst();
+                delete(segment);
+            } else {
+                break;
+            }
+        }
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return number of records stored
+     */
+    public synchronized long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.pending;
+        }
+        return size;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        fileExecutor.shutdown();
+        boolean idle;
+        try {
+            // the pending forces and deletions
+            idle = fileExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            idle = false;
+        }
+        for (Segment segment : segments) {
+            segment.buffer.force();
+            if (idle) {
+                unmap(segment);
+            }
+        }
+        segments.clear();
+        // the segment mapped ahead is empty
+        if (idle && nextSegment.isDone()) {
+            try {
+                deleteNow(nextSegment.get());
+            } catch (ExecutionException e) {
+                // not created
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Start the next segment, the last segment is deleted if all its records have been removed
+     *
+     * @return the new segment or null if the maximum number of segments has been reached
+     */
+    private Segment rotate() {
+        Segment last = segments.peekLast();
+        if (last != null && last.pending == 0) {
+            segments.removeLast();
+            delete(last);
+        }
+        if (segments.size() >= maxSegments) {
+            LOG.warn("Spool in " + directory + " is full with " + segments.size() + " segments");
+            return null;
+        }
+        Segment segment;
+        try {
+            // mapped long ago unless a whole segment has been filled meanwhile
+            segment = nextSegment.get();
+        } catch (ExecutionException e) {
+            LOG.error("Failed to create spool segment", e.getCause());
+            prepareNextSegment();
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        if (last != null && last.pending > 0) {
+            fileExecutor.execute(last.buffer::force);
+        }
+        segments.addLast(segment);
+        prepareNextSegment();
+        return segment;
+    }
+
+    /**
+     * Map the file of the next segment in the background
+     */
+    private void prepareNextSegment() {
+        Path file = directory.resolve(String.format("%020d%s", nextSequence++, SUFFIX));
+        nextSegment = fileExecutor.submit(() -> {
+            Segment segment = new Segment(file, map(file));
+            segment.buffer.putInt(0, MAGIC);
+            segment.buffer.putInt(4, HEADER_SIZE);
+            return segment;
+        });
+    }
+
+    /**
+     * Read the header of a segment and find the end of its valid records
+     */
+    private Segment load(Path file) throws IOException {
+        Segment segment = new Segment(file, map(file));
+        MappedByteBuffer buffer = segment.buffer;
+        if (buffer.getInt(0) != MAGIC) {
+            LOG.warn("Ignoring spool segment " + file + " without header");
+            return segment;
+        }
+        int readPosition = buffer.getInt(4);
+        int position = HEADER_SIZE;
+        int records = 0;
+        int recordsBeforeRead = 0;
+        while (position + FRAME_HEADER_SIZE <= segmentSize) {
+            int length = buffer.getInt(position);
+            if (length == 0) {
+                break;
+            }
+            if (length < 0 || length > segmentSize - position - FRAME_HEADER_SIZE
+                    || buffer.getInt(position + 4) != crc(buffer, position + FRAME_HEADER_SIZE, length)) {
+                LOG.warn("Discarding the corrupted end of spool segment " + file + " at position " + position);
+                break;
+            }
+            if (position < readPosition) {
+                recordsBeforeRead++;
+            }
+            records++;
+            position += FRAME_HEADER_SIZE + length;
+        }
+        segment.writePosition = position;
+        // the read position never points behind the valid records
+        segment.readPosition = Math.max(HEADER_SIZE, Math.min(readPosition, position));
+        segment.pending = segment.readPosition == position ? 0 : records - recordsBeforeRead;
+        // clear a torn record so that the next frame is not appended behind it
+        if (position + 4 <= segmentSize) {
+            buffer.putInt(position, 0);
+        }
+        return segment;
+    }
+
+    private MappedByteBuffer map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            // the mapping stays valid after the channel has been closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+    }
+
+    /**
+     * Delete a segment in the background, after the force of its records if one is pending
+     */
+    private void delete(Segment segment) {
+        fileExecutor.execute(() -> deleteNow(segment));
+    }
+
+    private static void deleteNow(Segment segment) {
+        unmap(segment);
+        try {
+            Files.deleteIfExists(segment.file);
+        } catch (IOException e) {
+            LOG.warn("Failed to delete spool segment " + segment.file, e);
+        }
+    }
+
+    /**
+     * Release the mapping without waiting for the garbage collection, the buffer must not be accessed anymore
+     */
+    private static void unmap(Segment segment) {
+        try {
+            ByteBufferUnmapper.unmap(segment.file.toString(), segment.buffer);
+        } catch (IOException e) {
+            LOG.warn("Failed to unmap spool segment " + segment.file, e);
+        }
+    }
+
+    private static long sequenceOf(Path file) {
+        String name = file.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static byte[] encode(ProducerRecord<String, String> record) {
+        byte[] topic = bytes(record.topic());
+        byte[] key = bytes(record.key());
+        byte[] value = bytes(record.value());
+        ByteBuffer buffer = ByteBuffer.allocate(12 + length(topic) + length(key) + length(value));
+        put(buffer, topic);
+        put(buffer, key);
+        put(buffer, value);
+        return buffer.array();
+    }
+
+    private static ProducerRecord<String, String> decode(ByteBuffer buffer, int position) {
+        ByteBuffer content = buffer.duplicate();
+        content.position(position);
+        String topic = string(content);
+        String key = string(content);
+        String value = string(content);
+        return new ProducerRecord<>(topic, key, value);
+    }
+
+    private static int crc(ByteBuffer buffer, int position, int length) {
+        ByteBuffer content = buffer.duplicate();
+        content.position(position);
+        content.limit(position + length);
+        CRC32 crc = new CRC32();
+        // CRC32.update(ByteBuffer) is not available on Java 8
+        byte[] bytes = new byte[length];
+        content.get(bytes);
+        crc.update(bytes, 0, length);
+        return (int) crc.getValue();
+    }
+
+    private static byte[] bytes(String string) {
+        return string == null ? null : string.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int length(byte[] bytes) {
+        return bytes == null ? 0 : bytes.length;
+    }
+
+    private static void put(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putInt(NULL_LENGTH);
+        } else {
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+    }
+
+    private static String string(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length == NULL_LENGTH) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static final class Segment {
+
+        private final Path file;
+
+        private final MappedByteBuffer buffer;
+
+        // position of the oldest record not removed
+        private int readPosition = HEADER_SIZE;
+
+        // position of the next record
+        private int writePosition = HEADER_SIZE;
+
+        // number of records not removed
+        private int pending;
+
+        private Segment(Path file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        private int remaining() {
+            return buffer.capacity() - writePosition;
+        }
+
+        private void append(byte[] content) {
+            int position = writePosition;
+            ByteBuffer frame = buffer.duplicate();
+            frame.position(position + FRAME_HEADER_SIZE);
+            frame.put(content);
+            // the frame after this one marks the end of the segment
+            if (position + FRAME_HEADER_SIZE + content.length + 4 <= buffer.capacity()) {
+                buffer.putInt(position + FRAME_HEADER_SIZE + content.length, 0);
+            }
+            buffer.putInt(position + 4, crc(buffer, position + FRAME_HEADER_SIZE, content.length));
+            // written last, the record is not visible until it is complete
+            buffer.putInt(position, content.length);
+            writePosition = position + FRAME_HEADER_SIZE + content.length;
+            pending++;
+        }
+
+        private void removeFirst() {
+            int length = buffer.getInt(readPosition);
+            readPosition += FRAME_HEADER_SIZE + length;
+            buffer.putInt(4, readPosition);
+            pending--;
+        }
+    }
+}
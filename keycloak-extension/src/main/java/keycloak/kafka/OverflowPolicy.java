@@ -0,0 +1,18 @@
+package keycloak.kafka;
+
+/**
+ * What to do with an event when the maximum number of sends in flight has been reached.
+ * The policy applies with a spool as well, the spool then only keeps the failed sends
+ * and the events sent while it is not empty, unless the policy is SPOOL.
+ */
+public enum OverflowPolicy {
+
+    // wait for a send to complete, at most for the configured block timeout, then drop the event
+    BLOCK,
+
+    // drop the event
+    DROP,
+
+    // keep the event in the spool and send it once a send has completed
+    SPOOL
+}
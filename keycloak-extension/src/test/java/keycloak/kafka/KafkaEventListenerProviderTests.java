@@ -1,16 +1,20 @@
 package keycloak.kafka;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.kafka.clients.producer.MockProducer;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.keycloak.events.Event;
 import org.keycloak.events.EventType;
 import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.OperationType;
 
 import java.lang.reflect.Field;
 import java.util.HashMap;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class KafkaEventListenerProviderTests {
@@ -68,6 +72,48 @@ class KafkaEventListenerProviderTests {
         assertTrue(producer.history().isEmpty());
     }
 
+    @Test
+    void shouldProduceAdminEventWithRepresentationWithoutCredentials() throws Exception {
+        AdminEvent event = new AdminEvent();
+        event.setResourceTypeAsString("USER");
+        event.setOperationType(OperationType.CREATE);
+        event.setRepresentation("{\"username\":\"vince.power@test.org\",\"credentials\":[{\"value\":\"secret\"}]}");
+        MockProducer<?, ?> producer = getProducerUsingReflection();
+
+        listener.onEvent(event, true);
+
+        assertEquals(1, producer.history().size());
+        JsonNode produced = new ObjectMapper().readTree((String) producer.history().get(0).value());
+        JsonNode representation = new ObjectMapper().readTree(produced.get("representation").asText());
+        assertEquals("vince.power@test.org", representation.get("username").asText());
+        assertFalse(representation.has("credentials"));
+    }
+
+    @Test
+    void shouldKeyEventByRealmAndUser() throws Exception {
+        Event event = new Event();
+        event.setType(EventType.REGISTER);
+        event.setRealmId("TaskManager");
+        event.setUserId("8f4c1f6e");
+        MockProducer<?, ?> producer = getProducerUsingReflection();
+
+        listener.onEvent(event);
+
+        assertEquals("TaskManager:8f4c1f6e", producer.history().get(0).key());
+    }
+
+    @Test
+    void shouldKeyAdminEventOfSubResourceByItsParentResource() throws Exception {
+        AdminEvent event = new AdminEvent();
+        event.setRealmId("TaskManager");
+        event.setResourcePath("users/8f4c1f6e/groups/2b1e");
+        MockProducer<?, ?> producer = getProducerUsingReflection();
+
+        listener.onEvent(event, false);
+
+        assertEquals("TaskManager:users/8f4c1f6e", producer.history().get(0).key());
+    }
+
     private MockProducer<?, ?> getProducerUsingReflection() throws Exception {
         Field producerField = KafkaEventListenerProvider.class.getDeclaredField("producer");
         producerField.setAccessible(true);
@@ -0,0 +1,206 @@
+package keycloak.kafka;
+
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class KafkaEventSenderTests {
+
+    // the sends complete when the test calls completeNext or errorNext
+    private final MockProducer<String, String> producer = (MockProducer<String, String>)
+            new KafkaMockProducerFactory(false).createProducer("", "", new HashMap<>());
+
+    @TempDir
+    Path spoolDirectory;
+
+    @Test
+    void shouldNotWaitForTheBroker() {
+        KafkaEventSender sender = new KafkaEventSender(producer, 10, OverflowPolicy.BLOCK, 100, null);
+
+        sender.send(record("1"));
+
+        assertEquals(1, producer.history().size());
+        assertEquals(0, sender.getSent());
+        producer.completeNext();
+        assertEquals(1, sender.getSent());
+    }
+
+    @Test
+    void shouldCountFailedSends() {
+        KafkaEventSender sender = new KafkaEventSender(producer, 10, OverflowPolicy.BLOCK, 100, null);
+
+        sender.send(record("1"));
+        producer.errorNext(new RuntimeException("broker unavailable"));
+
+        assertEquals(1, sender.getFailed());
+    }
+
+    @Test
+    void shouldDropWhenTooManySendsAreInFlight() {
+        KafkaEventSender sender = new KafkaEventSender(producer, 1, OverflowPolicy.DROP, 100, null);
+
+        sender.send(record("1"));
+        sender.send(record("2"));
+
+        assertEquals(1, producer.history().size());
+        assertEquals(1, sender.getDropped());
+        producer.completeNext();
+        sender.send(record("3"));
+        assertEquals(2, producer.history().size());
+    }
+
+    @Test
+    void shouldDropAfterTheBlockTimeout() {
+        KafkaEventSender sender = new KafkaEventSender(producer, 1, OverflowPolicy.BLOCK, 10, null);
+
+        sender.send(record("1"));
+        long start = System.nanoTime();
+        sender.send(record("2"));
+
+        assertTrue(System.nanoTime() - start >= 10_000_000L);
+        assertEquals(1, sender.getDropped());
+    }
+
+    @Test
+    void shouldApplyTheOverflowPolicyBeforeSpoolingAndSpoolOnlyFailedSends() throws Exception {
+        KafkaEventSender sender = new KafkaEventSender(producer, 1, OverflowPolicy.DROP, 100,
+                new InMemoryEventSpool(10), 10);
+
+        sender.send(record("1"));
+        sender.send(record("2"));
+        assertEquals(1, sender.getDropped());
+        assertEquals(0, sender.getSpooled());
+        producer.errorNext(new TimeoutException("broker unavailable"));
+        assertEquals(1, sender.getSpooled());
+        // waits behind the spooled record although a permit is available
+        sender.send(record("3"));
+        assertEquals(2, sender.getSpooled());
+        awaitHistorySize(2);
+        producer.completeNext();
+        awaitHistorySize(3);
+        producer.completeNext();
+
+        awaitSent(sender, 2);
+        assertEquals(Arrays.asList("1", "1", "3"), values());
+    }
+
+    @Test
+    void shouldSendSpooledRecordsInOrderOnceSendsHaveCompleted() throws Exception {
+        KafkaEventSender sender = new KafkaEventSender(producer, 1, OverflowPolicy.SPOOL, 100,
+                new InMemoryEventSpool(10));
+
+        sender.send(record("1"));
+        sender.send(record("2"));
+        sender.send(record("3"));
+        assertEquals(2, sender.getSpooled());
+        for (int i = 0; i < 3; i++) {
+            awaitHistorySize(i + 1);
+            producer.completeNext();
+        }
+
+        assertEquals(3, sender.getSent());
+        assertEquals(Arrays.asList("1", "2", "3"), values());
+    }
+
+    @Test
+    void shouldSendConcurrentlyWithASpoolWhileKafkaIsAvailable() {
+        KafkaEventSender sender = new KafkaEventSender(producer, 10, OverflowPolicy.SPOOL, 100,
+                new InMemoryEventSpool(10));
+
+        sender.send(record("1"));
+        sender.send(record("2"));
+        sender.send(record("3"));
+
+        assertEquals(3, producer.history().size());
+        assertEquals(0, sender.getSpooled());
+        producer.completeNext();
+        producer.completeNext();
+        producer.completeNext();
+        assertEquals(3, sender.getSent());
+    }
+
+    @Test
+    void shouldSpoolFailedSendsAndReplayThemOnceKafkaHasRecovered() throws Exception {
+        KafkaEventSender sender = new KafkaEventSender(producer, 10, OverflowPolicy.SPOOL, 100,
+                new InMemoryEventSpool(10), 10);
+
+        sender.send(record("1"));
+        producer.errorNext(new TimeoutException("broker unavailable"));
+        sender.send(record("2"));
+        assertEquals(2, sender.getSpooled());
+        // the first replay fails for the first record, both records stay in the spool
+        awaitHistorySize(3);
+        producer.errorNext(new TimeoutException("broker unavailable"));
+        producer.completeNext();
+        awaitHistorySize(5);
+        producer.completeNext();
+        producer.completeNext();
+
+        // the second record is sent again to keep the order
+        awaitSent(sender, 3);
+        assertEquals(Arrays.asList("1", "1", "2", "1", "2"), values());
+    }
+
+    @Test
+    void shouldReplayTheSpoolOfThePreviousRunAtStartup() throws Exception {
+        MappedFileEventSpool previousRun = MappedFileEventSpool.open(spoolDirectory, 4096, 2);
+        previousRun.offer(record("1"));
+        previousRun.offer(record("2"));
+        previousRun.close();
+
+        MappedFileEventSpool spool = MappedFileEventSpool.open(spoolDirectory, 4096, 2);
+        KafkaEventSender sender = new KafkaEventSender(producer, 10, OverflowPolicy.SPOOL, 100, spool, 10);
+        sender.send(record("3"));
+        // the third record is replayed with the first two or after them
+        for (int completed = 0; completed < 3; completed++) {
+            for (int i = 0; i < 100 && producer.history().size() <= completed; i++) {
+                Thread.sleep(10);
+            }
+            producer.completeNext();
+        }
+
+        awaitSent(sender, 3);
+        assertEquals(Arrays.asList("1", "2", "3"), values());
+        // the records are removed once the replay has seen all of them sent
+        for (int i = 0; i < 100 && !spool.isEmpty(); i++) {
+            Thread.sleep(10);
+        }
+        sender.close(Duration.ofSeconds(1));
+        assertTrue(MappedFileEventSpool.open(spoolDirectory, 4096, 2).isEmpty());
+    }
+
+    private void awaitSent(KafkaEventSender sender, long count) throws InterruptedException {
+        for (int i = 0; i < 100 && sender.getSent() < count; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, sender.getSent());
+    }
+
+    private void awaitHistorySize(int size) throws InterruptedException {
+        // the spooled records are sent by the spool thread
+        for (int i = 0; i < 100 && producer.history().size() < size; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(size, producer.history().size());
+    }
+
+    private List<String> values() {
+        return producer.history().stream().map(ProducerRecord::value).collect(Collectors.toList());
+    }
+
+    private ProducerRecord<String, String> record(String value) {
+        return new ProducerRecord<>("events", value);
+    }
+}
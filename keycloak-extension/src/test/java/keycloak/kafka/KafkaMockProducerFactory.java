@@ -8,10 +8,24 @@ import java.util.Map;
 
 class KafkaMockProducerFactory implements KafkaProducerFactory {
 
+    private final boolean autoComplete;
+
+    KafkaMockProducerFactory() {
+        this(true);
+    }
+
+    /**
+     * @param autoComplete false to complete the sends with {@link MockProducer#completeNext()}
+     *                     or {@link MockProducer#errorNext(RuntimeException)}
+     */
+    KafkaMockProducerFactory(boolean autoComplete) {
+        this.autoComplete = autoComplete;
+    }
+
     @Override
     public Producer<String, String> createProducer(String clientId, String bootstrapServer,
                                                    Map<String, Object> optionalProperties) {
-        return new MockProducer<>(true, new StringSerializer(), new StringSerializer());
+        return new MockProducer<>(autoComplete, new StringSerializer(), new StringSerializer());
     }
 
 }
@@ -0,0 +1,132 @@
+package keycloak.kafka;
+
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MappedFileEventSpoolTests {
+
+    private static final int SEGMENT_SIZE = 256;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void shouldReturnTheRecordsInOrderUntilTheyAreRemoved() throws Exception {
+        MappedFileEventSpool spool = MappedFileEventSpool.open(directory, SEGMENT_SIZE, 4);
+
+        spool.offer(new ProducerRecord<>("events", "TaskManager:1", "1"));
+        spool.offer(new ProducerRecord<>("admin-events", null, "2"));
+        spool.offer(new ProducerRecord<>("events", "TaskManager:3", "3"));
+
+        List<ProducerRecord<String, String>> records = spool.peek(2);
+        assertEquals(Arrays.asList("1", "2"), values(records));
+        assertEquals("TaskManager:1", records.get(0).key());
+        assertNull(records.get(1).key());
+        assertEquals("admin-events", records.get(1).topic());
+        spool.remove(1);
+        assertEquals(Arrays.asList("2", "3"), values(spool.peek(10)));
+        spool.remove(2);
+        assertTrue(spool.isEmpty());
+    }
+
+    @Test
+    void shouldKeepTheRecordsNotRemovedAcrossRestarts() throws Exception {
+        MappedFileEventSpool spool = MappedFileEventSpool.open(directory, SEGMENT_SIZE, 4);
+        spool.offer(record("1"));
+        spool.offer(record("2"));
+        spool.remove(1);
+        spool.close();
+
+        spool = MappedFileEventSpool.open(directory, SEGMENT_SIZE, 4);
+        spool.offer(record("3"));
+
+        assertEquals(Arrays.asList("2", "3"), values(spool.peek(10)));
+    }
+
+    @Test
+    void shouldRotateSegmentsAndDeleteTheRemovedOnes() throws Exception {
+        MappedFileEventSpool spool = MappedFileEventSpool.open(directory, SEGMENT_SIZE, 4);
+
+        for (int i = 0; i < 20; i++) {
+            assertTrue(spool.offer(record(String.valueOf(i))));
+        }
+        long segments = segmentCount();
+        assertTrue(segments > 1);
+        spool.remove(19);
+        assertEquals(Arrays.asList("19"), values(spool.peek(10)));
+        // waits for the deletions in the background
+        spool.close();
+
+        assertEquals(1, segmentCount());
+    }
+
+    @Test
+    void shouldRejectRecordsAboveTheMaximumNumberOfSegments() throws Exception {
+        MappedFileEventSpool spool = MappedFileEventSpool.open(directory, SEGMENT_SIZE, 1);
+
+        int accepted = 0;
+        while (spool.offer(record(String.valueOf(accepted)))) {
+            accepted++;
+        }
+        spool.remove(1);
+
+        assertTrue(accepted > 1);
+        assertEquals(accepted - 1, spool.peek(100).size());
+        assertFalse(spool.offer(record(new String(new char[SEGMENT_SIZE]))));
+    }
+
+    @Test
+    void shouldDiscardACorruptedRecordAndTheRecordsAfterIt() throws Exception {
+        MappedFileEventSpool spool = MappedFileEventSpool.open(directory, SEGMENT_SIZE, 4);
+        spool.offer(record("1"));
+        spool.offer(record("2"));
+        spool.offer(record("3"));
+        spool.close();
+        // last byte of the value of the second record, behind the segment header and the first record
+        int firstRecordSize = 8 + 12 + "events".length() + "1".length();
+        corrupt(8 + firstRecordSize + firstRecordSize - 1);
+
+        spool = MappedFileEventSpool.open(directory, SEGMENT_SIZE, 4);
+        spool.offer(record("4"));
+
+        assertEquals(Arrays.asList("1", "4"), values(spool.peek(10)));
+    }
+
+    private void corrupt(int position) throws IOException {
+        try (Stream<Path> files = Files.list(directory);
+             FileChannel channel = FileChannel.open(files.findFirst().get(), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{'x'}), position);
+        }
+    }
+
+    private long segmentCount() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+
+    private List<String> values(List<ProducerRecord<String, String>> records) {
+        return records.stream().map(ProducerRecord::value).collect(Collectors.toList());
+    }
+
+    private ProducerRecord<String, String> record(String value) {
+        return new ProducerRecord<>("events", value);
+    }
+}
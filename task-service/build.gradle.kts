@@ -35,7 +35,7 @@ dependencies {
     implementation("org.jetbrains.kotlin:kotlin-stdlib-jdk8")
     implementation("org.jetbrains.kotlinx:kotlinx-coroutines-reactor")
     implementation("org.liquibase:liquibase-core:4.11.0")
-    implementation("org.keycloak:keycloak-admin-client:18.0.0")
+    implementation("org.keycloak:keycloak-core:18.0.0")
     runtimeOnly("org.postgresql:postgresql")
     runtimeOnly("io.r2dbc:r2dbc-postgresql")
     testImplementation("org.springframework.boot:spring-boot-starter-test") {
@@ -45,6 +45,7 @@ dependencies {
     testImplementation("org.springframework.security:spring-security-test")
     testImplementation("org.springframework.boot:spring-boot-starter-oauth2-client")
     testImplementation("io.projectreactor:reactor-test")
+    testImplementation("org.keycloak:keycloak-admin-client:18.0.0")
     testImplementation("com.ninja-squad:springmockk:3.1.1")
     testImplementation("io.mockk:mockk:1.12.4")
     testRuntimeOnly("com.h2database:h2")
@@ -58,8 +59,20 @@ tasks.withType<KotlinCompile> {
     }
 }
 
-tasks.withType<Test> {
-    useJUnitPlatform()
+tasks.test {
+    useJUnitPlatform {
+        excludeTags("benchmark")
+    }
+}
+
+tasks.register<Test>("benchmark") {
+    description = "Runs the allocation benchmarks."
+    group = "verification"
+    testClassesDirs = sourceSets["test"].output.classesDirs
+    classpath = sourceSets["test"].runtimeClasspath
+    useJUnitPlatform {
+        includeTags("benchmark")
+    }
 }
 
 apply(plugin = "com.palantir.docker")
@@ -0,0 +1,70 @@
+package org.taskmanager.task.api.controller
+
+import org.springframework.data.domain.Page
+import org.springframework.http.CacheControl
+import org.springframework.http.HttpStatus
+import org.springframework.http.ResponseEntity
+import org.springframework.web.server.ServerWebExchange
+import org.taskmanager.task.exception.EntityTagMismatchException
+import org.taskmanager.task.exception.InvalidEntityTagException
+import java.math.BigInteger
+import java.security.MessageDigest
+
+/**
+ * Entity tags of the resources. A single resource has the strong tag "id.version",
+ * a page has a weak tag derived from its elements and its total number of elements.
+ */
+object EntityTags {
+
+    private val STRONG = Regex("\"(\\d+)\\.(\\d+)\"")
+    private val VERSION = Regex("\\d+")
+
+    fun strong(id: Long, version: Long) = "\"$id.$version\""
+
+    fun weak(stamp: String) = "W/\"$stamp\""
+
+    /**
+     * Get the weak tag of a page without querying more than the page itself,
+     * it changes whenever a returned element or the total number of elements changes
+     * @param page page whose elements are data classes, their string representation includes all their fields
+     * @return total number of elements and a digest of the elements
+     */
+    fun weak(page: Page<*>): String {
+        val digest = MessageDigest.getInstance("SHA-256").digest(page.content.toString().toByteArray())
+        return weak("${page.totalElements}.${BigInteger(1, digest.copyOf(8)).toString(16)}")
+    }
+
+    /**
+     * Get the expected version of a resource from an If-Match header.
+     * If-Match uses the strong comparison, so weak tags and tags of other resources never match.
+     * @param ifMatch strong entity tag of the resource, a plain version number or "*"
+     * @param id id of the resource
+     * @return the expected version or null if any version matches
+     * @throws EntityTagMismatchException if the entity tag cannot match the resource
+     */
+    fun versionOf(ifMatch: String?, id: Long): Long? {
+        val value = ifMatch?.trim()
+        if (value.isNullOrEmpty() || value == "*") return null
+        if (VERSION.matches(value)) return value.toLong()
+        if (value.startsWith("W/")) throw EntityTagMismatchException(value)
+        val (tagId, version) = STRONG.matchEntire(value)?.destructured ?: throw InvalidEntityTagException(value)
+        if (tagId.toLong() != id) throw EntityTagMismatchException(value)
+        return version.toLong()
+    }
+
+    /**
+     * Answer a conditional GET request: the body is only loaded if the If-None-Match header of the request
+     * does not match the entity tag. Responses must be revalidated by private caches only.
+     * @param exchange current exchange
+     * @param eTag current entity tag of the resource
+     * @param body loads the body of the response
+     * @return the response with the entity tag and the body or an empty response with status 304
+     */
+    suspend fun <T> conditionalGet(exchange: ServerWebExchange, eTag: String, body: suspend () -> T): ResponseEntity<T> {
+        val cacheControl = CacheControl.noCache().cachePrivate()
+        if (exchange.checkNotModified(eTag)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag).cacheControl(cacheControl).build()
+        }
+        return ResponseEntity.ok().eTag(eTag).cacheControl(cacheControl).body(body())
+    }
+}
@@ -1,22 +1,45 @@
 package org.taskmanager.task.api.controller
 
+import com.fasterxml.jackson.databind.ser.impl.SimpleBeanPropertyFilter
+import com.fasterxml.jackson.databind.ser.impl.SimpleFilterProvider
 import io.swagger.v3.oas.annotations.Operation
 import io.swagger.v3.oas.annotations.responses.ApiResponse
 import io.swagger.v3.oas.annotations.security.SecurityRequirement
-import org.springframework.data.domain.Page
+import kotlinx.coroutines.flow.Flow
 import org.springframework.data.domain.Pageable
 import org.springframework.data.domain.Sort
 import org.springframework.data.web.PageableDefault
+import org.springframework.format.annotation.DateTimeFormat
+import org.springframework.format.annotation.DateTimeFormat.ISO.DATE_TIME
 import org.springframework.http.HttpHeaders
 import org.springframework.http.HttpStatus
 import org.springframework.http.MediaType.APPLICATION_JSON_VALUE
+import org.springframework.http.MediaType.APPLICATION_NDJSON_VALUE
+import org.springframework.http.MediaType.TEXT_EVENT_STREAM_VALUE
+import org.springframework.http.ResponseEntity
+import org.springframework.http.codec.ServerSentEvent
+import org.springframework.http.converter.json.MappingJacksonValue
 import org.springframework.security.access.prepost.PreAuthorize
 import org.springframework.web.bind.annotation.*
+import org.springframework.web.server.ServerWebExchange
+import org.taskmanager.task.api.dto.CursorPage
+import org.taskmanager.task.api.dto.ItemBatchResultDto
+import org.taskmanager.task.api.dto.ItemChangesDto
 import org.taskmanager.task.api.dto.ItemCreateDto
+import org.taskmanager.task.api.dto.ItemFieldsDto
+import org.taskmanager.task.api.dto.ItemFilterDto
 import org.taskmanager.task.api.dto.ItemPatchDto
 import org.taskmanager.task.api.dto.ItemDto
+import org.taskmanager.task.api.dto.ItemEventDto
 import org.taskmanager.task.api.dto.ItemUpdateDto
+import org.taskmanager.task.mapper.toItemFields
+import org.taskmanager.task.model.ItemField
+import org.taskmanager.task.model.ItemStatus
+import org.taskmanager.task.model.TagMatch
 import org.taskmanager.task.service.ItemService
+import reactor.core.publisher.Flux
+import java.time.Duration
+import java.time.LocalDateTime
 import javax.validation.Valid
 
 @RestController
@@ -25,8 +48,16 @@ class ItemController(private val itemService: ItemService) {
 
     @Operation(
         summary = "Get page of items",
+        description = "All filter parameters are optional. 'status' and 'tagId' may be repeated, " +
+                "'tagMatch' selects whether an item needs ANY or ALL of the tags. " +
+                "The date ranges include the 'From' and exclude the 'To' timestamp. " +
+                "'fields' selects the properties of the items and 'expand' the relations (tags, assignee) to be loaded, " +
+                "by default all properties and relations are returned. " +
+                "The weak ETag of the page changes whenever a returned item or relation or the total number of items changes",
         responses = [
             ApiResponse(responseCode = "200", description = "got page of items"),
+            ApiResponse(responseCode = "304", description = "page not modified since the ETag in If-None-Match"),
+            ApiResponse(responseCode = "400", description = "bad request parameters"),
             ApiResponse(responseCode = "403", description = "insufficient privileges")
         ],
         security = [SecurityRequirement(name = "bearerAuth")]
@@ -34,16 +65,143 @@ class ItemController(private val itemService: ItemService) {
     @GetMapping(produces = [APPLICATION_JSON_VALUE])
     @PreAuthorize("hasRole('ROLE_USER')")
     suspend fun getAllItems(
+        @RequestParam(name = "status", required = false) statuses: Set<ItemStatus>?,
+        @RequestParam(required = false) assigneeUserId: String?,
+        @RequestParam(name = "tagId", required = false) tagIds: Set<Long>?,
+        @RequestParam(defaultValue = "ANY") tagMatch: TagMatch,
+        @RequestParam(required = false) @DateTimeFormat(iso = DATE_TIME) createdFrom: LocalDateTime?,
+        @RequestParam(required = false) @DateTimeFormat(iso = DATE_TIME) createdTo: LocalDateTime?,
+        @RequestParam(required = false) @DateTimeFormat(iso = DATE_TIME) modifiedFrom: LocalDateTime?,
+        @RequestParam(required = false) @DateTimeFormat(iso = DATE_TIME) modifiedTo: LocalDateTime?,
+        @RequestParam(required = false) fields: Set<String>?,
+        @RequestParam(required = false) expand: Set<String>?,
         @PageableDefault(value = 100, sort = ["lastModifiedDate", "description"], direction = Sort.Direction.ASC)
-        pageable: Pageable
-    ): Page<ItemDto> {
-        return itemService.findAllBy(pageable)
+        pageable: Pageable,
+        exchange: ServerWebExchange
+    ): ResponseEntity<MappingJacksonValue> {
+        val itemFilterDto = ItemFilterDto(
+            statuses = statuses ?: setOf(),
+            assigneeUserId = assigneeUserId,
+            tagIds = tagIds ?: setOf(),
+            tagMatch = tagMatch,
+            createdFrom = createdFrom,
+            createdTo = createdTo,
+            modifiedFrom = modifiedFrom,
+            modifiedTo = modifiedTo
+        )
+        val itemFields = ItemFieldsDto(fields, expand).toItemFields(ItemField.ALL)
+        val page = itemService.findAllBy(itemFilterDto, pageable, itemFields)
+        val sparseFields = itemFields.takeIf { fields != null || expand != null }
+        return EntityTags.conditionalGet(exchange, EntityTags.weak(page)) { withFields(page, sparseFields) }
+    }
+
+    @Operation(
+        summary = "Get page of items using a cursor",
+        description = "Keyset pagination: pass an empty 'after' parameter for the first page " +
+                "and the 'nextCursor' of the previous page for the following pages",
+        responses = [
+            ApiResponse(responseCode = "200", description = "got page of items"),
+            ApiResponse(responseCode = "400", description = "invalid cursor"),
+            ApiResponse(responseCode = "403", description = "insufficient privileges")],
+        security = [SecurityRequirement(name = "bearerAuth")]
+    )
+    @GetMapping(produces = [APPLICATION_JSON_VALUE], params = ["after"])
+    @PreAuthorize("hasRole('ROLE_USER')")
+    suspend fun getAllItemsAfter(
+        @RequestParam after: String,
+        @RequestParam(defaultValue = "100") size: Int
+    ): CursorPage<ItemDto> {
+        return itemService.findAllAfter(after, size)
+    }
+
+    @Operation(
+        summary = "Search items by description",
+        description = "Returns the items whose description contains all words of the query ordered by relevance. " +
+                "Pass the 'nextCursor' of the previous page as 'after' parameter to get the following pages",
+        responses = [
+            ApiResponse(responseCode = "200", description = "got page of matching items"),
+            ApiResponse(responseCode = "400", description = "invalid cursor"),
+            ApiResponse(responseCode = "403", description = "insufficient privileges")],
+        security = [SecurityRequirement(name = "bearerAuth")]
+    )
+    @GetMapping("/search", produces = [APPLICATION_JSON_VALUE])
+    @PreAuthorize("hasRole('ROLE_USER')")
+    suspend fun searchItems(
+        @RequestParam q: String,
+        @RequestParam(required = false) after: String?,
+        @RequestParam(defaultValue = "100") size: Int
+    ): CursorPage<ItemDto> {
+        return itemService.search(q, after, size)
+    }
+
+    @Operation(
+        summary = "Get the items changed since a cursor",
+        description = "Delta synchronization: omit the 'since' parameter to get all items " +
+                "and pass the 'nextCursor' of the previous response to get the items changed or deleted since then",
+        responses = [
+            ApiResponse(responseCode = "200", description = "got changed and deleted items"),
+            ApiResponse(responseCode = "400", description = "invalid cursor"),
+            ApiResponse(responseCode = "410", description = "cursor older than the tombstone retention"),
+            ApiResponse(responseCode = "403", description = "insufficient privileges")],
+        security = [SecurityRequirement(name = "bearerAuth")]
+    )
+    @GetMapping("/changes", produces = [APPLICATION_JSON_VALUE])
+    @PreAuthorize("hasRole('ROLE_USER')")
+    suspend fun getItemChanges(
+        @RequestParam(required = false) since: String?,
+        @RequestParam(defaultValue = "100") size: Int
+    ): ItemChangesDto {
+        return itemService.findChangesSince(since, size)
+    }
+
+    @Operation(
+        summary = "Export all items",
+        description = "Streams all items ordered by id as newline delimited JSON",
+        responses = [
+            ApiResponse(responseCode = "200", description = "stream of all items"),
+            ApiResponse(responseCode = "403", description = "insufficient privileges")],
+        security = [SecurityRequirement(name = "bearerAuth")]
+    )
+    @GetMapping("/export", produces = [APPLICATION_NDJSON_VALUE])
+    @PreAuthorize("hasRole('ROLE_USER')")
+    fun exportItems(): Flow<ItemDto> {
+        return itemService.exportAll()
+    }
+
+    @Operation(
+        summary = "Stream the changes of items",
+        description = "Server-sent events of created, updated and deleted items. " +
+                "A reconnecting client gets the events after its Last-Event-ID as long as they are still buffered, " +
+                "otherwise a RESET event tells it to reload the items. " +
+                "Events of another instance are not replayed",
+        responses = [
+            ApiResponse(responseCode = "200", description = "stream of item events"),
+            ApiResponse(responseCode = "403", description = "insufficient privileges")],
+        security = [SecurityRequirement(name = "bearerAuth")]
+    )
+    @GetMapping("/stream", produces = [TEXT_EVENT_STREAM_VALUE])
+    @PreAuthorize("hasRole('ROLE_USER')")
+    fun streamItems(
+        @RequestHeader(value = LAST_EVENT_ID, required = false) lastEventId: String?
+    ): Flux<ServerSentEvent<ItemEventDto>> {
+        val events = itemService.streamEvents(lastEventId).map {
+            ServerSentEvent.builder(it).id(it.id!!).event(it.type!!.name).build()
+        }
+        // keeps idle connections open through proxies
+        val heartbeats = Flux.interval(HEARTBEAT_INTERVAL).map {
+            ServerSentEvent.builder<ItemEventDto>().comment("heartbeat").build()
+        }
+        return Flux.merge(events, heartbeats)
     }
 
     @Operation(
         summary = "Get a specific item",
+        description = "'fields' selects the properties of the item and 'expand' the relations (tags, assignee) " +
+                "to be loaded, by default all properties without relations are returned. " +
+                "Items without expanded relations have the strong ETag \"id.version\"",
         responses = [
             ApiResponse(responseCode = "200", description = "got item by id"),
+            ApiResponse(responseCode = "304", description = "item not modified since the ETag in If-None-Match"),
             ApiResponse(responseCode = "400", description = "bad parameters"),
             ApiResponse(responseCode = "403", description = "insufficient privileges"),
             ApiResponse(responseCode = "404", description = "item not found")],
@@ -51,8 +209,23 @@ class ItemController(private val itemService: ItemService) {
     )
     @GetMapping("/{id}", produces = [APPLICATION_JSON_VALUE])
     @PreAuthorize("hasRole('ROLE_USER')")
-    suspend fun getItemById(@PathVariable id: Long): ItemDto {
-        return itemService.getById(id)
+    suspend fun getItemById(
+        @PathVariable id: Long,
+        @RequestParam(required = false) fields: Set<String>?,
+        @RequestParam(required = false) expand: Set<String>?,
+        exchange: ServerWebExchange
+    ): ResponseEntity<MappingJacksonValue> {
+        val itemFields = ItemFieldsDto(fields, expand).toItemFields(ItemField.COLUMNS)
+        val loadItem: suspend () -> MappingJacksonValue = {
+            if (fields == null && expand == null) {
+                withFields(itemService.getById(id), null)
+            } else {
+                withFields(itemService.getById(id, itemFields), itemFields)
+            }
+        }
+        // the version of an item does not cover changes of its relations
+        if (itemFields.any { it.relation }) return ResponseEntity.ok(loadItem())
+        return EntityTags.conditionalGet(exchange, EntityTags.strong(id, itemService.getVersion(id)), loadItem)
     }
 
     @Operation(
@@ -69,23 +242,39 @@ class ItemController(private val itemService: ItemService) {
         return itemService.create(itemCreateDto)
     }
 
+    @Operation(
+        summary = "Create a batch of items",
+        description = "Valid elements are created in one transaction, invalid ones are rejected individually",
+        responses = [
+            ApiResponse(responseCode = "200", description = "one result per element of the batch"),
+            ApiResponse(responseCode = "400", description = "too many elements in the batch"),
+            ApiResponse(responseCode = "403", description = "insufficient privileges")],
+        security = [SecurityRequirement(name = "bearerAuth")]
+    )
+    @PostMapping("/batch", produces = [APPLICATION_JSON_VALUE])
+    @PreAuthorize("hasRole('ROLE_USER')")
+    suspend fun createItems(@RequestBody itemCreateDtos: List<ItemCreateDto>): List<ItemBatchResultDto> {
+        return itemService.createAll(itemCreateDtos)
+    }
+
     @Operation(
         summary = "Update an item",
         responses = [
             ApiResponse(responseCode = "200", description = "item updated"),
             ApiResponse(responseCode = "400", description = "bad request parameters"),
             ApiResponse(responseCode = "403", description = "insufficient privileges"),
-            ApiResponse(responseCode = "404", description = "item not found")],
+            ApiResponse(responseCode = "404", description = "item not found"),
+            ApiResponse(responseCode = "412", description = "If-Match entity tag does not match the item")],
         security = [SecurityRequirement(name = "bearerAuth")]
     )
     @PutMapping("/{id}", produces = [APPLICATION_JSON_VALUE])
     @PreAuthorize("hasRole('ROLE_USER')")
     suspend fun updateItem(
         @PathVariable id: Long,
-        @RequestHeader(value = HttpHeaders.IF_MATCH) version: Long?,
+        @RequestHeader(value = HttpHeaders.IF_MATCH) ifMatch: String?,
         @Valid @RequestBody itemUpdateDto: ItemUpdateDto
     ): ItemDto {
-        return itemService.update(id, version, itemUpdateDto)
+        return itemService.update(id, EntityTags.versionOf(ifMatch, id), itemUpdateDto)
     }
 
     @Operation(
@@ -94,17 +283,18 @@ class ItemController(private val itemService: ItemService) {
             ApiResponse(responseCode = "200", description = "item patched"),
             ApiResponse(responseCode = "400", description = "bad request parameters"),
             ApiResponse(responseCode = "403", description = "insufficient privileges"),
-            ApiResponse(responseCode = "404", description = "item not found")],
+            ApiResponse(responseCode = "404", description = "item not found"),
+            ApiResponse(responseCode = "412", description = "If-Match entity tag does not match the item")],
         security = [SecurityRequirement(name = "bearerAuth")]
     )
     @PatchMapping("/{id}", produces = [APPLICATION_JSON_VALUE])
     @PreAuthorize("hasRole('ROLE_USER')")
     suspend fun patchItem(
         @PathVariable id: Long,
-        @RequestHeader(value = HttpHeaders.IF_MATCH) version: Long?,
+        @RequestHeader(value = HttpHeaders.IF_MATCH) ifMatch: String?,
         @Valid @RequestBody itemPatchDto: ItemPatchDto
     ): ItemDto {
-        return itemService.patch(id, version, itemPatchDto)
+        return itemService.patch(id, EntityTags.versionOf(ifMatch, id), itemPatchDto)
     }
 
     @Operation(
@@ -113,7 +303,8 @@ class ItemController(private val itemService: ItemService) {
             ApiResponse(responseCode = "200", description = "item deleted"),
             ApiResponse(responseCode = "400", description = "bad request parameters"),
             ApiResponse(responseCode = "403", description = "insufficient privileges"),
-            ApiResponse(responseCode = "404", description = "item not found")],
+            ApiResponse(responseCode = "404", description = "item not found"),
+            ApiResponse(responseCode = "412", description = "If-Match entity tag does not match the item")],
         security = [SecurityRequirement(name = "bearerAuth")]
     )
     @DeleteMapping("/{id}")
@@ -121,8 +312,29 @@ class ItemController(private val itemService: ItemService) {
     @PreAuthorize("hasRole('ROLE_USER')")
     suspend fun deleteItem(
         @PathVariable id: Long,
-        @RequestHeader(value = HttpHeaders.IF_MATCH) version: Long?
+        @RequestHeader(value = HttpHeaders.IF_MATCH) ifMatch: String?
     ) {
-        itemService.delete(id, version)
+        itemService.delete(id, EntityTags.versionOf(ifMatch, id))
+    }
+
+    /**
+     * Prepare a response body containing items for serialization
+     * @param body body of the response
+     * @param itemFields fields of the items to be written or null to write all fields
+     * @return the body with the filter of the item fields
+     */
+    private fun withFields(body: Any, itemFields: Set<ItemField>?): MappingJacksonValue {
+        return MappingJacksonValue(body).apply {
+            if (itemFields != null) {
+                val properties = itemFields.map { it.property }.toSet() + ItemField.ID.property
+                filters = SimpleFilterProvider()
+                    .addFilter(ItemDto.FIELDS_FILTER, SimpleBeanPropertyFilter.filterOutAllExcept(properties))
+            }
+        }
+    }
+
+    companion object {
+        private const val LAST_EVENT_ID = "Last-Event-ID"
+        private val HEARTBEAT_INTERVAL = Duration.ofSeconds(15)
     }
 }
@@ -4,15 +4,18 @@ package org.taskmanager.task.api.controller
 import io.swagger.v3.oas.annotations.Operation
 import io.swagger.v3.oas.annotations.responses.ApiResponse
 import io.swagger.v3.oas.annotations.security.SecurityRequirement
-import org.springframework.data.domain.Page
 import org.springframework.data.domain.Pageable
 import org.springframework.data.domain.Sort
 import org.springframework.data.web.PageableDefault
 import org.springframework.http.HttpHeaders
 import org.springframework.http.HttpStatus
 import org.springframework.http.MediaType.APPLICATION_JSON_VALUE
+import org.springframework.http.ResponseEntity
 import org.springframework.security.access.prepost.PreAuthorize
 import org.springframework.web.bind.annotation.*
+import org.springframework.web.server.ServerWebExchange
+import org.taskmanager.task.api.dto.CursorPage
+import org.taskmanager.task.api.dto.TotalCountPage
 import org.taskmanager.task.api.dto.TagCreateDto
 import org.taskmanager.task.api.dto.TagPatchDto
 import org.taskmanager.task.api.dto.TagDto
@@ -26,8 +29,10 @@ class TagController(private val tagService: TagService) {
 
     @Operation(
         summary = "Get page of tags",
+        description = "The weak ETag of the page changes whenever a returned tag or the total number of tags changes",
         responses = [
             ApiResponse(responseCode = "200", description = "got page of tags"),
+            ApiResponse(responseCode = "304", description = "page not modified since the ETag in If-None-Match"),
             ApiResponse(responseCode = "403", description = "insufficient privileges")],
         security = [SecurityRequirement(name = "bearerAuth")]
     )
@@ -35,15 +40,38 @@ class TagController(private val tagService: TagService) {
     @PreAuthorize("hasRole('ROLE_USER')")
     suspend fun getAllTags(
         @PageableDefault(value = 100, sort = ["name"], direction = Sort.Direction.ASC)
-        pageable: Pageable
-    ): Page<TagDto> {
-        return tagService.findAllBy(pageable)
+        pageable: Pageable,
+        exchange: ServerWebExchange
+    ): ResponseEntity<TotalCountPage<TagDto>> {
+        val page = tagService.findAllBy(pageable)
+        return EntityTags.conditionalGet(exchange, EntityTags.weak(page)) { page }
+    }
+
+    @Operation(
+        summary = "Get page of tags using a cursor",
+        description = "Keyset pagination: pass an empty 'after' parameter for the first page " +
+                "and the 'nextCursor' of the previous page for the following pages",
+        responses = [
+            ApiResponse(responseCode = "200", description = "got page of tags"),
+            ApiResponse(responseCode = "400", description = "invalid cursor"),
+            ApiResponse(responseCode = "403", description = "insufficient privileges")],
+        security = [SecurityRequirement(name = "bearerAuth")]
+    )
+    @GetMapping(produces = [APPLICATION_JSON_VALUE], params = ["after"])
+    @PreAuthorize("hasRole('ROLE_USER')")
+    suspend fun getAllTagsAfter(
+        @RequestParam after: String,
+        @RequestParam(defaultValue = "100") size: Int
+    ): CursorPage<TagDto> {
+        return tagService.findAllAfter(after, size)
     }
 
     @Operation(
         summary = "Get a specific tag",
+        description = "The tag has the strong ETag \"id.version\"",
         responses = [
             ApiResponse(responseCode = "200", description = "got tag by id"),
+            ApiResponse(responseCode = "304", description = "tag not modified since the ETag in If-None-Match"),
             ApiResponse(responseCode = "400", description = "bad request parameters"),
             ApiResponse(responseCode = "403", description = "insufficient privileges"),
             ApiResponse(responseCode = "404", description = "tag not found")],
@@ -51,8 +79,9 @@ class TagController(private val tagService: TagService) {
     )
     @GetMapping("/{id}", produces = [APPLICATION_JSON_VALUE])
     @PreAuthorize("hasRole('ROLE_USER')")
-    suspend fun getTagById(@PathVariable id: Long): TagDto {
-        return tagService.getById(id)
+    suspend fun getTagById(@PathVariable id: Long, exchange: ServerWebExchange): ResponseEntity<TagDto> {
+        val eTag = EntityTags.strong(id, tagService.getVersion(id))
+        return EntityTags.conditionalGet(exchange, eTag) { tagService.getById(id) }
     }
 
     @Operation(
@@ -75,17 +104,18 @@ class TagController(private val tagService: TagService) {
             ApiResponse(responseCode = "200", description = "tag updated"),
             ApiResponse(responseCode = "400", description = "bad request parameters"),
             ApiResponse(responseCode = "403", description = "insufficient privileges"),
-            ApiResponse(responseCode = "404", description = "tag not found")],
+            ApiResponse(responseCode = "404", description = "tag not found"),
+            ApiResponse(responseCode = "412", description = "If-Match entity tag does not match the tag")],
         security = [SecurityRequirement(name = "bearerAuth")]
     )
     @PutMapping("/{id}", produces = [APPLICATION_JSON_VALUE])
     @PreAuthorize("hasRole('ROLE_USER')")
     suspend fun updateTag(
         @PathVariable id: Long,
-        @RequestHeader(value = HttpHeaders.IF_MATCH) version: Long?,
+        @RequestHeader(value = HttpHeaders.IF_MATCH) ifMatch: String?,
         @Valid @RequestBody tagUpdateDto: TagUpdateDto
     ): TagDto {
-        return tagService.update(id, version, tagUpdateDto)
+        return tagService.update(id, EntityTags.versionOf(ifMatch, id), tagUpdateDto)
     }
 
     @Operation(
@@ -94,17 +124,18 @@ class TagController(private val tagService: TagService) {
             ApiResponse(responseCode = "200", description = "tag patched"),
             ApiResponse(responseCode = "400", description = "bad request parameters"),
             ApiResponse(responseCode = "403", description = "insufficient privileges"),
-            ApiResponse(responseCode = "404", description = "tag not found")],
+            ApiResponse(responseCode = "404", description = "tag not found"),
+            ApiResponse(responseCode = "412", description = "If-Match entity tag does not match the tag")],
         security = [SecurityRequirement(name = "bearerAuth")]
     )
     @PatchMapping("/{id}", produces = [APPLICATION_JSON_VALUE])
     @PreAuthorize("hasRole('ROLE_USER')")
     suspend fun patchTag(
         @PathVariable id: Long,
-        @RequestHeader(value = HttpHeaders.IF_MATCH) version: Long?,
+        @RequestHeader(value = HttpHeaders.IF_MATCH) ifMatch: String?,
         @Valid @RequestBody tagPatchDto: TagPatchDto
     ): TagDto {
-        return tagService.patch(id, version, tagPatchDto)
+        return tagService.patch(id, EntityTags.versionOf(ifMatch, id), tagPatchDto)
     }
 
     @Operation(
@@ -113,7 +144,8 @@ class TagController(private val tagService: TagService) {
             ApiResponse(responseCode = "200", description = "tag deleted"),
             ApiResponse(responseCode = "400", description = "bad request parameters"),
             ApiResponse(responseCode = "403", description = "insufficient privileges"),
-            ApiResponse(responseCode = "404", description = "tag not found")],
+            ApiResponse(responseCode = "404", description = "tag not found"),
+            ApiResponse(responseCode = "412", description = "If-Match entity tag does not match the tag")],
         security = [SecurityRequirement(name = "bearerAuth")]
     )
     @DeleteMapping("/{id}")
@@ -121,8 +153,8 @@ class TagController(private val tagService: TagService) {
     @PreAuthorize("hasRole('ROLE_USER')")
     suspend fun deleteTag(
         @PathVariable id: Long,
-        @RequestHeader(value = HttpHeaders.IF_MATCH) version: Long?
+        @RequestHeader(value = HttpHeaders.IF_MATCH) ifMatch: String?
     ) {
-        tagService.delete(id, version)
+        tagService.delete(id, EntityTags.versionOf(ifMatch, id))
     }
 }
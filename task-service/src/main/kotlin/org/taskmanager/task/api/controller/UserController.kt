@@ -4,7 +4,6 @@ package org.taskmanager.task.api.controller
 import io.swagger.v3.oas.annotations.Operation
 import io.swagger.v3.oas.annotations.responses.ApiResponse
 import io.swagger.v3.oas.annotations.security.SecurityRequirement
-import org.springframework.data.domain.Page
 import org.springframework.data.domain.Pageable
 import org.springframework.data.domain.Sort
 import org.springframework.data.web.PageableDefault
@@ -13,7 +12,10 @@ import org.springframework.security.access.prepost.PreAuthorize
 import org.springframework.web.bind.annotation.GetMapping
 import org.springframework.web.bind.annotation.PathVariable
 import org.springframework.web.bind.annotation.RequestMapping
+import org.springframework.web.bind.annotation.RequestParam
 import org.springframework.web.bind.annotation.RestController
+import org.taskmanager.task.api.dto.CursorPage
+import org.taskmanager.task.api.dto.TotalCountPage
 import org.taskmanager.task.api.dto.UserDto
 import org.taskmanager.task.service.UserService
 
@@ -33,10 +35,29 @@ class UserController(private val userService: UserService) {
     suspend fun getAllUsers(
         @PageableDefault(value = 100, sort = ["firstName", "lastName", "email"], direction = Sort.Direction.ASC)
         pageable: Pageable
-    ): Page<UserDto> {
+    ): TotalCountPage<UserDto> {
         return userService.findAllBy(pageable)
     }
 
+    @Operation(
+        summary = "Get page of users using a cursor",
+        description = "Keyset pagination: pass an empty 'after' parameter for the first page " +
+                "and the 'nextCursor' of the previous page for the following pages",
+        responses = [
+            ApiResponse(responseCode = "200", description = "got page of users"),
+            ApiResponse(responseCode = "400", description = "invalid cursor"),
+            ApiResponse(responseCode = "403", description = "insufficient privileges")],
+        security = [SecurityRequirement(name = "bearerAuth")]
+    )
+    @GetMapping(produces = [APPLICATION_JSON_VALUE], params = ["after"])
+    @PreAuthorize("hasRole('ROLE_ADMIN')")
+    suspend fun getAllUsersAfter(
+        @RequestParam after: String,
+        @RequestParam(defaultValue = "100") size: Int
+    ): CursorPage<UserDto> {
+        return userService.findAllAfter(after, size)
+    }
+
     @Operation(
         summary = "Get a specific user",
         responses = [
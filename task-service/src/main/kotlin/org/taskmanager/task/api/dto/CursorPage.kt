@@ -0,0 +1,8 @@
+package org.taskmanager.task.api.dto
+
+data class CursorPage<T>(
+    val content: List<T> = listOf(),
+    val size: Int = 0,
+    // opaque cursor to be passed as 'after' parameter to get the next page, null on the last page
+    val nextCursor: String? = null
+)
@@ -0,0 +1,10 @@
+package org.taskmanager.task.api.dto
+
+data class ItemBatchResultDto(
+    // position of the element in the batch request
+    val index: Int,
+    // the created item if the element was valid
+    val item: ItemDto? = null,
+    // the reason why the element was rejected
+    val error: String? = null
+)
@@ -0,0 +1,12 @@
+package org.taskmanager.task.api.dto
+
+data class ItemChangesDto(
+    // items created or updated after the cursor ordered by lastModifiedDate and id
+    val changed: List<ItemDto> = listOf(),
+    // ids of the items deleted after the cursor
+    val deleted: List<Long> = listOf(),
+    // opaque cursor to be passed as 'since' parameter to get the following changes
+    val nextCursor: String? = null,
+    // true if more changes are available immediately
+    val hasMore: Boolean = false
+)
@@ -1,8 +1,11 @@
 package org.taskmanager.task.api.dto
 
+import com.fasterxml.jackson.annotation.JsonFilter
 import org.taskmanager.task.model.ItemStatus
 import java.time.LocalDateTime
 
+// sparse fieldset responses install this filter to write only the selected fields
+@JsonFilter(ItemDto.FIELDS_FILTER)
 data class ItemDto(
     val id: Long? = null,
     val version: Long? = null,
@@ -12,4 +15,8 @@ data class ItemDto(
     var tags: List<TagDto>? = null,
     val createdDate: LocalDateTime? = null,
     val lastModifiedDate: LocalDateTime? = null
-)
+) {
+    companion object {
+        const val FIELDS_FILTER = "itemFields"
+    }
+}
@@ -0,0 +1,13 @@
+package org.taskmanager.task.api.dto
+
+import org.taskmanager.task.model.ItemEventType
+
+data class ItemEventDto(
+    // epoch of the publishing instance and ascending sequence number of the event, used as event id of the stream
+    val id: String? = null,
+    val type: ItemEventType? = null,
+    // null for a reset
+    val itemId: Long? = null,
+    // the item after the change, null if the item has been deleted
+    val item: ItemDto? = null
+)
@@ -0,0 +1,9 @@
+package org.taskmanager.task.api.dto
+
+data class ItemFieldsDto(
+    // properties of the item to be returned or null for all columns
+    val fields: Set<String>? = null,
+
+    // relations to be loaded in addition to the fields
+    val expand: Set<String>? = null
+)
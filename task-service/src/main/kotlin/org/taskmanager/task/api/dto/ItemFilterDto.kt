@@ -0,0 +1,23 @@
+package org.taskmanager.task.api.dto
+
+import org.taskmanager.task.model.ItemStatus
+import org.taskmanager.task.model.TagMatch
+import java.time.LocalDateTime
+
+data class ItemFilterDto(
+    val statuses: Set<ItemStatus> = setOf(),
+
+    val assigneeUserId: String? = null,
+
+    val tagIds: Set<Long> = setOf(),
+
+    val tagMatch: TagMatch = TagMatch.ANY,
+
+    val createdFrom: LocalDateTime? = null,
+
+    val createdTo: LocalDateTime? = null,
+
+    val modifiedFrom: LocalDateTime? = null,
+
+    val modifiedTo: LocalDateTime? = null
+)
@@ -0,0 +1,14 @@
+package org.taskmanager.task.api.dto
+
+enum class TotalCountMode {
+    // count(*) on every request
+    EXACT,
+
+    // count(*) cached for a TTL and invalidated by the create and delete paths of the services
+    CACHED,
+
+    // row estimate of the Postgres planner statistics (pg_class.reltuples)
+    ESTIMATED
+}
+
+data class TotalCount(val value: Long, val mode: TotalCountMode)
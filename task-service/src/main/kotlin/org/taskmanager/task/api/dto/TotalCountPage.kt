@@ -0,0 +1,14 @@
+package org.taskmanager.task.api.dto
+
+import org.springframework.data.domain.PageImpl
+import org.springframework.data.domain.Pageable
+
+/**
+ * Page that also reports how its total number of elements has been determined
+ */
+class TotalCountPage<T>(content: List<T>, pageable: Pageable, totalCount: TotalCount) :
+    PageImpl<T>(content, pageable, totalCount.value) {
+
+    val totalElementsMode: TotalCountMode = totalCount.mode
+
+}
@@ -0,0 +1,20 @@
+package org.taskmanager.task.configuration
+
+import org.springframework.context.annotation.Bean
+import org.springframework.context.annotation.Configuration
+import org.springframework.data.auditing.DateTimeProvider
+import org.springframework.data.r2dbc.config.EnableR2dbcAuditing
+import java.time.LocalDateTime
+import java.time.temporal.ChronoUnit
+import java.util.*
+
+@Configuration
+@EnableR2dbcAuditing(dateTimeProviderRef = "auditingDateTimeProvider")
+class AuditingConfiguration {
+
+    @Bean
+    fun auditingDateTimeProvider(): DateTimeProvider {
+        // truncate to the precision of the timestamp columns so that saved entities match the stored rows
+        return DateTimeProvider { Optional.of(LocalDateTime.now().truncatedTo(ChronoUnit.MICROS)) }
+    }
+}
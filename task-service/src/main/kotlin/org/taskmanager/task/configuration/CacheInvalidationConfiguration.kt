@@ -0,0 +1,117 @@
+package org.taskmanager.task.configuration
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import org.apache.kafka.clients.admin.NewTopic
+import org.apache.kafka.clients.consumer.ConsumerConfig
+import org.apache.kafka.clients.consumer.ConsumerRecord
+import org.apache.kafka.clients.producer.ProducerConfig
+import org.apache.kafka.common.TopicPartition
+import org.apache.kafka.common.serialization.StringDeserializer
+import org.apache.kafka.common.serialization.StringSerializer
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty
+import org.springframework.context.annotation.Bean
+import org.springframework.context.annotation.Configuration
+import org.springframework.kafka.config.TopicBuilder
+import org.springframework.kafka.core.DefaultKafkaConsumerFactory
+import org.springframework.kafka.core.DefaultKafkaProducerFactory
+import org.springframework.kafka.core.KafkaTemplate
+import org.springframework.kafka.listener.BatchMessageListener
+import org.springframework.kafka.listener.ConcurrentMessageListenerContainer
+import org.springframework.kafka.listener.ConsumerSeekAware
+import org.springframework.kafka.listener.ContainerProperties
+import org.taskmanager.task.kafka.KafkaCacheInvalidationBus
+import org.taskmanager.task.service.CacheInvalidationBus
+import org.taskmanager.task.service.LocalCacheInvalidationBus
+import java.net.InetAddress
+import java.time.Duration
+
+/**
+ * Selects the bus distributing cache invalidations with app.cache.invalidation.bus:
+ * kafka for several replicas, local for a single replica and the tests
+ */
+@Configuration
+class CacheInvalidationConfiguration {
+
+    @Bean
+    @ConditionalOnProperty("app.cache.invalidation.bus", havingValue = "local", matchIfMissing = true)
+    fun localCacheInvalidationBus(): CacheInvalidationBus {
+        return LocalCacheInvalidationBus()
+    }
+
+    @Configuration
+    @ConditionalOnProperty("app.cache.invalidation.bus", havingValue = "kafka")
+    class KafkaCacheInvalidationConfiguration(
+        @Value("\${kafka.bootstrapAddress}")
+        private val bootstrapAddress: String,
+        @Value("\${app.cache.invalidation.topic:task-service-cache-invalidations}")
+        private val topic: String,
+        @Value("\${app.cache.invalidation.group-prefix:task-service-cache}")
+        private val groupPrefix: String,
+        @Value("\${app.cache.invalidation.flush-interval:100ms}")
+        private val flushInterval: Duration,
+        @Value("\${app.cache.invalidation.instance-id:}")
+        instanceId: String
+    ) {
+
+        // each replica consumes all invalidations with its own consumer group, which is kept across restarts
+        private val instanceId = instanceId.ifBlank { InetAddress.getLocalHost().hostName }
+
+        @Bean
+        fun cacheInvalidationTopic(): NewTopic {
+            return TopicBuilder.name(topic).partitions(1).replicas(1).compact().build()
+        }
+
+        // a bean so that its producer is closed on shutdown
+        @Bean
+        fun cacheInvalidationProducerFactory(): DefaultKafkaProducerFactory<String, String> {
+            val producerProps: Map<String, Any> = mapOf(
+                ProducerConfig.BOOTSTRAP_SERVERS_CONFIG to bootstrapAddress,
+                ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG to StringSerializer::class.java,
+                ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG to StringSerializer::class.java,
+                ProducerConfig.LINGER_MS_CONFIG to 5
+            )
+            return DefaultKafkaProducerFactory(producerProps)
+        }
+
+        @Bean
+        fun kafkaCacheInvalidationBus(
+            cacheInvalidationProducerFactory: DefaultKafkaProducerFactory<String, String>,
+            objectMapper: ObjectMapper
+        ): KafkaCacheInvalidationBus {
+            val kafkaTemplate = KafkaTemplate(cacheInvalidationProducerFactory)
+            return KafkaCacheInvalidationBus(kafkaTemplate, objectMapper, topic, instanceId, flushInterval)
+        }
+
+        @Bean
+        fun cacheInvalidationListenerContainer(
+            kafkaCacheInvalidationBus: KafkaCacheInvalidationBus
+        ): ConcurrentMessageListenerContainer<String, String> {
+            val consumerProps: Map<String, Any> = mapOf(
+                ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG to bootstrapAddress,
+                ConsumerConfig.GROUP_ID_CONFIG to "$groupPrefix-$instanceId",
+                ConsumerConfig.AUTO_OFFSET_RESET_CONFIG to "latest",
+                ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG to StringDeserializer::class.java,
+                ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG to StringDeserializer::class.java
+            )
+            val containerProperties = ContainerProperties(topic).apply {
+                messageListener = object : BatchMessageListener<String, String>, ConsumerSeekAware {
+                    override fun onMessage(records: List<ConsumerRecord<String, String>>) {
+                        kafkaCacheInvalidationBus.onMessages(records)
+                    }
+
+                    // invalidations published before the start of the replica concern caches it does not have
+                    override fun onPartitionsAssigned(
+                        assignments: Map<TopicPartition, Long>,
+                        callback: ConsumerSeekAware.ConsumerSeekCallback
+                    ) {
+                        callback.seekToEnd(assignments.keys)
+                    }
+                }
+            }
+            return ConcurrentMessageListenerContainer(
+                DefaultKafkaConsumerFactory<String, String>(consumerProps), containerProperties
+            )
+        }
+    }
+}
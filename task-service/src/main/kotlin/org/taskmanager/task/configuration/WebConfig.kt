@@ -1,5 +1,8 @@
 package org.taskmanager.task.configuration
 
+import com.fasterxml.jackson.databind.ser.impl.SimpleBeanPropertyFilter
+import com.fasterxml.jackson.databind.ser.impl.SimpleFilterProvider
+import org.springframework.boot.autoconfigure.jackson.Jackson2ObjectMapperBuilderCustomizer
 import org.springframework.context.annotation.Bean
 import org.springframework.context.annotation.Configuration
 import org.springframework.data.web.ReactivePageableHandlerMethodArgumentResolver
@@ -13,4 +16,12 @@ class WebConfig {
         //  allows injecting Pageable instances into WebFlux controller methods
         return ReactivePageableHandlerMethodArgumentResolver()
     }
-}
\ No newline at end of file
+
+    @Bean
+    fun filterProviderCustomizer(): Jackson2ObjectMapperBuilderCustomizer {
+        // filtered dtos are written completely unless a response installs its own filter
+        return Jackson2ObjectMapperBuilderCustomizer {
+            it.filters(SimpleFilterProvider().setDefaultFilter(SimpleBeanPropertyFilter.serializeAll()))
+        }
+    }
+}
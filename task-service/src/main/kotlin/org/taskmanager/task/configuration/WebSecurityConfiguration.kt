@@ -2,6 +2,7 @@ package org.taskmanager.task.configuration
 
 import org.springframework.context.annotation.Bean
 import org.springframework.core.convert.converter.Converter
+import org.springframework.http.HttpHeaders
 import org.springframework.http.HttpMethod
 import org.springframework.http.HttpMethod.*
 import org.springframework.security.authentication.AbstractAuthenticationToken
@@ -26,6 +27,8 @@ class WebSecurityConfiguration {
         corsConfiguration.allowedOrigins = listOf("*") // should be listOf("http://service.url")
         corsConfiguration.allowedMethods = listOf(GET, POST, PUT, DELETE).map(HttpMethod::name)
         corsConfiguration.allowedHeaders = listOf("*")
+        // allows browser clients to send the entity tag back in an If-Match header
+        corsConfiguration.exposedHeaders = listOf(HttpHeaders.ETAG)
         val source = UrlBasedCorsConfigurationSource()
         source.registerCorsConfiguration("/**", corsConfiguration)
         return source
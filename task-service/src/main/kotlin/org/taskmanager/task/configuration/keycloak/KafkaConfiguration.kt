@@ -10,6 +10,9 @@ import org.springframework.kafka.annotation.KafkaListener
 import org.springframework.kafka.config.ConcurrentKafkaListenerContainerFactory
 import org.springframework.kafka.core.ConsumerFactory
 import org.springframework.kafka.core.DefaultKafkaConsumerFactory
+import org.springframework.kafka.listener.ContainerProperties
+import org.springframework.kafka.support.Acknowledgment
+import org.springframework.kafka.support.converter.BatchMessagingMessageConverter
 import org.springframework.kafka.support.converter.StringJsonMessageConverter
 import org.taskmanager.task.kafka.KeycloakAdminEvent
 import org.taskmanager.task.kafka.KeycloakEvent
@@ -23,6 +26,8 @@ class KafkaConfiguration(
     private val bootstrapAddress: String,
     @Value("\${keycloak.kafka.group-id}")
     private val groupId: String,
+    @Value("\${keycloak.kafka.concurrency:1}")
+    private val concurrency: Int,
     private val keycloakKafkaConsumer: KeycloakKafkaConsumer
 ) {
 
@@ -46,18 +51,23 @@ class KafkaConfiguration(
     fun kafkaListenerContainerFactory(): ConcurrentKafkaListenerContainerFactory<String, String> {
         val factory = ConcurrentKafkaListenerContainerFactory<String, String>()
         factory.setConsumerFactory(consumerFactory())
-        factory.setMessageConverter(jsonConverter())
+        factory.setConcurrency(concurrency)
+        // each poll is handed over as one batch that the KeycloakKafkaConsumer coalesces by user
+        factory.isBatchListener = true
+        factory.setMessageConverter(BatchMessagingMessageConverter(jsonConverter()))
+        // the batches are acknowledged by the KeycloakKafkaConsumer in order once they have been processed
+        factory.containerProperties.ackMode = ContainerProperties.AckMode.MANUAL
         return factory
     }
 
     @KafkaListener(topics = ["\${keycloak.kafka.events-topic}"])
-    fun handleKeycloakEvent(event: KeycloakEvent) {
-        keycloakKafkaConsumer.handleKeycloakEvent(event)
+    fun handleKeycloakEvents(events: List<KeycloakEvent>, acknowledgment: Acknowledgment) {
+        keycloakKafkaConsumer.handleKeycloakEvents(events, acknowledgment)
     }
 
     @KafkaListener(topics = ["\${keycloak.kafka.admin-events-topic}"])
-    fun handleKeycloakAdminEvent(event: KeycloakAdminEvent) {
-        keycloakKafkaConsumer.handleKeycloakAdminEvent(event)
+    fun handleKeycloakAdminEvents(events: List<KeycloakAdminEvent>, acknowledgment: Acknowledgment) {
+        keycloakKafkaConsumer.handleKeycloakAdminEvents(events, acknowledgment)
     }
 
 }
@@ -1,14 +1,15 @@
 package org.taskmanager.task.configuration.keycloak
 
-import org.keycloak.OAuth2Constants.CLIENT_CREDENTIALS
-import org.keycloak.admin.client.Keycloak
-import org.keycloak.admin.client.KeycloakBuilder
+import io.netty.channel.ChannelOption
 import org.springframework.beans.factory.annotation.Value
 import org.springframework.context.annotation.Bean
 import org.springframework.context.annotation.Configuration
-
-// inspired by
-// https://github.com/codersee-blog/kotlin-spring-boot-keycloak-admin/blob/master/src/main/kotlin/com/codersee/keycloakadmin/config/KeycloakClientConfig.kt
+import org.springframework.http.client.reactive.ReactorClientHttpConnector
+import org.springframework.web.reactive.function.client.WebClient
+import org.taskmanager.task.keycloak.KeycloakAdminClient
+import reactor.netty.http.client.HttpClient
+import reactor.netty.resources.ConnectionProvider
+import java.time.Duration
 
 @Configuration
 class KeycloakAdminConfiguration(
@@ -19,18 +20,37 @@ class KeycloakAdminConfiguration(
     @Value("\${keycloak.auth-server-url}")
     private val authUrl: String,
     @Value("\${keycloak.realm}")
-    private val realm: String
+    private val realm: String,
+    @Value("\${keycloak.admin-client.timeout:5s}")
+    private val timeout: Duration,
+    @Value("\${keycloak.admin-client.max-connections:50}")
+    private val maxConnections: Int,
+    @Value("\${keycloak.admin-client.token-min-validity:30s}")
+    private val tokenMinValidity: Duration
 ) {
 
+    /**
+     * Web client of the Keycloak server with its own connection pool
+     */
     @Bean
-    fun keycloak(): Keycloak {
-        return KeycloakBuilder.builder()
-            .grantType(CLIENT_CREDENTIALS)
-            .serverUrl(authUrl)
-            .realm(realm)
-            .clientId(clientId)
-            .clientSecret(secretKey)
+    fun keycloakAdminWebClient(webClientBuilder: WebClient.Builder): WebClient {
+        val connectionProvider = ConnectionProvider.builder("keycloak-admin")
+            .maxConnections(maxConnections)
+            .pendingAcquireTimeout(timeout)
+            .maxIdleTime(Duration.ofSeconds(30))
+            .build()
+        val httpClient = HttpClient.create(connectionProvider)
+            .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, timeout.toMillis().toInt())
+            .responseTimeout(timeout)
+        return webClientBuilder.clone()
+            .baseUrl(authUrl)
+            .clientConnector(ReactorClientHttpConnector(httpClient))
             .build()
     }
 
-}
\ No newline at end of file
+    @Bean
+    fun keycloakAdminClient(keycloakAdminWebClient: WebClient): KeycloakAdminClient {
+        return KeycloakAdminClient(keycloakAdminWebClient, realm, clientId, secretKey, timeout, tokenMinValidity)
+    }
+
+}
@@ -0,0 +1,8 @@
+package org.taskmanager.task.exception
+
+import org.springframework.http.HttpStatus
+import org.springframework.web.bind.annotation.ResponseStatus
+
+@ResponseStatus(HttpStatus.BAD_REQUEST)
+class BatchSizeExceededException(size: Int, maxSize: Int) :
+    RuntimeException(String.format("The batch contains [%d] elements, at most [%d] are allowed", size, maxSize))
@@ -0,0 +1,8 @@
+package org.taskmanager.task.exception
+
+import org.springframework.http.HttpStatus
+import org.springframework.web.bind.annotation.ResponseStatus
+
+@ResponseStatus(HttpStatus.PRECONDITION_FAILED)
+class EntityTagMismatchException(entityTag: String) :
+    RuntimeException(String.format("Entity tag [%s] does not match the resource", entityTag))
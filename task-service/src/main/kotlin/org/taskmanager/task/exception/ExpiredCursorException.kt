@@ -0,0 +1,8 @@
+package org.taskmanager.task.exception
+
+import org.springframework.http.HttpStatus
+import org.springframework.web.bind.annotation.ResponseStatus
+
+@ResponseStatus(HttpStatus.GONE)
+class ExpiredCursorException(cursor: String) :
+    RuntimeException(String.format("Cursor [%s] has expired, synchronize all items again", cursor))
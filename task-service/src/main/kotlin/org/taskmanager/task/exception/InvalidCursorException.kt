@@ -0,0 +1,7 @@
+package org.taskmanager.task.exception
+
+import org.springframework.http.HttpStatus
+import org.springframework.web.bind.annotation.ResponseStatus
+
+@ResponseStatus(HttpStatus.BAD_REQUEST)
+class InvalidCursorException(cursor: String) : RuntimeException(String.format("Cursor [%s] is invalid", cursor))
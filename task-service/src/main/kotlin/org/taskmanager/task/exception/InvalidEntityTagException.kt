@@ -0,0 +1,8 @@
+package org.taskmanager.task.exception
+
+import org.springframework.http.HttpStatus
+import org.springframework.web.bind.annotation.ResponseStatus
+
+@ResponseStatus(HttpStatus.BAD_REQUEST)
+class InvalidEntityTagException(entityTag: String) :
+    RuntimeException(String.format("Entity tag [%s] is invalid", entityTag))
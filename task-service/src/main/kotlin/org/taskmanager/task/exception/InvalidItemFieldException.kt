@@ -0,0 +1,8 @@
+package org.taskmanager.task.exception
+
+import org.springframework.http.HttpStatus
+import org.springframework.web.bind.annotation.ResponseStatus
+
+@ResponseStatus(HttpStatus.BAD_REQUEST)
+class InvalidItemFieldException(field: String) :
+    RuntimeException(String.format("Field [%s] is invalid", field))
@@ -0,0 +1,13 @@
+package org.taskmanager.task.kafka
+
+import org.taskmanager.task.model.CachedEntityType
+
+/**
+ * Record value of the cache invalidation topic
+ */
+data class CacheInvalidationMessage(
+    // instance id of the publishing replica, which has already evicted its own caches
+    val origin: String,
+    val entityType: CachedEntityType,
+    val id: String
+)
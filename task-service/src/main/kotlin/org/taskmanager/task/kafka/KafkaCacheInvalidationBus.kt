@@ -0,0 +1,105 @@
+package org.taskmanager.task.kafka
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.module.kotlin.readValue
+import org.apache.kafka.clients.consumer.ConsumerRecord
+import org.slf4j.LoggerFactory
+import org.springframework.beans.factory.DisposableBean
+import org.springframework.kafka.core.KafkaOperations
+import org.taskmanager.task.model.CacheInvalidation
+import org.taskmanager.task.model.CachedEntityType
+import org.taskmanager.task.service.CacheInvalidationBus
+import org.taskmanager.task.service.LocalCacheInvalidationBus
+import org.taskmanager.task.service.afterCommit
+import java.time.Duration
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+/**
+ * Bus distributing the invalidations to all replicas over a compacted Kafka topic.
+ * Invalidations are collected for the flush interval, deduplicated by entity and sent together.
+ * Every replica consumes the topic with its own consumer group and evicts its local caches,
+ * except for the records it has published itself.
+ */
+class KafkaCacheInvalidationBus(
+    private val kafkaOperations: KafkaOperations<String, String>,
+    private val objectMapper: ObjectMapper,
+    private val topic: String,
+    val instanceId: String,
+    flushInterval: Duration
+) : CacheInvalidationBus, DisposableBean {
+
+    private val log = LoggerFactory.getLogger(KafkaCacheInvalidationBus::class.java)
+
+    private val localBus = LocalCacheInvalidationBus()
+
+    // invalidations waiting for the next flush by record key
+    private val pending = LinkedHashMap<String, CacheInvalidation>()
+
+    private val scheduler = Executors.newSingleThreadScheduledExecutor { runnable ->
+        Thread(runnable, "cache-invalidation-flush").apply { isDaemon = true }
+    }
+
+    init {
+        val interval = flushInterval.toMillis().coerceAtLeast(1)
+        scheduler.scheduleWithFixedDelay(::flush, interval, interval, TimeUnit.MILLISECONDS)
+    }
+
+    override suspend fun publish(invalidations: Collection<CacheInvalidation>) {
+        if (invalidations.isEmpty()) return
+        afterCommit {
+            synchronized(pending) {
+                invalidations.forEach { pending[keyOf(it)] = it }
+            }
+        }
+    }
+
+    override fun subscribe(entityType: CachedEntityType, listener: (CacheInvalidation) -> Unit) {
+        localBus.subscribe(entityType, listener)
+    }
+
+    /**
+     * Send the pending invalidations to the topic
+     */
+    fun flush() {
+        val invalidations = synchronized(pending) {
+            pending.values.toList().also { pending.clear() }
+        }
+        try {
+            invalidations.forEach { invalidation ->
+                val message = CacheInvalidationMessage(instanceId, invalidation.entityType, invalidation.id)
+                kafkaOperations.send(topic, keyOf(invalidation), objectMapper.writeValueAsString(message))
+            }
+        } catch (e: Exception) {
+            // the local caches are bounded by ttl or size, a lost invalidation must not stop the flushes
+            log.error("Failed to publish ${invalidations.size} cache invalidations", e)
+        }
+    }
+
+    /**
+     * Evict the local caches for a batch of records consumed from the topic
+     * @param records records of the invalidation topic
+     */
+    fun onMessages(records: List<ConsumerRecord<String, String>>) {
+        val invalidations = LinkedHashMap<String, CacheInvalidation>()
+        records.forEach { record ->
+            val message = try {
+                objectMapper.readValue<CacheInvalidationMessage>(record.value())
+            } catch (e: Exception) {
+                log.warn("Skipping malformed cache invalidation ${record.key()}", e)
+                return@forEach
+            }
+            if (message.origin == instanceId) return@forEach
+            val invalidation = CacheInvalidation(message.entityType, message.id)
+            invalidations[keyOf(invalidation)] = invalidation
+        }
+        localBus.dispatch(invalidations.values)
+    }
+
+    override fun destroy() {
+        scheduler.shutdown()
+        flush()
+    }
+
+    private fun keyOf(invalidation: CacheInvalidation) = "${invalidation.entityType}:${invalidation.id}"
+}
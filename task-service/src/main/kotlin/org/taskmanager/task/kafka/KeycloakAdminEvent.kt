@@ -1,7 +1,10 @@
 package org.taskmanager.task.kafka
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties
+import com.fasterxml.jackson.databind.DeserializationFeature
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize
+import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
+import org.keycloak.representations.idm.UserRepresentation
 
 enum class OperationType {
     CREATE, UPDATE, DELETE, ACTION
@@ -20,5 +23,40 @@ data class KeycloakAdminEvent(
     @JsonDeserialize(using = FromStringJsonDeserializer::class)
     val representation: Map<String, Any>?,
     val error: String?,
-)
+) {
 
+    /**
+     * @return the userId of the user the event is about or null if the event is not about a user
+     */
+    fun userId(): String? {
+        if (resourceType != "USER") return null
+        return resourcePath?.split("/")?.takeIf {
+            it.size==2 && it[0]=="users" && it[1].matches("^[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}\$".toRegex())
+        }?.last()
+    }
+
+    /**
+     * Decode the representation of a created or updated user.
+     * The representation of an update only contains the changed fields,
+     * so it is only returned if it contains all the fields of the local user.
+     * @return the complete user or null if the representation is missing or incomplete
+     */
+    fun userRepresentation(): UserRepresentation? {
+        val userId = userId() ?: return null
+        if (operationType != OperationType.CREATE && operationType != OperationType.UPDATE) return null
+        val userRepresentation = representation?.let {
+            representationMapper.convertValue(it, UserRepresentation::class.java)
+        } ?: return null
+        if ((userRepresentation.email ?: userRepresentation.username) == null ||
+            userRepresentation.firstName == null || userRepresentation.lastName == null
+        ) return null
+        // the representation of a created user has no id yet
+        userRepresentation.id = userId
+        return userRepresentation
+    }
+
+    companion object {
+        private val representationMapper = jacksonObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+    }
+}
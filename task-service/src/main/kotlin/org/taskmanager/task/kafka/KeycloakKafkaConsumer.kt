@@ -1,29 +1,263 @@
 package org.taskmanager.task.kafka
 
+import io.micrometer.core.instrument.MeterRegistry
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineName
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.channels.onFailure
+import kotlinx.coroutines.channels.trySendBlocking
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.joinAll
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeoutOrNull
+import org.keycloak.representations.idm.UserRepresentation
 import org.slf4j.LoggerFactory
+import org.springframework.beans.factory.DisposableBean
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.kafka.config.KafkaListenerEndpointRegistry
+import org.springframework.kafka.support.Acknowledgment
 import org.springframework.stereotype.Component
 import org.taskmanager.task.service.UserService
+import java.time.Duration
+import java.util.concurrent.atomic.AtomicBoolean
 
+/**
+ * Synchronizes the users with Keycloak for the consumed batches of Keycloak events.
+ * The events of a batch are coalesced to one synchronization per user.
+ * Admin events that carry the complete user or its deletion are applied without fetching the user from Keycloak,
+ * all other users are fetched since the events do not contain their current state.
+ * The time of the latest event of each user is passed along, so that a carried state older than the one
+ * the user has already been synchronized with is ignored.
+ * The batches are handed over to coroutines so that the consumer threads keep polling.
+ * Each user is always synchronized by the same worker, so the updates of a user are applied
+ * in the order in which they have been consumed while different users are synchronized in parallel.
+ * Each batch is acknowledged once its synchronization and the ones of the previous batches
+ * of the same consumer thread have completed.
+ * A batch whose users cannot be synchronized in one transaction is retried with one transaction per user.
+ * If a user still fails, no later batch is acknowledged and the listener containers are restarted after a backoff,
+ * so the events are consumed again from the last acknowledged offsets.
+ */
 @Component
-class KeycloakKafkaConsumer(private val userService: UserService) {
+class KeycloakKafkaConsumer(
+    private val userService: UserService,
+    meterRegistry: MeterRegistry,
+    @Value("\${keycloak.kafka.max-pending-batches:16}")
+    maxPendingBatches: Int,
+    @Value("\${keycloak.sync.workers:\${keycloak.kafka.concurrency:1}}")
+    workers: Int,
+    @Value("\${keycloak.kafka.shutdown-timeout:10s}")
+    private val shutdownTimeout: Duration,
+    @Value("\${keycloak.kafka.retry-backoff:5s}")
+    private val retryBackoff: Duration,
+    private val listenerEndpointRegistry: KafkaListenerEndpointRegistry
+) : DisposableBean {
+
+    /**
+     * Users of a batch synchronized by one worker
+     */
+    private class Part(
+        val userIds: Set<String>,
+        // users whose current state is carried by the events, null for deleted users
+        val keycloakUsers: Map<String, UserRepresentation?>,
+        // time of the latest event of each user
+        val eventTimes: Map<String, Long>,
+        val generation: Long,
+        val done: CompletableDeferred<Unit> = CompletableDeferred()
+    )
 
     private val log = LoggerFactory.getLogger(KeycloakKafkaConsumer::class.java)
 
-    fun handleKeycloakEvent(event: KeycloakEvent) {
-        log.trace("Consumed event: $event")
-        userService.synchronizeUserFromKeycloak(event.userId)
+    private val job = SupervisorJob()
+
+    private val scope = CoroutineScope(job + Dispatchers.Default + CoroutineName("keycloak-sync"))
+
+    // the consumer threads wait while this many batches are pending for a worker
+    private val parts = List(workers) { Channel<Part>(maxPendingBatches) }
+
+    // acknowledgment of the last batch submitted by each consumer thread
+    private val lastAcknowledgment = ThreadLocal<Job?>()
+
+    // incremented by every restart of the listener containers, the batches of older generations are not acknowledged
+    @Volatile
+    private var generation = 0L
+
+    // set while the listener containers are restarted after a failure
+    private val restarting = AtomicBoolean()
+
+    private val consumedEvents = meterRegistry.counter("keycloak.sync.events")
+    private val synchronizedUsers = meterRegistry.counter("keycloak.sync.users")
+    private val representedUsers = meterRegistry.counter("keycloak.sync.represented-users")
+    private val failedUsers = meterRegistry.counter("keycloak.sync.failed-users")
+
+    init {
+        parts.forEach { channel ->
+            scope.launch {
+                for (part in channel) {
+                    // the batches consumed before a restart are consumed again
+                    if (!isCurrent(part.generation)) {
+                        part.done.complete(Unit)
+                        continue
+                    }
+                    try {
+                        synchronize(part)
+                        part.done.complete(Unit)
+                    } catch (e: Exception) {
+                        part.done.completeExceptionally(e)
+                    }
+                }
+            }
+        }
+    }
+
+    fun handleKeycloakEvents(events: List<KeycloakEvent>, acknowledgment: Acknowledgment) {
+        log.trace("Consumed events: $events")
+        val eventTimes = LinkedHashMap<String, Long>()
+        events.forEach { event -> eventTimes.merge(event.userId, event.time, ::maxOf) }
+        submit(events.size, eventTimes.keys, emptyMap(), eventTimes, acknowledgment)
+    }
 
+    fun handleKeycloakAdminEvents(events: List<KeycloakAdminEvent>, acknowledgment: Acknowledgment) {
+        log.trace("Consumed admin events: $events")
+        // the last event of each user decides whether the user must be fetched from Keycloak
+        val lastEventByUserId = LinkedHashMap<String, KeycloakAdminEvent>()
+        events.forEach { event -> event.userId()?.also { lastEventByUserId[it] = event } }
+        val keycloakUsers = HashMap<String, UserRepresentation?>()
+        lastEventByUserId.forEach { (userId, event) ->
+            if (event.operationType == OperationType.DELETE) {
+                keycloakUsers[userId] = null
+            } else {
+                event.userRepresentation()?.also { keycloakUsers[userId] = it }
+            }
+        }
+        representedUsers.increment(keycloakUsers.size.toDouble())
+        submit(events.size, lastEventByUserId.keys, keycloakUsers, lastEventByUserId.mapValues { it.value.time }, acknowledgment)
     }
 
-    fun handleKeycloakAdminEvent(event: KeycloakAdminEvent) {
-        log.trace("Consumed admin event: $event")
-        if (event.resourceType == "USER") {
-            event.resourcePath?.split("/")?.takeIf {
-                it.size==2 && it[0]=="users" && it[1].matches("^[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}\$".toRegex())
-            }?.last()?.also { userId ->
-                userService.synchronizeUserFromKeycloak(userId)
+    /**
+     * Synchronize the users of a part in one transaction or else in one transaction per user
+     */
+    private suspend fun synchronize(part: Part) {
+        if (part.userIds.size > 1) {
+            try {
+                userService.synchronizeUsersFromKeycloak(part.userIds, part.keycloakUsers, part.eventTimes)
+                return
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                log.warn("Failed to synchronize ${part.userIds.size} users from Keycloak, synchronizing them one by one", e)
             }
         }
+        var failure: Exception? = null
+        part.userIds.forEach { userId ->
+            try {
+                userService.synchronizeUsersFromKeycloak(
+                    setOf(userId), part.keycloakUsers.filterKeys { it == userId }, part.eventTimes.filterKeys { it == userId }
+                )
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                log.error("Failed to synchronize user with id '$userId' from Keycloak", e)
+                failedUsers.increment()
+                failure = failure?.apply { addSuppressed(e) } ?: e
+            }
+        }
+        failure?.let { throw it }
+    }
+
+    /**
+     * Queue the synchronization of the users of a batch
+     * @param eventCount number of consumed events
+     * @param userIds Keycloak ids of the users affected by the events
+     * @param keycloakUsers users whose current state is carried by the events, null for deleted users
+     * @param eventTimes time of the latest event of each user
+     * @param acknowledgment acknowledgment of the batch
+     */
+    private fun submit(
+        eventCount: Int,
+        userIds: Set<String>,
+        keycloakUsers: Map<String, UserRepresentation?>,
+        eventTimes: Map<String, Long>,
+        acknowledgment: Acknowledgment
+    ) {
+        val batchGeneration = generation
+        if (restarting.get()) {
+            // consumed before the listener containers have been stopped, the events are consumed again
+            log.debug("Skipping $eventCount Keycloak events during the restart of the listener containers")
+            return
+        }
+        consumedEvents.increment(eventCount.toDouble())
+        synchronizedUsers.increment(userIds.size.toDouble())
+        val done = userIds.groupBy { Math.floorMod(it.hashCode(), parts.size) }.map { (worker, workerUserIds) ->
+            val partUserIds = workerUserIds.toSet()
+            val part = Part(
+                partUserIds,
+                keycloakUsers.filterKeys { it in partUserIds },
+                eventTimes.filterKeys { it in partUserIds },
+                batchGeneration
+            )
+            parts[worker].trySendBlocking(part)
+                .onFailure {
+                    log.warn("Keycloak events not synchronized during shutdown")
+                    part.done.complete(Unit)
+                }
+            part.done
+        }
+        // acknowledging a batch commits the offsets of the previous ones, they must have completed too
+        val previous = lastAcknowledgment.get()
+        if (done.isEmpty() && previous?.isCompleted != false) {
+            acknowledgment.acknowledge()
+            return
+        }
+        lastAcknowledgment.set(scope.launch {
+            previous?.join()
+            try {
+                done.awaitAll()
+            } catch (e: Exception) {
+                restart(batchGeneration, e)
+                return@launch
+            }
+            if (isCurrent(batchGeneration)) acknowledgment.acknowledge()
+        })
+    }
+
+    private fun isCurrent(batchGeneration: Long) = !restarting.get() && batchGeneration == generation
+
+    /**
+     * Restart the listener containers after the backoff, so that the events not acknowledged are consumed again
+     * @param batchGeneration generation of the failed batch
+     * @param cause failure of the batch
+     */
+    private fun restart(batchGeneration: Long, cause: Exception) {
+        if (batchGeneration != generation || !restarting.compareAndSet(false, true)) return
+        log.error("Failed to synchronize users from Keycloak, consuming the events again in $retryBackoff", cause)
+        scope.launch(Dispatchers.IO) {
+            try {
+                // waits until the consumer threads have stopped submitting batches
+                listenerEndpointRegistry.listenerContainers.forEach { it.stop() }
+                delay(retryBackoff.toMillis())
+            } finally {
+                generation++
+                restarting.set(false)
+            }
+            listenerEndpointRegistry.listenerContainers.forEach { it.start() }
+        }
+    }
+
+    override fun destroy() {
+        parts.forEach { it.close() }
+        runBlocking {
+            // let the pending batches complete before the database connections are closed
+            withTimeoutOrNull(shutdownTimeout.toMillis()) { job.children.toList().joinAll() }
+        }
+        scope.cancel()
     }
 
 }
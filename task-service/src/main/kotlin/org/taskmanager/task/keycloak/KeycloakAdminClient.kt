@@ -0,0 +1,241 @@
+package org.taskmanager.task.keycloak
+
+import kotlinx.coroutines.reactor.awaitSingle
+import kotlinx.coroutines.reactor.awaitSingleOrNull
+import kotlinx.coroutines.reactor.mono
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import org.keycloak.OAuth2Constants.CLIENT_CREDENTIALS
+import org.keycloak.representations.AccessTokenResponse
+import org.keycloak.representations.idm.GroupRepresentation
+import org.keycloak.representations.idm.UserRepresentation
+import org.springframework.core.ParameterizedTypeReference
+import org.springframework.http.HttpStatus
+import org.springframework.web.reactive.function.BodyInserters
+import org.springframework.web.reactive.function.client.ClientResponse
+import org.springframework.web.reactive.function.client.WebClient
+import org.springframework.web.reactive.function.client.bodyToMono
+import java.time.Clock
+import java.time.Duration
+import java.time.Instant
+import java.util.Optional
+
+/**
+ * Non-blocking client of the Keycloak admin REST API for the users and groups of a realm.
+ * It authenticates with the client credentials grant, caches the access token until shortly before
+ * it expires and fetches a new one once if Keycloak rejects the cached token.
+ * Every HTTP exchange is bounded by the call timeout.
+ */
+class KeycloakAdminClient(
+    // web client with the base url of the Keycloak server
+    private val webClient: WebClient,
+    private val realm: String,
+    private val clientId: String,
+    private val clientSecret: String,
+    private val callTimeout: Duration,
+    // a cached token is refreshed once it expires within this duration
+    private val tokenMinValidity: Duration,
+    private val clock: Clock = Clock.systemUTC()
+) {
+
+    private class CachedToken(val value: String, val expiresAt: Instant)
+
+    private class Reply<T>(val value: T)
+
+    private val tokenMutex = Mutex()
+
+    @Volatile
+    private var cachedToken: CachedToken? = null
+
+    /**
+     * Get a user
+     * @param id userId of the user
+     * @return the user or null if it does not exist
+     */
+    suspend fun findById(id: String): UserRepresentation? {
+        return call({ get().uri("$ADMIN_PATH/users/{id}", realm, id) }) { response ->
+            if (response.statusCode() == HttpStatus.NOT_FOUND) {
+                response.releaseBody().awaitSingleOrNull()
+                null
+            } else {
+                response.bodyOrError<UserRepresentation>()
+            }
+        }
+    }
+
+    /**
+     * Search users
+     * @param username part of the username to be searched for or null for all users
+     * @param first index of the first user
+     * @param max maximum number of users
+     * @return the matching users
+     */
+    suspend fun search(username: String? = null, first: Int = 0, max: Int = 100): List<UserRepresentation> {
+        return call({
+            get().uri { uriBuilder ->
+                uriBuilder.path("$ADMIN_PATH/users")
+                    .queryParamIfPresent("username", Optional.ofNullable(username))
+                    .queryParam("first", first)
+                    .queryParam("max", max)
+                    .build(realm)
+            }
+        }) { it.bodyOrError(USER_LIST) }
+    }
+
+    /**
+     * Create a user
+     * @param user user to be created
+     * @return the userId assigned by Keycloak
+     */
+    suspend fun create(user: UserRepresentation): String {
+        return call({ post().uri("$ADMIN_PATH/users", realm).bodyValue(user) }) { response ->
+            response.releaseOrError()
+            val location = response.headers().asHttpHeaders().location
+                ?: throw IllegalStateException("Keycloak did not return the location of the created user")
+            location.path.substringAfterLast('/')
+        }
+    }
+
+    /**
+     * Update a user, the null fields of the representation are left unchanged
+     * @param id userId of the user
+     * @param user fields to be updated
+     */
+    suspend fun update(id: String, user: UserRepresentation) {
+        call({ put().uri("$ADMIN_PATH/users/{id}", realm, id).bodyValue(user) }) { it.releaseOrError() }
+    }
+
+    /**
+     * Delete a user, deleting a missing user has no effect
+     * @param id userId of the user
+     */
+    suspend fun delete(id: String) {
+        call({ delete().uri("$ADMIN_PATH/users/{id}", realm, id) }) { response ->
+            if (response.statusCode() == HttpStatus.NOT_FOUND) {
+                response.releaseBody().awaitSingleOrNull()
+            } else {
+                response.releaseOrError()
+            }
+        }
+    }
+
+    /**
+     * Search groups
+     * @param name part of the name to be searched for
+     * @return the matching groups
+     */
+    suspend fun findGroups(name: String): List<GroupRepresentation> {
+        return call({
+            get().uri("$ADMIN_PATH/groups?search={name}&first=0&max=100", realm, name)
+        }) { it.bodyOrError(GROUP_LIST) }
+    }
+
+    /**
+     * Add a user to a group
+     * @param id userId of the user
+     * @param groupId id of the group
+     */
+    suspend fun joinGroup(id: String, groupId: String) {
+        call({ put().uri("$ADMIN_PATH/users/{id}/groups/{groupId}", realm, id, groupId) }) { it.releaseOrError() }
+    }
+
+    /**
+     * Send an authenticated request and handle its response.
+     * If the cached token is rejected the request is sent once more with a new token.
+     */
+    private suspend fun <T> call(
+        request: WebClient.() -> WebClient.RequestHeadersSpec<*>,
+        handler: suspend (ClientResponse) -> T
+    ): T {
+        val token = accessToken()
+        val reply = exchange(request, handler, token, retryUnauthorized = true)
+            ?: exchange(request, handler, refreshAccessToken(token), retryUnauthorized = false)!!
+        return reply.value
+    }
+
+    /**
+     * @return the reply of the handler or null if the token has been rejected and the request may be retried
+     */
+    private suspend fun <T> exchange(
+        request: WebClient.() -> WebClient.RequestHeadersSpec<*>,
+        handler: suspend (ClientResponse) -> T,
+        token: String,
+        retryUnauthorized: Boolean
+    ): Reply<T>? {
+        return webClient.request()
+            .headers { it.setBearerAuth(token) }
+            .exchangeToMono { response ->
+                mono {
+                    if (retryUnauthorized && response.statusCode() == HttpStatus.UNAUTHORIZED) {
+                        response.releaseBody().awaitSingleOrNull()
+                        null
+                    } else {
+                        Reply(handler(response))
+                    }
+                }
+            }
+            .timeout(callTimeout)
+            .awaitSingleOrNull()
+    }
+
+    /**
+     * @return the cached access token or a new one if it is missing or about to expire
+     */
+    private suspend fun accessToken(): String {
+        cachedToken?.takeIf { it.isValid() }?.also { return it.value }
+        return tokenMutex.withLock {
+            // another coroutine may have refreshed the token while waiting for the lock
+            cachedToken?.takeIf { it.isValid() } ?: fetchAccessToken()
+        }.value
+    }
+
+    /**
+     * Replace a token rejected by Keycloak unless another coroutine has already replaced it
+     * @param rejectedToken token that has been rejected
+     * @return the new access token
+     */
+    private suspend fun refreshAccessToken(rejectedToken: String): String {
+        return tokenMutex.withLock {
+            cachedToken?.takeIf { it.value != rejectedToken && it.isValid() } ?: fetchAccessToken()
+        }.value
+    }
+
+    private suspend fun fetchAccessToken(): CachedToken {
+        val requestedAt = clock.instant()
+        val tokenResponse = webClient.post()
+            .uri("/realms/{realm}/protocol/openid-connect/token", realm)
+            .body(
+                BodyInserters.fromFormData("grant_type", CLIENT_CREDENTIALS)
+                    .with("client_id", clientId)
+                    .with("client_secret", clientSecret)
+            )
+            .exchangeToMono { response -> mono { response.bodyOrError<AccessTokenResponse>() } }
+            .timeout(callTimeout)
+            .awaitSingle()
+        return CachedToken(tokenResponse.token, requestedAt.plusSeconds(tokenResponse.expiresIn))
+            .also { cachedToken = it }
+    }
+
+    private fun CachedToken.isValid() = clock.instant().plus(tokenMinValidity).isBefore(expiresAt)
+
+    private suspend inline fun <reified T : Any> ClientResponse.bodyOrError(): T {
+        if (statusCode().isError) throw createException().awaitSingle()
+        return bodyToMono<T>().awaitSingle()
+    }
+
+    private suspend fun <T : Any> ClientResponse.bodyOrError(type: ParameterizedTypeReference<T>): T {
+        if (statusCode().isError) throw createException().awaitSingle()
+        return bodyToMono(type).awaitSingle()
+    }
+
+    private suspend fun ClientResponse.releaseOrError() {
+        if (statusCode().isError) throw createException().awaitSingle()
+        releaseBody().awaitSingleOrNull()
+    }
+
+    companion object {
+        private const val ADMIN_PATH = "/admin/realms/{realm}"
+        private val USER_LIST = object : ParameterizedTypeReference<List<UserRepresentation>>() {}
+        private val GROUP_LIST = object : ParameterizedTypeReference<List<GroupRepresentation>>() {}
+    }
+}
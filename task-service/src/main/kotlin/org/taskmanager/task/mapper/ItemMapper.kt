@@ -1,7 +1,10 @@
 package org.taskmanager.task.mapper
 
 import org.taskmanager.task.api.dto.*
+import org.taskmanager.task.exception.InvalidItemFieldException
 import org.taskmanager.task.model.Item
+import org.taskmanager.task.model.ItemField
+import org.taskmanager.task.model.ItemFilter
 import org.taskmanager.task.model.ItemStatus
 import org.taskmanager.task.model.Tag
 
@@ -16,6 +19,17 @@ fun Item.toItemDto() = ItemDto(
     lastModifiedDate = this.lastModifiedDate
 )
 
+fun Item.toItemDto(fields: Set<ItemField>) = ItemDto(
+    id = this.id,
+    version = this.version.takeIf { ItemField.VERSION in fields },
+    description = this.description.takeIf { ItemField.DESCRIPTION in fields },
+    status = this.status.takeIf { ItemField.STATUS in fields },
+    assignee = this.assignee?.takeIf { ItemField.ASSIGNEE in fields }?.toUserDto(),
+    tags = if (ItemField.TAGS in fields) this.tags?.map { it.toTagDto() } ?: listOf() else null,
+    createdDate = this.createdDate.takeIf { ItemField.CREATED_DATE in fields },
+    lastModifiedDate = this.lastModifiedDate.takeIf { ItemField.LAST_MODIFIED_DATE in fields }
+)
+
 fun ItemDto.toItem(assigneeId: Long?) = Item(
     id = this.id,
     version = this.version,
@@ -43,11 +57,28 @@ fun ItemUpdateDto.toItem(id: Long, version: Long?, assigneeId: Long?) = Item(
     tags = this.tagIds?.map { Tag(id = it) }
 )
 
-fun ItemPatchDto.toItem(item: Item, assigneeId: Long?) = Item(
-    id = item.id,
-    version = item.version,
-    description = this.description.orElse(item.description),
-    status = this.status.orElse(item.status),
+fun ItemFilterDto.toItemFilter(assigneeId: Long?) = ItemFilter(
+    statuses = this.statuses,
     assigneeId = assigneeId,
-    tags = this.tagIds.map { it.map(::Tag) }.orElse(item.tags)
-)
\ No newline at end of file
+    tagIds = this.tagIds,
+    tagMatch = this.tagMatch,
+    createdFrom = this.createdFrom,
+    createdTo = this.createdTo,
+    modifiedFrom = this.modifiedFrom,
+    modifiedTo = this.modifiedTo
+)
+
+/**
+ * Resolve the requested fields and relations, the id is always selected
+ * @param default fields if neither fields nor relations are requested
+ * @return the selected fields
+ */
+fun ItemFieldsDto.toItemFields(default: Set<ItemField>): Set<ItemField> {
+    if (this.fields == null && this.expand == null) return default
+    val fields = this.fields?.map { ItemField.ofProperty(it) ?: throw InvalidItemFieldException(it) }
+        ?: ItemField.COLUMNS
+    val relations = this.expand?.map { property ->
+        ItemField.ofProperty(property)?.takeIf { it.relation } ?: throw InvalidItemFieldException(property)
+    } ?: listOf()
+    return fields.toSet() + relations + ItemField.ID
+}
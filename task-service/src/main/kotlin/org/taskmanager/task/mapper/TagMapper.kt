@@ -1,6 +1,7 @@
 package org.taskmanager.task.mapper
 
 import org.taskmanager.task.api.dto.*
+import org.taskmanager.task.model.ItemTagView
 import org.taskmanager.task.model.Tag
 
 fun Tag.toTagDto() = TagDto(
@@ -11,6 +12,14 @@ fun Tag.toTagDto() = TagDto(
     lastModifiedDate = this.lastModifiedDate
 )
 
+fun ItemTagView.toTag() = Tag(
+    id = this.id,
+    version = this.version,
+    name = this.name,
+    createdDate = this.createdDate,
+    lastModifiedDate = this.lastModifiedDate
+)
+
 fun TagDto.toTag() = Tag(
     id = this.id,
     version = this.version,
@@ -28,9 +37,3 @@ fun TagUpdateDto.toTag(id: Long, version: Long?) = Tag(
     version = version,
     name = this.name
 )
-
-fun TagPatchDto.toTag(tag: Tag) = Tag(
-    id = tag.id,
-    version = tag.version,
-    name = this.name.orElse(tag.name)
-)
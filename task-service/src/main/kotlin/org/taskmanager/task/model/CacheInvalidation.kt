@@ -0,0 +1,11 @@
+package org.taskmanager.task.model
+
+/**
+ * Notification that a cached entity has changed and must be evicted by all replicas
+ */
+data class CacheInvalidation(
+    val entityType: CachedEntityType,
+
+    // id of the entity, the key of its cache entries
+    val id: String
+)
@@ -0,0 +1,12 @@
+package org.taskmanager.task.model
+
+enum class CachedEntityType {
+    // tags by id
+    TAG,
+
+    // ids of the tags of an item by item id
+    ITEM_TAGS,
+
+    // users by internal id and by Keycloak userId
+    USER
+}
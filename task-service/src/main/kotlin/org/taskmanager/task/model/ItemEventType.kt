@@ -0,0 +1,15 @@
+package org.taskmanager.task.model
+
+enum class ItemEventType {
+    // the item has been created
+    CREATED,
+
+    // the item or its tags have been changed
+    UPDATED,
+
+    // the item has been deleted
+    DELETED,
+
+    // events have been lost since the last event id, the client has to reload the items
+    RESET
+}
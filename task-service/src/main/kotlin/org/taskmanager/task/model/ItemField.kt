@@ -0,0 +1,23 @@
+package org.taskmanager.task.model
+
+/**
+ * Fields of an item that can be selected for a response.
+ * Columns are selected by their property name, relations are loaded with separate queries.
+ */
+enum class ItemField(val property: String, val relation: Boolean = false) {
+    ID("id"),
+    VERSION("version"),
+    DESCRIPTION("description"),
+    STATUS("status"),
+    ASSIGNEE("assignee", true),
+    TAGS("tags", true),
+    CREATED_DATE("createdDate"),
+    LAST_MODIFIED_DATE("lastModifiedDate");
+
+    companion object {
+        val ALL: Set<ItemField> = values().toSet()
+        val COLUMNS: Set<ItemField> = values().filterNot { it.relation }.toSet()
+
+        fun ofProperty(property: String) = values().firstOrNull { it.property == property }
+    }
+}
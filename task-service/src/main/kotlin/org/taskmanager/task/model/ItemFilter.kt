@@ -0,0 +1,25 @@
+package org.taskmanager.task.model
+
+import java.time.LocalDateTime
+
+/**
+ * Conditions an item must fulfil, null or empty conditions are ignored.
+ * The date ranges include the lower and exclude the upper bound.
+ */
+data class ItemFilter(
+    val statuses: Set<ItemStatus> = setOf(),
+
+    val assigneeId: Long? = null,
+
+    val tagIds: Set<Long> = setOf(),
+
+    val tagMatch: TagMatch = TagMatch.ANY,
+
+    val createdFrom: LocalDateTime? = null,
+
+    val createdTo: LocalDateTime? = null,
+
+    val modifiedFrom: LocalDateTime? = null,
+
+    val modifiedTo: LocalDateTime? = null
+)
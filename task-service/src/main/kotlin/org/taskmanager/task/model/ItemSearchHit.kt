@@ -0,0 +1,10 @@
+package org.taskmanager.task.model
+
+/**
+ * Item found by a text search together with its relevance
+ */
+data class ItemSearchHit(
+    val item: Item,
+
+    val rank: Float
+)
@@ -0,0 +1,20 @@
+package org.taskmanager.task.model
+
+import java.time.LocalDateTime
+
+/**
+ * Read-only view of a tag joined with the id of the item it is attached to
+ */
+data class ItemTagView(
+    val itemId: Long,
+
+    val id: Long,
+
+    val version: Long? = null,
+
+    val name: String? = null,
+
+    val createdDate: LocalDateTime? = null,
+
+    val lastModifiedDate: LocalDateTime? = null
+)
@@ -0,0 +1,22 @@
+package org.taskmanager.task.model
+
+import org.springframework.data.annotation.CreatedDate
+import org.springframework.data.annotation.Id
+import org.springframework.data.relational.core.mapping.Table
+import java.time.LocalDateTime
+import javax.validation.constraints.NotNull
+
+/**
+ * Record of a deleted item that allows clients to synchronize deletions
+ */
+@Table
+data class ItemTombstone(
+    @Id
+    val id: Long? = null,
+
+    @NotNull
+    val itemId: Long? = null,
+
+    @CreatedDate
+    val deletedDate: LocalDateTime? = null
+)
@@ -0,0 +1,9 @@
+package org.taskmanager.task.model
+
+enum class TagMatch {
+    // the item has at least one of the tags
+    ANY,
+
+    // the item has all the tags
+    ALL
+}
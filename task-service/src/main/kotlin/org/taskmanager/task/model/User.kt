@@ -37,6 +37,9 @@ data class User(
     @Size(max = 100)
     var lastName: String? = null,
 
+    // time of the latest Keycloak event the user has been synchronized with
+    var keycloakEventTime: Long? = null,
+
     @CreatedDate
     val createdDate: LocalDateTime? = null,
 
@@ -0,0 +1,27 @@
+package org.taskmanager.task.repository
+
+import io.r2dbc.spi.Row
+import org.taskmanager.task.api.dto.TagDto
+import org.taskmanager.task.api.dto.UserDto
+import java.time.LocalDateTime
+
+// Read-only projections: the columns are copied straight into the dtos without materializing the entities.
+// The prefix selects the aliased columns of a joined table.
+
+internal fun Row.toTagDto(prefix: String = "") = TagDto(
+    id = get("${prefix}id", Number::class.java)?.toLong(),
+    version = get("${prefix}version", Number::class.java)?.toLong(),
+    name = get("${prefix}name", String::class.java),
+    createdDate = get("${prefix}created_date", LocalDateTime::class.java),
+    lastModifiedDate = get("${prefix}last_modified_date", LocalDateTime::class.java)
+)
+
+internal fun Row.toUserDto(prefix: String = "") = UserDto(
+    userId = get("${prefix}user_id", String::class.java),
+    version = get("${prefix}version", Number::class.java)?.toLong(),
+    email = get("${prefix}email", String::class.java),
+    firstName = get("${prefix}first_name", String::class.java),
+    lastName = get("${prefix}last_name", String::class.java),
+    createdDate = get("${prefix}created_date", LocalDateTime::class.java),
+    lastModifiedDate = get("${prefix}last_modified_date", LocalDateTime::class.java)
+)
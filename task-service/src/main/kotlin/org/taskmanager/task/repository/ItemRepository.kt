@@ -2,13 +2,44 @@ package org.taskmanager.task.repository
 
 import kotlinx.coroutines.flow.Flow
 import org.springframework.data.domain.Pageable
+import org.springframework.data.r2dbc.repository.Query
 import org.springframework.data.repository.kotlin.CoroutineSortingRepository
 import org.springframework.stereotype.Repository
 import org.taskmanager.task.model.Item
+import java.time.LocalDateTime
 
 @Repository
-interface ItemRepository : CoroutineSortingRepository<Item, Long> {
+interface ItemRepository : CoroutineSortingRepository<Item, Long>, ItemRepositoryCustom {
     fun findAllBy(pageable: Pageable): Flow<Item>
     fun findByAssigneeId(assigneeId: Long): Flow<Item>
+    fun findAllByOrderById(): Flow<Item>
     suspend fun deleteByAssigneeId(assigneeId: Long)
+
+    // version of an item without loading it to check entity tags
+    @Query("SELECT version FROM item WHERE id = :id")
+    suspend fun findVersionById(id: Long): Long?
+
+    // Keyset pagination ordered by (lastModifiedDate, id)
+
+    @Query("SELECT $COLUMNS FROM item ORDER BY last_modified_date, id LIMIT :limit")
+    fun findFirstKeysetPage(limit: Int): Flow<Item>
+
+    @Query(
+        "SELECT $COLUMNS FROM item WHERE (last_modified_date, id) > (:lastModifiedDate, :id) " +
+                "ORDER BY last_modified_date, id LIMIT :limit"
+    )
+    fun findKeysetPageAfter(lastModifiedDate: LocalDateTime, id: Long, limit: Int): Flow<Item>
+
+    // Delta synchronization ordered by (lastModifiedDate, id) up to the commit-lag horizon
+
+    @Query(
+        "SELECT $COLUMNS FROM item WHERE (last_modified_date, id) > (:lastModifiedDate, :id) " +
+                "AND last_modified_date < :until ORDER BY last_modified_date, id LIMIT :limit"
+    )
+    fun findChangesAfter(lastModifiedDate: LocalDateTime, id: Long, until: LocalDateTime, limit: Int): Flow<Item>
+
+    companion object {
+        // the columns of the entity, the full-text column of PostgreSQL is never read
+        const val COLUMNS = "id, version, description, status, assignee_id, created_date, last_modified_date"
+    }
 }
@@ -0,0 +1,83 @@
+package org.taskmanager.task.repository
+
+import kotlinx.coroutines.flow.Flow
+import org.springframework.data.domain.Pageable
+import org.taskmanager.task.api.dto.ItemDto
+import org.taskmanager.task.model.Item
+import org.taskmanager.task.model.ItemField
+import org.taskmanager.task.model.ItemFilter
+import org.taskmanager.task.model.ItemSearchHit
+import java.time.LocalDateTime
+
+interface ItemRepositoryCustom {
+
+    /**
+     * Insert new items with a single batched statement
+     * @param items items without id
+     * @return the inserted items with their generated ids in the order of the given items
+     */
+    suspend fun insertAll(items: List<Item>): List<Item>
+
+    /**
+     * Update all properties of an item if its version matches,
+     * the version check and the increment happen in the same statement
+     * @param id id of the item
+     * @param version expected version or null to match any version
+     * @param lastModifiedDate new modification date
+     * @return the updated item without the related entities or null if the item is missing or has another version
+     */
+    suspend fun updateIfVersionMatches(
+        id: Long, version: Long?, description: String, status: String, assigneeId: Long?, lastModifiedDate: LocalDateTime
+    ): Item?
+
+    /**
+     * Update the properties of an item that are not null if its version matches,
+     * the version check and the increment happen in the same statement
+     * @param id id of the item
+     * @param version expected version or null to match any version
+     * @param lastModifiedDate new modification date
+     * @return the updated item without the related entities or null if the item is missing or has another version
+     */
+    suspend fun patchIfVersionMatches(
+        id: Long, version: Long?, description: String?, status: String?, assigneeId: Long?, lastModifiedDate: LocalDateTime
+    ): Item?
+
+    /**
+     * Search items whose description contains all words of a query, ordered by descending rank and id.
+     * PostgreSQL uses the full-text index of the description, other databases fall back to a case-insensitive
+     * regular expression per word with a constant rank. Both match whole words only, but PostgreSQL also splits
+     * the words of the query at punctuation while the fallback matches them literally.
+     * @param words words to search for
+     * @param afterRank rank of the last hit of the previous page or null for the first page
+     * @param afterId id of the last hit of the previous page or null for the first page
+     * @param limit maximum number of hits
+     * @return flow of hits
+     */
+    fun search(words: List<String>, afterRank: Float?, afterId: Long?, limit: Int): Flow<ItemSearchHit>
+
+    /**
+     * Get a page of the items matching a filter
+     * @param filter conditions the items must fulfil
+     * @param pageable page definition, the sort properties must be properties of [Item]
+     * @param fields fields to be read, the columns of the other fields are not selected
+     * @return flow of items
+     */
+    fun findAllBy(filter: ItemFilter, pageable: Pageable, fields: Set<ItemField> = ItemField.ALL): Flow<Item>
+
+    /**
+     * Get a page of the items matching a filter together with their assignees and tags in one query.
+     * The rows are projected straight to dtos since the page is only read.
+     * @param filter conditions the items must fulfil
+     * @param pageable page definition, the sort properties must be properties of [Item]
+     * @return the items with their related objects (assignee, tags ordered by name)
+     */
+    suspend fun findAllWithRelations(filter: ItemFilter, pageable: Pageable): List<ItemDto>
+
+    /**
+     * Count the items matching a filter
+     * @param filter conditions the items must fulfil
+     * @return number of items
+     */
+    suspend fun count(filter: ItemFilter): Long
+
+}
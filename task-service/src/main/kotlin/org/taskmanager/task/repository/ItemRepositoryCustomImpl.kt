@@ -0,0 +1,282 @@
+package org.taskmanager.task.repository
+
+import io.r2dbc.spi.Connection
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.collect
+import org.springframework.data.domain.Pageable
+import kotlinx.coroutines.reactive.asFlow
+import kotlinx.coroutines.flow.toList
+import org.springframework.data.r2dbc.convert.R2dbcConverter
+import org.springframework.r2dbc.core.DatabaseClient
+import org.springframework.r2dbc.core.awaitOne
+import org.springframework.r2dbc.core.awaitOneOrNull
+import org.springframework.r2dbc.core.awaitRowsUpdated
+import org.springframework.r2dbc.core.awaitSingle
+import org.springframework.r2dbc.core.flow
+import org.taskmanager.task.api.dto.ItemDto
+import org.taskmanager.task.api.dto.TagDto
+import org.taskmanager.task.model.Item
+import org.taskmanager.task.model.ItemField
+import org.taskmanager.task.model.ItemFilter
+import org.taskmanager.task.model.ItemSearchHit
+import org.taskmanager.task.model.ItemStatus
+import org.taskmanager.task.model.TagMatch
+import reactor.core.publisher.Flux
+import java.time.LocalDateTime
+import java.time.temporal.ChronoUnit
+import java.util.regex.Pattern
+
+class ItemRepositoryCustomImpl(
+    private val databaseClient: DatabaseClient,
+    private val r2dbcConverter: R2dbcConverter
+) : ItemRepositoryCustom {
+
+    // the full-text column and index only exist on PostgreSQL (see changelog 08), it also supports UPDATE ... RETURNING
+    private val postgresql by lazy { databaseClient.connectionFactory.metadata.name == "PostgreSQL" }
+
+    override suspend fun insertAll(items: List<Item>): List<Item> {
+        if (items.isEmpty()) return items
+        // truncate to the precision of the timestamp columns so the returned items match the stored rows
+        val now = LocalDateTime.now().truncatedTo(ChronoUnit.MICROS)
+        val generatedIds = databaseClient.inConnectionMany { connection ->
+            Flux.from(insertStatement(connection, items, now).execute())
+                .concatMap { result -> result.map { row, _ -> row.get(0, Number::class.java)!!.toLong() } }
+        }.asFlow().toList()
+        return items.zip(generatedIds) { item, id ->
+            item.copy(id = id, version = 0, createdDate = now, lastModifiedDate = now)
+        }
+    }
+
+    private fun insertStatement(connection: Connection, items: List<Item>, now: LocalDateTime) =
+        connection.createStatement(
+            "INSERT INTO item (version, description, status, assignee_id, created_date, last_modified_date) " +
+                    "VALUES ($1, $2, $3, $4, $5, $6)"
+        ).also { statement ->
+            items.forEachIndexed { index, item ->
+                if (index > 0) statement.add()
+                statement.bind(0, 0L)
+                statement.bind(1, item.description!!)
+                statement.bind(2, item.status.name)
+                item.assigneeId?.also { statement.bind(3, it) }
+                    ?: statement.bindNull(3, Long::class.javaObjectType)
+                statement.bind(4, now)
+                statement.bind(5, now)
+            }
+            statement.returnGeneratedValues("id")
+        }
+
+    override suspend fun updateIfVersionMatches(
+        id: Long, version: Long?, description: String, status: String, assigneeId: Long?, lastModifiedDate: LocalDateTime
+    ): Item? {
+        return updateIfVersionMatches(
+            id, version, lastModifiedDate, "description = :description, status = :status, assignee_id = :assigneeId"
+        ) { spec ->
+            spec.bind("description", description)
+                .bind("status", status)
+                .bindNullable("assigneeId", assigneeId, Long::class.javaObjectType)
+        }
+    }
+
+    override suspend fun patchIfVersionMatches(
+        id: Long, version: Long?, description: String?, status: String?, assigneeId: Long?, lastModifiedDate: LocalDateTime
+    ): Item? {
+        return updateIfVersionMatches(
+            id, version, lastModifiedDate,
+            "description = COALESCE(:description, description), status = COALESCE(:status, status), " +
+                    "assignee_id = COALESCE(:assigneeId, assignee_id)"
+        ) { spec ->
+            spec.bindNullable("description", description, String::class.java)
+                .bindNullable("status", status, String::class.java)
+                .bindNullable("assigneeId", assigneeId, Long::class.javaObjectType)
+        }
+    }
+
+    /**
+     * Run a conditional update of an item and get the updated row.
+     * PostgreSQL returns the row from the update statement, other databases read it back with a second query.
+     * @param assignments assignments of the changed columns
+     * @param bind function binding the parameters of the assignments
+     * @return the updated item or null if no row has been updated
+     */
+    private suspend fun updateIfVersionMatches(
+        id: Long,
+        version: Long?,
+        lastModifiedDate: LocalDateTime,
+        assignments: String,
+        bind: (DatabaseClient.GenericExecuteSpec) -> DatabaseClient.GenericExecuteSpec
+    ): Item? {
+        val update = "UPDATE item SET version = version + 1, $assignments, last_modified_date = :lastModifiedDate " +
+                "WHERE id = :id AND version = COALESCE(:version, version)"
+        val spec = bind(databaseClient.sql(if (postgresql) "$update RETURNING ${selectList(ItemField.ALL)}" else update))
+            .bind("id", id)
+            .bindNullable("version", version, Long::class.javaObjectType)
+            .bind("lastModifiedDate", lastModifiedDate)
+        if (postgresql) {
+            return spec.map { row, metadata -> r2dbcConverter.read(Item::class.java, row, metadata) }.awaitOneOrNull()
+        }
+        if (spec.fetch().awaitRowsUpdated() == 0) return null
+        return databaseClient.sql("SELECT ${selectList(ItemField.ALL)} FROM item WHERE id = :id")
+            .bind("id", id)
+            .map { row, metadata -> r2dbcConverter.read(Item::class.java, row, metadata) }
+            .awaitOne()
+    }
+
+    override fun search(words: List<String>, afterRank: Float?, afterId: Long?, limit: Int): Flow<ItemSearchHit> {
+        val (from, match, rank) = if (postgresql) {
+            Triple(
+                "item, plainto_tsquery('simple', :query) query",
+                "description_tsv @@ query",
+                "ts_rank(description_tsv, query)"
+            )
+        } else {
+            // whole words like the tokens of the full-text search
+            Triple(
+                "item",
+                words.indices.joinToString(" AND ") { "REGEXP_LIKE(description, :word$it, 'i')" },
+                "CAST(0 AS REAL)"
+            )
+        }
+        val seek = if (afterRank != null && afterId != null) {
+            "AND ($rank < :afterRank OR ($rank = :afterRank AND id > :afterId))"
+        } else ""
+        var spec = databaseClient.sql(
+            "SELECT ${selectList(ItemField.ALL)}, $rank AS search_rank FROM $from WHERE $match $seek " +
+                    "ORDER BY search_rank DESC, id LIMIT :limit"
+        ).bind("limit", limit)
+        spec = if (postgresql) {
+            spec.bind("query", words.joinToString(" "))
+        } else {
+            words.foldIndexed(spec) { index, s, word ->
+                s.bind("word$index", "(?<![\\p{L}\\p{N}])${Pattern.quote(word)}(?![\\p{L}\\p{N}])")
+            }
+        }
+        if (seek.isNotEmpty()) spec = spec.bind("afterRank", afterRank!!).bind("afterId", afterId!!)
+        return spec.map { row, metadata ->
+            ItemSearchHit(r2dbcConverter.read(Item::class.java, row, metadata), row.get("search_rank", Number::class.java)!!.toFloat())
+        }.flow()
+    }
+
+    override fun findAllBy(filter: ItemFilter, pageable: Pageable, fields: Set<ItemField>): Flow<Item> {
+        val (condition, parameters) = filterCondition(filter)
+        val sql = "SELECT ${selectList(fields)} FROM item WHERE $condition " +
+                "ORDER BY ${r2dbcConverter.orderBy(Item::class.java, pageable)}${limitClause(pageable)}"
+        return parameters.entries.fold(databaseClient.sql(sql)) { spec, (name, value) -> spec.bind(name, value) }
+            .map { row, metadata -> r2dbcConverter.read(Item::class.java, row, metadata) }
+            .flow()
+    }
+
+    override suspend fun findAllWithRelations(filter: ItemFilter, pageable: Pageable): List<ItemDto> {
+        val (condition, parameters) = filterCondition(filter)
+        // one row per item and tag: the page of items is selected first and then joined with its relations
+        val sql = "SELECT i.*, " +
+                "u.id AS u_id, u.version AS u_version, u.user_id AS u_user_id, u.email AS u_email, " +
+                "u.first_name AS u_first_name, u.last_name AS u_last_name, " +
+                "u.created_date AS u_created_date, u.last_modified_date AS u_last_modified_date, " +
+                "t.id AS t_id, t.version AS t_version, t.name AS t_name, " +
+                "t.created_date AS t_created_date, t.last_modified_date AS t_last_modified_date " +
+                "FROM (SELECT ${selectList(ItemField.ALL)} FROM item WHERE $condition " +
+                "ORDER BY ${r2dbcConverter.orderBy(Item::class.java, pageable)}${limitClause(pageable)}) i " +
+                "LEFT JOIN users u ON u.id = i.assignee_id " +
+                "LEFT JOIN item_tag it ON it.item_id = i.id " +
+                "LEFT JOIN tag t ON t.id = it.tag_id " +
+                "ORDER BY ${r2dbcConverter.orderBy(Item::class.java, pageable, "i")}, t.name"
+        // the values of a row can only be read within the mapping function,
+        // they are mapped straight to the dtos without materializing the entities
+        val rows = parameters.entries.fold(databaseClient.sql(sql)) { spec, (name, value) -> spec.bind(name, value) }
+            .map { row ->
+                val item = ItemDto(
+                    id = row.get("id", Number::class.java)!!.toLong(),
+                    version = row.get("version", Number::class.java)?.toLong(),
+                    description = row.get("description", String::class.java),
+                    status = row.get("status", String::class.java)?.let(ItemStatus::valueOf),
+                    createdDate = row.get("created_date", LocalDateTime::class.java),
+                    lastModifiedDate = row.get("last_modified_date", LocalDateTime::class.java)
+                )
+                val assignee = row.get("u_id", Number::class.java)?.let { row.toUserDto("u_") }
+                val tag = row.get("t_id", Number::class.java)?.let { row.toTagDto("t_") }
+                Triple(item, assignee, tag)
+            }
+            .flow()
+        // fold the rows of an item into one item with its assignee and tags
+        val itemsById = LinkedHashMap<Long, ItemDto>()
+        val tagsByItemId = HashMap<Long, MutableList<TagDto>>()
+        rows.collect { (rowItem, assignee, tag) ->
+            itemsById.getOrPut(rowItem.id!!) {
+                rowItem.apply {
+                    this.assignee = assignee
+                    this.tags = tagsByItemId.getOrPut(rowItem.id) { ArrayList() }
+                }
+            }
+            tag?.also { tagsByItemId[rowItem.id]!!.add(it) }
+        }
+        return itemsById.values.toList()
+    }
+
+    override suspend fun count(filter: ItemFilter): Long {
+        val (condition, parameters) = filterCondition(filter)
+        return parameters.entries.fold(
+            databaseClient.sql("SELECT COUNT(*) FROM item WHERE $condition")
+        ) { spec, (name, value) -> spec.bind(name, value) }
+            .map { row -> row.get(0, Number::class.java)!!.toLong() }
+            .awaitSingle()
+    }
+
+    /**
+     * Translate the fields of an item into the columns to be selected.
+     * The id is always selected and the assignee requires its foreign key.
+     * @param fields fields to be read
+     * @return the select list without the keyword
+     */
+    private fun selectList(fields: Set<ItemField>): String {
+        val itemEntity = r2dbcConverter.mappingContext.getRequiredPersistentEntity(Item::class.java)
+        val properties = listOf("id") + fields.filterNot { it.relation }.map { it.property } +
+                listOfNotNull("assigneeId".takeIf { ItemField.ASSIGNEE in fields })
+        return properties.distinct().joinToString { itemEntity.getRequiredPersistentProperty(it).columnName.reference }
+    }
+
+    /**
+     * Translate a filter into an SQL condition on the item table
+     * @param filter conditions the items must fulfil
+     * @return the condition and the values of its named parameters
+     */
+    private fun filterCondition(filter: ItemFilter): Pair<String, Map<String, Any>> {
+        val conditions = mutableListOf("1 = 1")
+        val parameters = mutableMapOf<String, Any>()
+        if (filter.statuses.isNotEmpty()) {
+            conditions += "status IN (:statuses)"
+            parameters["statuses"] = filter.statuses.map { it.name }
+        }
+        filter.assigneeId?.also {
+            conditions += "assignee_id = :assigneeId"
+            parameters["assigneeId"] = it
+        }
+        if (filter.tagIds.isNotEmpty()) {
+            // semi-join on the item_tag(tag_id, item_id) index
+            conditions += when (filter.tagMatch) {
+                TagMatch.ANY -> "id IN (SELECT item_id FROM item_tag WHERE tag_id IN (:tagIds))"
+                TagMatch.ALL -> "id IN (SELECT item_id FROM item_tag WHERE tag_id IN (:tagIds) " +
+                        "GROUP BY item_id HAVING COUNT(*) = :tagCount)"
+            }
+            parameters["tagIds"] = filter.tagIds
+            if (filter.tagMatch == TagMatch.ALL) parameters["tagCount"] = filter.tagIds.size
+        }
+        filter.createdFrom?.also {
+            conditions += "created_date >= :createdFrom"
+            parameters["createdFrom"] = it
+        }
+        filter.createdTo?.also {
+            conditions += "created_date < :createdTo"
+            parameters["createdTo"] = it
+        }
+        filter.modifiedFrom?.also {
+            conditions += "last_modified_date >= :modifiedFrom"
+            parameters["modifiedFrom"] = it
+        }
+        filter.modifiedTo?.also {
+            conditions += "last_modified_date < :modifiedTo"
+            parameters["modifiedTo"] = it
+        }
+        return Pair(conditions.joinToString(" AND "), parameters)
+    }
+
+}
@@ -7,10 +7,12 @@ import org.taskmanager.task.model.ItemTag
 
 
 @Repository
-interface ItemTagRepository : CoroutineCrudRepository<ItemTag, Long> {
+interface ItemTagRepository : CoroutineCrudRepository<ItemTag, Long>, ItemTagRepositoryCustom {
 
     fun findAllByItemId(itemId: Long): Flow<ItemTag>
 
+    fun findAllByItemIdIn(itemIds: Collection<Long>): Flow<ItemTag>
+
     fun findAllByTagId(tagId: Long): Flow<ItemTag>
 
     suspend fun deleteAllByItemId(itemId: Long)
@@ -0,0 +1,21 @@
+package org.taskmanager.task.repository
+
+import org.taskmanager.task.model.ItemTag
+
+interface ItemTagRepositoryCustom {
+
+    /**
+     * Insert new item-tags using multi-row insert statements
+     * @param itemTags item-tags without id
+     */
+    suspend fun insertAll(itemTags: List<ItemTag>)
+
+    /**
+     * Replace the tags of an item with a number of statements that only grows with chunks of 1000 tags.
+     * Item-tags not in tagIds are deleted and missing ones are inserted, existing ones remain untouched.
+     * @param itemId id of the item
+     * @param tagIds ids of the tags the item should be linked to
+     */
+    suspend fun replaceTagIds(itemId: Long, tagIds: Collection<Long>)
+
+}
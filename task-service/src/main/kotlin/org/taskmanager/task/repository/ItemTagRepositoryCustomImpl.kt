@@ -0,0 +1,65 @@
+package org.taskmanager.task.repository
+
+import kotlinx.coroutines.flow.toSet
+import org.springframework.r2dbc.core.DatabaseClient
+import org.springframework.r2dbc.core.await
+import org.springframework.r2dbc.core.flow
+import org.taskmanager.task.model.ItemTag
+
+class ItemTagRepositoryCustomImpl(private val databaseClient: DatabaseClient) : ItemTagRepositoryCustom {
+
+    companion object {
+        // keeps the number of bind parameters of a statement far below the limits of the database
+        private const val MAX_ROWS_PER_STATEMENT = 1000
+    }
+
+    override suspend fun insertAll(itemTags: List<ItemTag>) {
+        itemTags.chunked(MAX_ROWS_PER_STATEMENT).forEach { chunk ->
+            val values = chunk.indices.joinToString { "(:itemId$it, :tagId$it)" }
+            chunk.foldIndexed(databaseClient.sql("INSERT INTO item_tag (item_id, tag_id) VALUES $values")) { index, spec, itemTag ->
+                spec.bind("itemId$index", itemTag.itemId!!).bind("tagId$index", itemTag.tagId!!)
+            }.await()
+        }
+    }
+
+    override suspend fun replaceTagIds(itemId: Long, tagIds: Collection<Long>) {
+        if (tagIds.isEmpty()) {
+            databaseClient.sql("DELETE FROM item_tag WHERE item_id = :itemId")
+                .bind("itemId", itemId)
+                .await()
+            return
+        }
+        val distinctTagIds = tagIds.distinct()
+        if (distinctTagIds.size <= MAX_ROWS_PER_STATEMENT) {
+            databaseClient.sql("DELETE FROM item_tag WHERE item_id = :itemId AND tag_id NOT IN (:tagIds)")
+                .bind("itemId", itemId)
+                .bind("tagIds", distinctTagIds)
+                .await()
+        } else {
+            // a NOT IN list cannot be split, the unlinked tags are deleted by chunks of their ids instead
+            val keptTagIds = distinctTagIds.toSet()
+            val unlinkedTagIds = databaseClient.sql("SELECT tag_id FROM item_tag WHERE item_id = :itemId")
+                .bind("itemId", itemId)
+                .map { row -> row.get("tag_id", Number::class.java)!!.toLong() }
+                .flow()
+                .toSet() - keptTagIds
+            unlinkedTagIds.chunked(MAX_ROWS_PER_STATEMENT).forEach { chunk ->
+                databaseClient.sql("DELETE FROM item_tag WHERE item_id = :itemId AND tag_id IN (:tagIds)")
+                    .bind("itemId", itemId)
+                    .bind("tagIds", chunk)
+                    .await()
+            }
+        }
+        // relies on the unique constraint on (item_id, tag_id) to skip the already linked tags
+        distinctTagIds.chunked(MAX_ROWS_PER_STATEMENT).forEach { chunk ->
+            val values = chunk.indices.joinToString { "(:itemId, :tagId$it)" }
+            chunk.foldIndexed(
+                databaseClient.sql("INSERT INTO item_tag (item_id, tag_id) VALUES $values ON CONFLICT DO NOTHING")
+                    .bind("itemId", itemId)
+            ) { index, spec, tagId ->
+                spec.bind("tagId$index", tagId)
+            }.await()
+        }
+    }
+
+}
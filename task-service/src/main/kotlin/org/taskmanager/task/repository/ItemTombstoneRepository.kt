@@ -0,0 +1,31 @@
+package org.taskmanager.task.repository
+
+import kotlinx.coroutines.flow.Flow
+import org.springframework.data.r2dbc.repository.Modifying
+import org.springframework.data.r2dbc.repository.Query
+import org.springframework.data.repository.kotlin.CoroutineCrudRepository
+import org.springframework.stereotype.Repository
+import org.taskmanager.task.model.ItemTombstone
+import java.time.LocalDateTime
+
+@Repository
+interface ItemTombstoneRepository : CoroutineCrudRepository<ItemTombstone, Long> {
+
+    @Modifying
+    @Query("INSERT INTO item_tombstone (item_id, deleted_date) SELECT id, :deletedDate FROM item WHERE assignee_id = :assigneeId")
+    suspend fun insertForAssigneeId(assigneeId: Long, deletedDate: LocalDateTime): Int
+
+    @Modifying
+    @Query("DELETE FROM item_tombstone WHERE deleted_date < :deletedDate")
+    suspend fun deleteByDeletedDateBefore(deletedDate: LocalDateTime): Int
+
+    // Delta synchronization ordered by (deletedDate, id) up to the commit-lag horizon
+
+    @Query(
+        "SELECT id, item_id, deleted_date FROM item_tombstone " +
+                "WHERE (deleted_date, id) > (:deletedDate, :id) AND deleted_date < :until " +
+                "ORDER BY deleted_date, id LIMIT :limit"
+    )
+    fun findChangesAfter(deletedDate: LocalDateTime, id: Long, until: LocalDateTime, limit: Int): Flow<ItemTombstone>
+
+}
@@ -0,0 +1,40 @@
+package org.taskmanager.task.repository
+
+import org.springframework.data.domain.Pageable
+import org.springframework.data.r2dbc.convert.R2dbcConverter
+import org.springframework.r2dbc.core.DatabaseClient
+import org.taskmanager.task.exception.InvalidSortPropertyException
+
+/**
+ * Translate the sort of a page into an SQL order by clause with the id as last criterion
+ * @param entityType entity whose properties are referenced by the sort
+ * @param pageable page definition, the sort properties must be properties of the entity
+ * @param tableAlias alias of the entity table or null
+ * @return the order by clause without the keywords
+ */
+internal fun R2dbcConverter.orderBy(entityType: Class<*>, pageable: Pageable, tableAlias: String? = null): String {
+    val entity = mappingContext.getRequiredPersistentEntity(entityType)
+    val prefix = tableAlias?.let { "$it." } ?: ""
+    val columns = pageable.sort.map { order ->
+        val property = entity.getPersistentProperty(order.property)
+            ?.takeUnless { it.isTransient }
+            ?: throw InvalidSortPropertyException(order.property)
+        "$prefix${property.columnName.reference} ${order.direction.name}"
+    }.toList() + "${prefix}id"
+    return columns.joinToString()
+}
+
+/**
+ * Translate a page into an SQL limit clause
+ * @param pageable page definition
+ * @return the limit clause with a leading blank or an empty string if the pageable is unpaged
+ */
+internal fun limitClause(pageable: Pageable) =
+    if (pageable.isPaged) " LIMIT ${pageable.pageSize} OFFSET ${pageable.offset}" else ""
+
+/**
+ * Bind a parameter that may be null
+ * @param type type of the parameter, required to bind null
+ */
+internal fun DatabaseClient.GenericExecuteSpec.bindNullable(name: String, value: Any?, type: Class<*>) =
+    if (value != null) bind(name, value) else bindNull(name, type)
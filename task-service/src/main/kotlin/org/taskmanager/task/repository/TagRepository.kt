@@ -5,14 +5,30 @@ import org.springframework.data.domain.Pageable
 import org.springframework.data.r2dbc.repository.Query
 import org.springframework.data.repository.kotlin.CoroutineSortingRepository
 import org.springframework.stereotype.Repository
+import org.taskmanager.task.model.ItemTagView
 import org.taskmanager.task.model.Tag
 
 @Repository
-interface TagRepository : CoroutineSortingRepository<Tag, Long> {
+interface TagRepository : CoroutineSortingRepository<Tag, Long>, TagRepositoryCustom {
 
     fun findAllBy(pageable: Pageable): Flow<Tag>
 
+    // version of a tag to check entity tags
+
+    @Query("SELECT version FROM tag WHERE id = :id")
+    suspend fun findVersionById(id: Long): Long?
+
+    // Keyset pagination ordered by (name, id)
+
+    @Query("SELECT * FROM tag ORDER BY name, id LIMIT :limit")
+    fun findFirstKeysetPage(limit: Int): Flow<Tag>
+
+    @Query("SELECT * FROM tag WHERE (name, id) > (:name, :id) ORDER BY name, id LIMIT :limit")
+    fun findKeysetPageAfter(name: String, id: Long, limit: Int): Flow<Tag>
+
     @Query("SELECT t.* FROM tag t INNER JOIN item_tag it on t.id = it.tag_id WHERE it.item_id = :item_id ORDER BY t.name")
     fun findTagsByItemId(itemId: Long): Flow<Tag>
 
+    @Query("SELECT it.item_id, t.* FROM tag t INNER JOIN item_tag it on t.id = it.tag_id WHERE it.item_id IN (:itemIds) ORDER BY t.name")
+    fun findItemTagViewsByItemIds(itemIds: Collection<Long>): Flow<ItemTagView>
 }
@@ -0,0 +1,28 @@
+package org.taskmanager.task.repository
+
+import kotlinx.coroutines.flow.Flow
+import org.springframework.data.domain.Pageable
+import org.taskmanager.task.api.dto.TagDto
+import org.taskmanager.task.model.Tag
+import java.time.LocalDateTime
+
+interface TagRepositoryCustom {
+
+    /**
+     * Get a page of tags mapped straight from the rows to dtos
+     * @param pageable page definition, the sort properties must be properties of [org.taskmanager.task.model.Tag]
+     * @return flow of tags
+     */
+    fun findAllProjectedBy(pageable: Pageable): Flow<TagDto>
+
+    /**
+     * Update a tag if its version matches, the version check and the increment happen in the same statement
+     * @param id id of the tag
+     * @param version expected version or null to match any version
+     * @param name new name or null to keep the stored one
+     * @param lastModifiedDate new modification date
+     * @return the updated tag or null if the tag is missing or has another version
+     */
+    suspend fun updateIfVersionMatches(id: Long, version: Long?, name: String?, lastModifiedDate: LocalDateTime): Tag?
+
+}
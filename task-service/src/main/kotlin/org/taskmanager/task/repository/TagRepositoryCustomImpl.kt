@@ -0,0 +1,51 @@
+package org.taskmanager.task.repository
+
+import kotlinx.coroutines.flow.Flow
+import org.springframework.data.domain.Pageable
+import org.springframework.data.r2dbc.convert.R2dbcConverter
+import org.springframework.r2dbc.core.DatabaseClient
+import org.springframework.r2dbc.core.awaitOne
+import org.springframework.r2dbc.core.awaitOneOrNull
+import org.springframework.r2dbc.core.awaitRowsUpdated
+import org.springframework.r2dbc.core.flow
+import org.taskmanager.task.api.dto.TagDto
+import org.taskmanager.task.model.Tag
+import java.time.LocalDateTime
+
+class TagRepositoryCustomImpl(
+    private val databaseClient: DatabaseClient,
+    private val r2dbcConverter: R2dbcConverter
+) : TagRepositoryCustom {
+
+    // PostgreSQL supports UPDATE ... RETURNING
+    private val postgresql by lazy { databaseClient.connectionFactory.metadata.name == "PostgreSQL" }
+
+    override fun findAllProjectedBy(pageable: Pageable): Flow<TagDto> =
+        databaseClient.sql(
+            "SELECT * FROM tag ORDER BY ${r2dbcConverter.orderBy(Tag::class.java, pageable)}${limitClause(pageable)}"
+        )
+            .map { row -> row.toTagDto() }
+            .flow()
+
+    /**
+     * PostgreSQL returns the row from the update statement, other databases read it back with a second query
+     */
+    override suspend fun updateIfVersionMatches(id: Long, version: Long?, name: String?, lastModifiedDate: LocalDateTime): Tag? {
+        val update = "UPDATE tag SET version = version + 1, name = COALESCE(:name, name), " +
+                "last_modified_date = :lastModifiedDate WHERE id = :id AND version = COALESCE(:version, version)"
+        val spec = databaseClient.sql(if (postgresql) "$update RETURNING *" else update)
+            .bind("id", id)
+            .bindNullable("version", version, Long::class.javaObjectType)
+            .bindNullable("name", name, String::class.java)
+            .bind("lastModifiedDate", lastModifiedDate)
+        if (postgresql) {
+            return spec.map { row, metadata -> r2dbcConverter.read(Tag::class.java, row, metadata) }.awaitOneOrNull()
+        }
+        if (spec.fetch().awaitRowsUpdated() == 0) return null
+        return databaseClient.sql("SELECT * FROM tag WHERE id = :id")
+            .bind("id", id)
+            .map { row, metadata -> r2dbcConverter.read(Tag::class.java, row, metadata) }
+            .awaitOne()
+    }
+
+}
@@ -2,13 +2,26 @@ package org.taskmanager.task.repository
 
 import kotlinx.coroutines.flow.Flow
 import org.springframework.data.domain.Pageable
+import org.springframework.data.r2dbc.repository.Query
 import org.springframework.data.repository.kotlin.CoroutineSortingRepository
 import org.springframework.stereotype.Repository
 import org.taskmanager.task.model.User
 
 @Repository
-interface UserRepository : CoroutineSortingRepository<User, Long> {
+interface UserRepository : CoroutineSortingRepository<User, Long>, UserRepositoryCustom {
     fun findAllBy(pageable: Pageable): Flow<User>
     suspend fun findByUserId(userId: String): User?
+    fun findByUserIdIn(userIds: Collection<String>): Flow<User>
     suspend fun findByEmailIgnoreCase(email: String): User?
+
+    // Keyset pagination ordered by (firstName, lastName, email, id) where missing names sort first
+
+    @Query("SELECT * FROM users ORDER BY COALESCE(first_name, ''), COALESCE(last_name, ''), email, id LIMIT :limit")
+    fun findFirstKeysetPage(limit: Int): Flow<User>
+
+    @Query(
+        "SELECT * FROM users WHERE (COALESCE(first_name, ''), COALESCE(last_name, ''), email, id) > (:firstName, :lastName, :email, :id) " +
+                "ORDER BY COALESCE(first_name, ''), COALESCE(last_name, ''), email, id LIMIT :limit"
+    )
+    fun findKeysetPageAfter(firstName: String, lastName: String, email: String, id: Long, limit: Int): Flow<User>
 }
@@ -0,0 +1,32 @@
+package org.taskmanager.task.repository
+
+import kotlinx.coroutines.flow.Flow
+import org.springframework.data.domain.Pageable
+import org.taskmanager.task.api.dto.UserDto
+import org.taskmanager.task.model.User
+import java.time.LocalDateTime
+
+interface UserRepositoryCustom {
+
+    /**
+     * Get a page of users mapped straight from the rows to dtos
+     * @param pageable page definition, the sort properties must be properties of [org.taskmanager.task.model.User]
+     * @return flow of users
+     */
+    fun findAllProjectedBy(pageable: Pageable): Flow<UserDto>
+
+    /**
+     * Update a user if its version matches, the version check and the increment happen in the same statement
+     * @param userId userId of the user
+     * @param version expected version or null to match any version
+     * @param keycloakEventTime time of the Keycloak event the user is synchronized with, the stored time only increases
+     * @param maxKeycloakEventTime the user is not updated if it has been synchronized with a later Keycloak event
+     * @param lastModifiedDate new modification date
+     * @return the updated user or null if the user is missing, has another version or a later Keycloak event
+     */
+    suspend fun updateIfVersionMatches(
+        userId: String, version: Long?, email: String?, firstName: String?, lastName: String?,
+        keycloakEventTime: Long, maxKeycloakEventTime: Long, lastModifiedDate: LocalDateTime
+    ): User?
+
+}
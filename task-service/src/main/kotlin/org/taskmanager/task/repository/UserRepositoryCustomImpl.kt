@@ -0,0 +1,61 @@
+package org.taskmanager.task.repository
+
+import kotlinx.coroutines.flow.Flow
+import org.springframework.data.domain.Pageable
+import org.springframework.data.r2dbc.convert.R2dbcConverter
+import org.springframework.r2dbc.core.DatabaseClient
+import org.springframework.r2dbc.core.awaitOne
+import org.springframework.r2dbc.core.awaitOneOrNull
+import org.springframework.r2dbc.core.awaitRowsUpdated
+import org.springframework.r2dbc.core.flow
+import org.taskmanager.task.api.dto.UserDto
+import org.taskmanager.task.model.User
+import java.time.LocalDateTime
+
+class UserRepositoryCustomImpl(
+    private val databaseClient: DatabaseClient,
+    private val r2dbcConverter: R2dbcConverter
+) : UserRepositoryCustom {
+
+    // PostgreSQL supports UPDATE ... RETURNING
+    private val postgresql by lazy { databaseClient.connectionFactory.metadata.name == "PostgreSQL" }
+
+    override fun findAllProjectedBy(pageable: Pageable): Flow<UserDto> =
+        databaseClient.sql(
+            "SELECT * FROM users ORDER BY ${r2dbcConverter.orderBy(User::class.java, pageable)}${limitClause(pageable)}"
+        )
+            .map { row -> row.toUserDto() }
+            .flow()
+
+    /**
+     * PostgreSQL returns the row from the update statement, other databases read it back with a second query
+     */
+    override suspend fun updateIfVersionMatches(
+        userId: String, version: Long?, email: String?, firstName: String?, lastName: String?,
+        keycloakEventTime: Long, maxKeycloakEventTime: Long, lastModifiedDate: LocalDateTime
+    ): User? {
+        val update = "UPDATE users SET version = version + 1, email = :email, first_name = :firstName, " +
+                "last_name = :lastName, keycloak_event_time = CASE WHEN keycloak_event_time > :keycloakEventTime " +
+                "THEN keycloak_event_time ELSE :keycloakEventTime END, last_modified_date = :lastModifiedDate " +
+                "WHERE user_id = :userId AND version = COALESCE(:version, version) " +
+                "AND COALESCE(keycloak_event_time, 0) <= :maxKeycloakEventTime"
+        val spec = databaseClient.sql(if (postgresql) "$update RETURNING *" else update)
+            .bind("userId", userId)
+            .bindNullable("version", version, Long::class.javaObjectType)
+            .bindNullable("email", email, String::class.java)
+            .bindNullable("firstName", firstName, String::class.java)
+            .bindNullable("lastName", lastName, String::class.java)
+            .bind("keycloakEventTime", keycloakEventTime)
+            .bind("maxKeycloakEventTime", maxKeycloakEventTime)
+            .bind("lastModifiedDate", lastModifiedDate)
+        if (postgresql) {
+            return spec.map { row, metadata -> r2dbcConverter.read(User::class.java, row, metadata) }.awaitOneOrNull()
+        }
+        if (spec.fetch().awaitRowsUpdated() == 0) return null
+        return databaseClient.sql("SELECT * FROM users WHERE user_id = :userId")
+            .bind("userId", userId)
+            .map { row, metadata -> r2dbcConverter.read(User::class.java, row, metadata) }
+            .awaitOne()
+    }
+
+}
@@ -0,0 +1,154 @@
+package org.taskmanager.task.service
+
+import io.micrometer.core.instrument.Counter
+import io.micrometer.core.instrument.Gauge
+import io.micrometer.core.instrument.MeterRegistry
+import java.time.Duration
+
+/**
+ * Thread safe in-memory cache that evicts the least recently used entries above a maximum size.
+ * If a ttl is given, entries expire after this duration.
+ * Values loaded before an eviction of their key are not cached, so a load racing with a commit cannot
+ * put the state from before the commit back. Mutable values must be cached with a copy function,
+ * the cache then stores and hands out copies only.
+ * Hits and misses are counted in the meter 'cache.gets' and the number of entries is exposed as 'cache.size',
+ * both tagged with the name of the cache.
+ */
+class BoundedCache<K : Any, V : Any>(
+    name: String,
+    private val maxSize: Int,
+    meterRegistry: MeterRegistry,
+    ttl: Duration? = null,
+    private val copy: (V) -> V = { it }
+) {
+
+    private class CacheEntry<V>(val value: V, val expiresAt: Long)
+
+    private val ttlNanos = ttl?.toNanos()
+
+    // incremented by every eviction, the stamp of a load is the sequence when it started
+    private var evictionSequence = 0L
+
+    // number of loads in progress, the evictions are only recorded while there are any
+    private var loads = 0
+
+    // sequence of the last eviction by key and of the last eviction of all keys
+    private val evictedKeys = HashMap<K, Long>()
+    private var allEvicted = -1L
+
+    private val entries = object : LinkedHashMap<K, CacheEntry<V>>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<K, CacheEntry<V>>) = size > maxSize
+    }
+
+    private val hits = Counter.builder("cache.gets").tag("cache", name).tag("result", "hit")
+        .description("The number of times cache lookup methods have returned a cached value.")
+        .register(meterRegistry)
+
+    private val misses = Counter.builder("cache.gets").tag("cache", name).tag("result", "miss")
+        .description("The number of times cache lookup methods have not found a cached value.")
+        .register(meterRegistry)
+
+    init {
+        Gauge.builder("cache.size", this) { it.size().toDouble() }.tag("cache", name)
+            .description("The number of entries in the cache.")
+            .register(meterRegistry)
+    }
+
+    @Synchronized
+    fun size() = entries.size
+
+    /**
+     * Get the cached values of the keys and load the missing ones
+     * @param keys keys to be looked up
+     * @param load function loading the values of the missing keys; keys without a loaded value are not cached
+     * @return the values found for the keys
+     */
+    suspend fun getAll(keys: Collection<K>, load: suspend (Set<K>) -> Map<K, V>): Map<K, V> {
+        val found = HashMap<K, V>()
+        val missing = HashSet<K>()
+        synchronized(this) {
+            val now = System.nanoTime()
+            keys.forEach { key ->
+                val entry = entries[key]
+                if (entry != null && (ttlNanos == null || entry.expiresAt - now > 0)) {
+                    found[key] = copy(entry.value)
+                } else {
+                    if (entry != null) entries.remove(key)
+                    missing.add(key)
+                }
+            }
+        }
+        hits.increment(found.size.toDouble())
+        misses.increment(missing.size.toDouble())
+        if (missing.isEmpty()) return found
+        val loaded = loading { stamp -> load(missing).also { putAll(it, stamp) } }
+        return found + loaded
+    }
+
+    /**
+     * Run a load whose values are put into the cache
+     * @param block loads the values and puts them with the stamp passed
+     * @return the result of the block
+     */
+    suspend fun <T> loading(block: suspend (stamp: Long) -> T): T {
+        val stamp = synchronized(this) {
+            loads++
+            evictionSequence
+        }
+        try {
+            return block(stamp)
+        } finally {
+            synchronized(this) {
+                if (--loads == 0) evictedKeys.clear()
+            }
+        }
+    }
+
+    /**
+     * Add loaded values to the cache, the values whose key has been evicted since the load started are skipped
+     * @param values values by key
+     * @param stamp stamp of the load passed by loading
+     */
+    @Synchronized
+    fun putAll(values: Map<K, V>, stamp: Long) {
+        if (allEvicted > stamp) return
+        val expiresAt = System.nanoTime() + (ttlNanos ?: 0)
+        values.forEach { (key, value) ->
+            if ((evictedKeys[key] ?: -1) <= stamp) entries[key] = CacheEntry(copy(value), expiresAt)
+        }
+    }
+
+    @Synchronized
+    fun evict(key: K) {
+        entries.remove(key)
+        recordEviction(key)
+    }
+
+    @Synchronized
+    fun evictAll(keys: Collection<K>) {
+        keys.forEach(::evict)
+    }
+
+    /**
+     * Evict the entries whose value matches a predicate
+     * @param predicate condition on the cached value
+     */
+    @Synchronized
+    fun evictIf(predicate: (V) -> Boolean) {
+        entries.values.removeIf { predicate(it.value) }
+        // the values being loaded are unknown
+        allEvicted = ++evictionSequence
+    }
+
+    @Synchronized
+    fun clear() {
+        entries.clear()
+        allEvicted = ++evictionSequence
+    }
+
+    private fun recordEviction(key: K) {
+        evictionSequence++
+        if (loads > 0) evictedKeys[key] = evictionSequence
+    }
+
+}
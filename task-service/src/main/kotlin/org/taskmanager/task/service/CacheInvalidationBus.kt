@@ -0,0 +1,24 @@
+package org.taskmanager.task.service
+
+import org.taskmanager.task.model.CacheInvalidation
+import org.taskmanager.task.model.CachedEntityType
+
+/**
+ * Distributes the invalidations of cached entities to the caches of all replicas of the service
+ */
+interface CacheInvalidationBus {
+
+    /**
+     * Publish invalidations once the current transaction has been committed.
+     * The caches of the publishing replica must be evicted by the caller.
+     * @param invalidations changed entities
+     */
+    suspend fun publish(invalidations: Collection<CacheInvalidation>)
+
+    /**
+     * Register a listener evicting the entries of a local cache
+     * @param entityType type of the cached entities
+     * @param listener called with each invalidation of the entity type
+     */
+    fun subscribe(entityType: CachedEntityType, listener: (CacheInvalidation) -> Unit)
+}
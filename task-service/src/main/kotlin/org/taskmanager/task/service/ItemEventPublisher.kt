@@ -0,0 +1,127 @@
+package org.taskmanager.task.service
+
+import io.micrometer.core.instrument.MeterRegistry
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.stereotype.Component
+import org.taskmanager.task.api.dto.ItemDto
+import org.taskmanager.task.api.dto.ItemEventDto
+import org.taskmanager.task.model.ItemEventType
+import reactor.core.publisher.BufferOverflowStrategy
+import reactor.core.publisher.Flux
+import reactor.core.publisher.Sinks
+
+/**
+ * Fans out the changes of items to the subscribers of the item stream.
+ * Every subscriber has its own bounded buffer that drops the oldest events if the subscriber is too slow.
+ * The most recent events are kept in a ring so that a subscriber can resume after the last event it received.
+ * The event ids are prefixed with the start time of this instance as their sequence restarts with every instance.
+ */
+@Component
+class ItemEventPublisher(
+    meterRegistry: MeterRegistry,
+    @Value("\${app.item.events.buffer-size:256}")
+    private val bufferSize: Int,
+    @Value("\${app.item.events.replay-size:1000}")
+    private val replaySize: Int
+) {
+
+    private val epoch = System.currentTimeMillis().toString(36)
+
+    // never blocks the publisher, the per subscriber buffers absorb the bursts
+    private val sink = Sinks.many().multicast().directBestEffort<SequencedEvent>()
+
+    // guarded by itself, the sequence and the emission are serialized with the ring
+    private val ring = ArrayDeque<SequencedEvent>(replaySize)
+    private var sequence = 0L
+
+    private val droppedEvents = meterRegistry.counter("item.events.dropped")
+
+    /**
+     * Publish the creation or update of items once the current transaction has been committed
+     * @param type type of the change
+     * @param items the items after the change
+     */
+    suspend fun publish(type: ItemEventType, items: List<ItemDto>) {
+        if (items.isEmpty()) return
+        afterCommit {
+            items.forEach { emit(type, it.id!!, it) }
+        }
+    }
+
+    /**
+     * Publish the deletion of items once the current transaction has been committed
+     * @param itemIds ids of the deleted items
+     */
+    suspend fun publishDeleted(itemIds: List<Long>) {
+        if (itemIds.isEmpty()) return
+        afterCommit {
+            itemIds.forEach { emit(ItemEventType.DELETED, it, null) }
+        }
+    }
+
+    /**
+     * Subscribe to the events published from now on
+     * @param lastEventId id of the last event received before or null to get only new events;
+     * the events after it are replayed as long as they are still in the ring, otherwise a reset event comes first.
+     * Nothing is replayed for the ids of other instances
+     * @return flux of events in ascending order of their ids
+     */
+    fun events(lastEventId: String? = null): Flux<ItemEventDto> {
+        val live = sink.asFlux().onBackpressureBuffer(bufferSize, { droppedEvents.increment() }, BufferOverflowStrategy.DROP_OLDEST)
+        val lastSequence = lastEventId?.let(::sequenceOf) ?: return live.map(SequencedEvent::event)
+        return Flux.defer {
+            val replayed = replayAfter(lastSequence)
+            val lastReplayed = replayed.lastOrNull()?.sequence ?: lastSequence
+            // events published between reading the ring and subscribing to the sink are read from the ring again
+            val resumed = live.switchOnFirst { signal, flux ->
+                val first = signal.get()
+                if (first != null && first.sequence > lastReplayed + 1) {
+                    Flux.fromIterable(eventsAfter(lastReplayed).takeWhile { it.sequence < first.sequence }).concatWith(flux)
+                } else flux
+            }
+            Flux.fromIterable(replayed).concatWith(resumed.filter { it.sequence > lastReplayed })
+        }.map(SequencedEvent::event)
+    }
+
+    private fun emit(type: ItemEventType, itemId: Long, item: ItemDto?) {
+        synchronized(ring) {
+            val event = sequenced(++sequence, type, itemId, item)
+            ring.addLast(event)
+            if (ring.size > replaySize) ring.removeFirst()
+            // fails only without subscribers, then the event is just kept in the ring
+            sink.tryEmitNext(event)
+        }
+    }
+
+    /**
+     * @return the sequence of an event id of this instance or null for the ids of other instances and unknown ids
+     */
+    private fun sequenceOf(eventId: String): Long? {
+        if (eventId.substringBeforeLast('-') != epoch) return null
+        val eventSequence = eventId.substringAfterLast('-').toLongOrNull() ?: return null
+        return synchronized(ring) { eventSequence.takeIf { it in 0..sequence } }
+    }
+
+    /**
+     * @return the events of the ring after a sequence, preceded by a reset if the ring no longer holds the next event
+     */
+    private fun replayAfter(lastSequence: Long): List<SequencedEvent> {
+        return synchronized(ring) {
+            val oldest = ring.firstOrNull()?.sequence ?: return emptyList()
+            if (lastSequence < oldest - 1) {
+                // resuming after the reset replays the whole ring
+                listOf(sequenced(oldest - 1, ItemEventType.RESET, null, null)) + ring
+            } else ring.filter { it.sequence > lastSequence }
+        }
+    }
+
+    private fun eventsAfter(lastSequence: Long): List<SequencedEvent> {
+        return synchronized(ring) { ring.filter { it.sequence > lastSequence } }
+    }
+
+    private fun sequenced(sequence: Long, type: ItemEventType, itemId: Long?, item: ItemDto?): SequencedEvent {
+        return SequencedEvent(sequence, ItemEventDto(id = "$epoch-$sequence", type = type, itemId = itemId, item = item))
+    }
+
+    private class SequencedEvent(val sequence: Long, val event: ItemEventDto)
+}
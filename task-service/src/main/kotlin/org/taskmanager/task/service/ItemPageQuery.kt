@@ -0,0 +1,12 @@
+package org.taskmanager.task.service
+
+/**
+ * Strategy to read a page of items together with their relations
+ */
+enum class ItemPageQuery {
+    // one query for the page, then one query each for the tags and the assignees that are not cached
+    POPULATE_RELATIONS,
+
+    // one query joining the page with the assignees and tags, the rows are mapped straight to dtos
+    JOINED
+}
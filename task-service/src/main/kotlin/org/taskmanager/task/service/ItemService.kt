@@ -1,33 +1,59 @@
 package org.taskmanager.task.service
 
-import kotlinx.coroutines.flow.map
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.collect
+import kotlinx.coroutines.flow.flow
 import kotlinx.coroutines.flow.toList
-import org.springframework.data.domain.Page
-import org.springframework.data.domain.PageImpl
+import kotlinx.coroutines.flow.transform
+import org.springframework.beans.factory.annotation.Value
 import org.springframework.data.domain.Pageable
 import org.springframework.stereotype.Service
 import org.springframework.transaction.annotation.Transactional
 import org.taskmanager.task.api.dto.*
+import org.taskmanager.task.exception.BatchSizeExceededException
+import org.taskmanager.task.exception.ExpiredCursorException
 import org.taskmanager.task.exception.ItemNotFoundException
+import org.taskmanager.task.exception.TagNotFoundException
 import org.taskmanager.task.exception.UnexpectedItemVersionException
 import org.taskmanager.task.exception.UserNotFoundException
 import org.taskmanager.task.mapper.toItem
 import org.taskmanager.task.mapper.toItemDto
+import org.taskmanager.task.mapper.toItemFilter
 import org.taskmanager.task.model.Item
+import org.taskmanager.task.model.ItemEventType
+import org.taskmanager.task.model.ItemField
+import org.taskmanager.task.model.ItemFilter
 import org.taskmanager.task.model.ItemTag
-import org.taskmanager.task.model.Tag
+import org.taskmanager.task.model.ItemTombstone
 import org.taskmanager.task.repository.ItemRepository
 import org.taskmanager.task.repository.ItemTagRepository
-import org.taskmanager.task.repository.UserRepository
-import org.taskmanager.task.repository.TagRepository
+import org.taskmanager.task.repository.ItemTombstoneRepository
+import reactor.core.publisher.Flux
+import java.time.Duration
+import java.time.LocalDateTime
+import javax.validation.Validator
 
 
 @Service
 class ItemService(
     private val itemRepository: ItemRepository,
-    private val userRepository: UserRepository,
+    private val userService: UserService,
     private val itemTagRepository: ItemTagRepository,
-    private val tagRepository: TagRepository
+    private val tagService: TagService,
+    private val itemTombstoneRepository: ItemTombstoneRepository,
+    private val totalCountProvider: TotalCountProvider,
+    private val itemEventPublisher: ItemEventPublisher,
+    private val validator: Validator,
+    @Value("\${app.item.batch-max-size:1000}")
+    private val batchMaxSize: Int,
+    @Value("\${app.item.export-window-size:500}")
+    private val exportWindowSize: Int,
+    @Value("\${app.item.page-query:populate-relations}")
+    private val pageQuery: ItemPageQuery,
+    @Value("\${app.item.changes.commit-lag:5s}")
+    private val commitLag: Duration,
+    @Value("\${app.item.changes.tombstone-retention:30d}")
+    private val tombstoneRetention: Duration
 ) {
 
     /**
@@ -35,10 +61,172 @@ class ItemService(
      * @param pageable page definition
      * @return Page of items
      */
-    suspend fun findAllBy(pageable: Pageable): Page<ItemDto> {
-        val dataPage = itemRepository.findAllBy(pageable).map(::populateRelations).toList()
-        val total = itemRepository.count()
-        return PageImpl(dataPage, pageable, total).map(Item::toItemDto)
+    suspend fun findAllBy(pageable: Pageable): TotalCountPage<ItemDto> {
+        val dataPage = when (pageQuery) {
+            ItemPageQuery.POPULATE_RELATIONS ->
+                populateRelations(itemRepository.findAllBy(pageable).toList()).map(Item::toItemDto)
+            ItemPageQuery.JOINED -> itemRepository.findAllWithRelations(ItemFilter(), pageable)
+        }
+        val total = totalCountProvider.count("item") { itemRepository.count() }
+        return TotalCountPage(dataPage, pageable, total)
+    }
+
+    /**
+     * Get a page of the items matching a filter
+     * @param itemFilterDto conditions the items must fulfil
+     * @param pageable page definition
+     * @param fields fields of the items to be returned, only the selected columns and relations are loaded
+     * @return Page of items with the exact number of matching items or the total count of an unfiltered page
+     */
+    suspend fun findAllBy(
+        itemFilterDto: ItemFilterDto,
+        pageable: Pageable,
+        fields: Set<ItemField> = ItemField.ALL
+    ): TotalCountPage<ItemDto> {
+        val unfiltered = itemFilterDto == ItemFilterDto()
+        if (unfiltered && fields == ItemField.ALL) return findAllBy(pageable)
+        val assigneeId = itemFilterDto.assigneeUserId?.let {
+            // no item can match an unknown assignee
+            userService.findByUserId(it)?.id
+                ?: return TotalCountPage(listOf(), pageable, TotalCount(0, TotalCountMode.EXACT))
+        }
+        val filter = itemFilterDto.toItemFilter(assigneeId)
+        val dataPage = when {
+            fields != ItemField.ALL -> {
+                val items = itemRepository.findAllBy(filter, pageable, fields).toList()
+                populateRelations(items, fields).map { it.toItemDto(fields) }
+            }
+            pageQuery == ItemPageQuery.POPULATE_RELATIONS ->
+                populateRelations(itemRepository.findAllBy(filter, pageable).toList()).map(Item::toItemDto)
+            else -> itemRepository.findAllWithRelations(filter, pageable)
+        }
+        val total = if (unfiltered) {
+            totalCountProvider.count("item") { itemRepository.count() }
+        } else {
+            TotalCount(itemRepository.count(filter), TotalCountMode.EXACT)
+        }
+        return TotalCountPage(dataPage, pageable, total)
+    }
+
+    /**
+     * Get a page of items using keyset pagination ordered by lastModifiedDate and id
+     * @param after cursor returned with the previous page or null to get the first page
+     * @param size maximum number of items in the page
+     * @return page of items with the cursor of the next page
+     */
+    suspend fun findAllAfter(after: String?, size: Int): CursorPage<ItemDto> {
+        val limit = size.coerceIn(1, KeysetCursor.MAX_PAGE_SIZE)
+        val items = if (after.isNullOrEmpty()) {
+            itemRepository.findFirstKeysetPage(limit)
+        } else {
+            KeysetCursor.decode(after, 2) { (lastModifiedDate, id) ->
+                itemRepository.findKeysetPageAfter(LocalDateTime.parse(lastModifiedDate), id.toLong(), limit)
+            }
+        }.toList()
+        val nextCursor = items.takeIf { it.size == limit }?.last()?.let {
+            KeysetCursor.encode(it.lastModifiedDate!!, it.id!!)
+        }
+        return CursorPage(populateRelations(items).map(Item::toItemDto), limit, nextCursor)
+    }
+
+    /**
+     * Search items by the words of their description using keyset pagination ordered by relevance and id
+     * @param query words to search for
+     * @param after cursor returned with the previous page or null to get the first page
+     * @param size maximum number of items in the page
+     * @return page of items with the cursor of the next page
+     */
+    suspend fun search(query: String, after: String?, size: Int): CursorPage<ItemDto> {
+        val limit = size.coerceIn(1, KeysetCursor.MAX_PAGE_SIZE)
+        val words = query.split(WHITESPACE).filter(String::isNotEmpty)
+        if (words.isEmpty()) return CursorPage(listOf(), limit, null)
+        val hits = if (after.isNullOrEmpty()) {
+            itemRepository.search(words, null, null, limit)
+        } else {
+            KeysetCursor.decode(after, 2) { (rank, id) ->
+                itemRepository.search(words, rank.toFloat(), id.toLong(), limit)
+            }
+        }.toList()
+        val nextCursor = hits.takeIf { it.size == limit }?.last()?.let {
+            KeysetCursor.encode(it.rank, it.item.id!!)
+        }
+        return CursorPage(populateRelations(hits.map { it.item }).map(Item::toItemDto), limit, nextCursor)
+    }
+
+    /**
+     * Get the items changed and deleted after a cursor.
+     * Each call returns at most size changed and size deleted items together with the cursor of the following call.
+     * The dates are set before the transactions commit, so only changes older than the commit lag are returned
+     * and a transaction taking longer than the commit lag may be missed.
+     * @param since cursor returned by the previous call or null to get all items
+     * @param size maximum number of changed and of deleted items
+     * @return changed items, ids of the deleted items and the cursor of the following call
+     * @throws ExpiredCursorException if tombstones after the cursor may already have been removed
+     */
+    suspend fun findChangesSince(since: String?, size: Int): ItemChangesDto {
+        val limit = size.coerceIn(1, KeysetCursor.MAX_PAGE_SIZE)
+        val now = LocalDateTime.now()
+        val until = now.minus(commitLag)
+        // position of the last changed item and of the last tombstone
+        val (itemPosition, tombstonePosition) = if (since.isNullOrEmpty()) {
+            // the deletions before a full synchronization do not concern the client
+            Pair(Pair(CHANGES_EPOCH, 0L), Pair(until, 0L))
+        } else {
+            KeysetCursor.decode(since, 4) { (lastModifiedDate, itemId, deletedDate, tombstoneId) ->
+                Pair(
+                    Pair(LocalDateTime.parse(lastModifiedDate), itemId.toLong()),
+                    Pair(LocalDateTime.parse(deletedDate), tombstoneId.toLong())
+                )
+            }
+        }
+        if (since != null && tombstonePosition.first.isBefore(now.minus(tombstoneRetention))) {
+            throw ExpiredCursorException(since)
+        }
+        val items = itemRepository.findChangesAfter(itemPosition.first, itemPosition.second, until, limit).toList()
+        val tombstones = itemTombstoneRepository
+            .findChangesAfter(tombstonePosition.first, tombstonePosition.second, until, limit).toList()
+        // a position is moved up to the horizon once all changes before it have been returned,
+        // so the cursor of a client in sync does not expire
+        val nextItemPosition = if (items.size == limit) {
+            Pair(items.last().lastModifiedDate!!, items.last().id!!)
+        } else {
+            maxOf(itemPosition, Pair(until, 0L), POSITION_ORDER)
+        }
+        val nextTombstonePosition = if (tombstones.size == limit) {
+            Pair(tombstones.last().deletedDate!!, tombstones.last().id!!)
+        } else {
+            maxOf(tombstonePosition, Pair(until, 0L), POSITION_ORDER)
+        }
+        return ItemChangesDto(
+            changed = populateRelations(items).map(Item::toItemDto),
+            deleted = tombstones.map { it.itemId!! },
+            nextCursor = KeysetCursor.encode(
+                nextItemPosition.first, nextItemPosition.second, nextTombstonePosition.first, nextTombstonePosition.second
+            ),
+            hasMore = items.size == limit || tombstones.size == limit
+        )
+    }
+
+    /**
+     * Stream all items ordered by id.
+     * The items are read as they are requested and the relations are loaded once per window of items.
+     * @return flow of all items
+     */
+    fun exportAll(): Flow<ItemDto> {
+        return itemRepository.findAllByOrderById()
+            .chunked(exportWindowSize)
+            .transform { window ->
+                populateRelations(window).forEach { emit(it.toItemDto()) }
+            }
+    }
+
+    /**
+     * Subscribe to the changes of items
+     * @param lastEventId id of the last event received before or null to get only new events
+     * @return flux of create, update and delete events, starting with a reset if events have been lost
+     */
+    fun streamEvents(lastEventId: String?): Flux<ItemEventDto> {
+        return itemEventPublisher.events(lastEventId)
     }
 
     /**
@@ -52,6 +240,25 @@ class ItemService(
         return getItemById(id, version, loadRelations).toItemDto()
     }
 
+    /**
+     * Get the version of an item without loading it
+     * @param id id of the item
+     * @return the currently stored version
+     */
+    suspend fun getVersion(id: Long): Long {
+        return itemRepository.findVersionById(id) ?: throw ItemNotFoundException(id)
+    }
+
+    /**
+     * Get the selected fields of an item
+     * @param id     id of the item
+     * @param fields fields of the item to be returned, only the selected relations are loaded
+     * @return the currently stored item
+     */
+    suspend fun getById(id: Long, fields: Set<ItemField>): ItemDto {
+        return populateRelations(listOf(getItemById(id)), fields).first().toItemDto(fields)
+    }
+
     /**
      * Create a new item
      * @param item item to be created
@@ -59,18 +266,67 @@ class ItemService(
      */
     @Transactional
     suspend fun create(itemCreateDto: ItemCreateDto): ItemDto {
-        val assigneeId = itemCreateDto.assigneeUserId?.let { userRepository.findByUserId(it) }?.id
+        val assigneeId = itemCreateDto.assigneeUserId?.let { userService.findByUserId(it) }?.id
         val item = itemCreateDto.toItem(assigneeId)
         val savedItem = itemRepository.save(item)
+        totalCountProvider.invalidate("item")
         itemCreateDto.tagIds?.map { tagId ->
             ItemTag(itemId = savedItem.id!!, tagId = tagId)
-        }?.forEach {
-            // Note: saveAll does not work with R2DBC therefore each itemTag is saved, individually
-            itemTagRepository.save(it)
+        }?.also {
+            itemTagRepository.insertAll(it)
         }
         return savedItem.also {
             populateRelations(savedItem)
-        }.toItemDto()
+        }.toItemDto().also {
+            itemEventPublisher.publish(ItemEventType.CREATED, listOf(it))
+        }
+    }
+
+    /**
+     * Create a batch of new items in one transaction.
+     * Invalid elements are rejected individually while the valid ones are created.
+     * @param itemCreateDtos items to be created
+     * @return one result per element in the order of the request
+     */
+    @Transactional
+    suspend fun createAll(itemCreateDtos: List<ItemCreateDto>): List<ItemBatchResultDto> {
+        if (itemCreateDtos.size > batchMaxSize) throw BatchSizeExceededException(itemCreateDtos.size, batchMaxSize)
+
+        // resolve all assignees and tags with one query each
+        val assigneeUserIds = itemCreateDtos.mapNotNull(ItemCreateDto::assigneeUserId).toSet()
+        val assigneesByUserId = userService.findAllByUserIds(assigneeUserIds)
+        val tagIds = itemCreateDtos.flatMap { it.tagIds ?: setOf() }.toSet()
+        val existingTagIds = if (tagIds.isEmpty()) setOf() else {
+            tagService.findAllByIds(tagIds).keys
+        }
+
+        // reject invalid elements
+        val errors = itemCreateDtos.map { itemCreateDto ->
+            validator.validate(itemCreateDto).firstOrNull()?.let {
+                "${it.propertyPath} [${it.invalidValue ?: ""}] ${it.message}"
+            } ?: itemCreateDto.assigneeUserId?.takeUnless(assigneesByUserId::containsKey)?.let {
+                UserNotFoundException(it).message
+            } ?: itemCreateDto.tagIds?.firstOrNull { it !in existingTagIds }?.let {
+                TagNotFoundException(it).message
+            }
+        }
+
+        // insert the valid items and their item-tags with one statement each
+        val validIndices = itemCreateDtos.indices.filter { errors[it] == null }
+        val savedItems = itemRepository.insertAll(validIndices.map {
+            val itemCreateDto = itemCreateDtos[it]
+            itemCreateDto.toItem(itemCreateDto.assigneeUserId?.let { userId -> assigneesByUserId[userId]?.id })
+        })
+        itemTagRepository.insertAll(validIndices.zip(savedItems).flatMap { (index, savedItem) ->
+            itemCreateDtos[index].tagIds?.map { ItemTag(itemId = savedItem.id!!, tagId = it) } ?: listOf()
+        })
+        if (savedItems.isNotEmpty()) totalCountProvider.invalidate("item")
+
+        val savedItemsByIndex = validIndices.zip(populateRelations(savedItems).map(Item::toItemDto)).toMap()
+        itemEventPublisher.publish(ItemEventType.CREATED, savedItemsByIndex.values.toList())
+        return itemCreateDtos.indices.map {
+            ItemBatchResultDto(index = it, item = savedItemsByIndex[it], error = errors[it])
+        }
     }
 
     /**
@@ -80,22 +336,42 @@ class ItemService(
      */
     @Transactional
     suspend fun update(id: Long, version: Long?, itemUpdateDto: ItemUpdateDto): ItemDto {
-        val assigneeId = itemUpdateDto.assigneeUserId?.let { userRepository.findByUserId(it) }?.id
+        val assigneeId = itemUpdateDto.assigneeUserId?.let { userService.findByUserId(it) }?.id
         val item = itemUpdateDto.toItem(id, version, assigneeId)
-        return updateItem(item).toItemDto()
+        val updatedItem = itemRepository.updateIfVersionMatches(
+            id, version, item.description!!, item.status.name, item.assigneeId, LocalDateTime.now()
+        )
+        return updateItem(item, updatedItem, item.tags?.map { it.id!! } ?: listOf()).toItemDto().also {
+            itemEventPublisher.publish(ItemEventType.UPDATED, listOf(it))
+        }
     }
 
+    /**
+     * Patch an item with version check
+     * Only the properties present in the patch are changed.
+     * @param id id of the item to be patched
+     * @param version if not null check that version matches the version of the currently stored item
+     * @param itemPatchDto properties to be changed
+     * @return the patched item
+     */
     @Transactional
     suspend fun patch(id: Long, version: Long?, itemPatchDto: ItemPatchDto): ItemDto {
-        val existingItem = getItemById(id, version, true)
         // patch assignee
-        val patchAssigneeUserId = itemPatchDto.assigneeUserId.orElse(null)
-        val newAssigneeId = patchAssigneeUserId?.let {
-            userRepository.findByUserId(it) ?: throw UserNotFoundException(it)
-        }?.id ?: existingItem.assigneeId
+        val patchAssigneeId = itemPatchDto.assigneeUserId.orElse(null)?.let {
+            userService.findByUserId(it) ?: throw UserNotFoundException(it)
+        }?.id
+        val updatedItem = itemRepository.patchIfVersionMatches(
+            id,
+            version,
+            itemPatchDto.description.orElse(null),
+            itemPatchDto.status.orElse(null)?.name,
+            patchAssigneeId,
+            LocalDateTime.now()
+        )
         // patch tags
-        val patchedItem = itemPatchDto.toItem(existingItem, newAssigneeId)
-        return updateItem(patchedItem).toItemDto()
+        return updateItem(Item(id = id, version = version), updatedItem, itemPatchDto.tagIds.orElse(null)).toItemDto().also {
+            itemEventPublisher.publish(ItemEventType.UPDATED, listOf(it))
+        }
     }
 
     /**
@@ -109,23 +385,45 @@ class ItemService(
         // check that item with this id exists
         val item = getItemById(id, version, false)
         itemTagRepository.deleteAllByItemId(id)
+        tagService.evictItemTags(listOf(id))
         itemRepository.delete(item)
+        itemTombstoneRepository.save(ItemTombstone(itemId = id))
+        totalCountProvider.invalidate("item")
+        itemEventPublisher.publishDeleted(listOf(id))
     }
 
     /**
      * Populate the tags and assignee related to an item
      * @param item Item
-     * @return The items with the loaded related objects (assignee, tags)
+     * @return The item with the loaded related objects (assignee, tags)
      */
     private suspend fun populateRelations(item: Item): Item {
-        // Load the tags
-        item.tags = tagRepository.findTagsByItemId(item.id!!).toList()
+        return populateRelations(listOf(item)).first()
+    }
+
+    /**
+     * Populate the tags and assignees related to a list of items.
+     * Independent of the number of items at most two queries load the tags and one query loads the assignees
+     * that are not yet cached.
+     * @param items list of items
+     * @param fields fields of the items to be returned, relations that are not selected are not loaded
+     * @return The items with the loaded related objects (assignee, tags)
+     */
+    private suspend fun populateRelations(items: List<Item>, fields: Set<ItemField> = ItemField.ALL): List<Item> {
+        if (items.isEmpty()) return items
 
-        // Load the assignee (if set)
-        val assigneeId = item.assigneeId
-        if (assigneeId != null) item.assignee = userRepository.findById(assigneeId)
+        // Load the tags of all items (ordered by name) through the tag cache
+        val tagsByItemId = if (ItemField.TAGS in fields) tagService.findTagsByItemIds(items.map { it.id!! }) else mapOf()
 
-        return item
+        // Load the distinct assignees of all items through the user cache
+        val assigneesById = if (ItemField.ASSIGNEE in fields) {
+            userService.findAllByIds(items.mapNotNull(Item::assigneeId).toSet())
+        } else mapOf()
+
+        return items.onEach { item ->
+            item.tags = tagsByItemId[item.id] ?: listOf()
+            item.assignee = item.assigneeId?.let { assigneesById[it] }
+        }
     }
 
     /**
@@ -147,39 +445,54 @@ class ItemService(
         }
     }
 
-    private suspend fun updateItem(item: Item): Item {
-        if (item.id == null) {
-            throw IllegalArgumentException("When updating an item, the id must be provided")
+    /**
+     * Complete a conditional update of an item and reconcile its tags
+     * @param item item with the id and the expected version
+     * @param updatedItem item returned by the conditional update statement or null if no row has been updated
+     * @param tagIds ids of the tags the item should be linked to or null to keep the tags
+     * @return the updated item with the related entities
+     */
+    private suspend fun updateItem(item: Item, updatedItem: Item?, tagIds: Collection<Long>?): Item {
+        if (updatedItem == null) {
+            // Optimistic locking: the item is either missing or has a different version
+            val storedVersion = itemRepository.findVersionById(item.id!!)
+            if (item.version == null || storedVersion == null) throw ItemNotFoundException(item.id)
+            throw UnexpectedItemVersionException(item.version, storedVersion)
         }
-        // verify that the item with id exists and if version!=null then check that it matches
-        val storedItem = getById(item.id, item.version, false)
-        val itemToSave = item.copy(version = storedItem.version, createdDate = storedItem.createdDate)
-
-        // find the existing item-tag mappings
-        val currentItemTags = itemTagRepository.findAllByItemId(itemToSave.id!!).toList()
-
-        // Remove and add the links to the tags
+        // Reconcile the links to the tags in the database
         // As R2DBC does not support embedded IDs, the ItemTag entity has a technical key
-        // We can't just replace all ItemTags, we need to generate the proper insert/delete statements
-        val existingTagIds = currentItemTags.map(ItemTag::tagId)
-        val tagIdsToSave = itemToSave.tags?.map(Tag::id) ?: listOf()
-        // Item Tags to be deleted
-        val removedItemTags = currentItemTags.filter {
-            !tagIdsToSave.contains(it.tagId)
-        }
-        // Item Tags to be inserted
-        val addedItemTags = tagIdsToSave.filter { !existingTagIds.contains(it) }.map {
-            ItemTag(itemId = itemToSave.id, tagId = it)
-        }
-        itemTagRepository.deleteAll(removedItemTags)
-        addedItemTags.forEach {
-            // Note: saveAll does not work with R2DBC therefore each itemTag is saved, individually
-            itemTagRepository.save(it)
-        }
-        // Save the item
-        return itemRepository.save(itemToSave).also {
-            populateRelations(it)
+        // We can't just replace all ItemTags, only the removed ones are deleted and the added ones inserted
+        tagIds?.also {
+            itemTagRepository.replaceTagIds(item.id!!, it)
+            tagService.evictItemTags(listOf(item.id))
+        }
+        return populateRelations(updatedItem)
+    }
+
+    /**
+     * Collect the elements of a flow into lists of at most size elements
+     * @param size maximum number of elements in a list
+     * @return flow of lists
+     */
+    private fun <T> Flow<T>.chunked(size: Int): Flow<List<T>> = flow {
+        var chunk = ArrayList<T>(size)
+        collect {
+            chunk.add(it)
+            if (chunk.size >= size) {
+                emit(chunk)
+                chunk = ArrayList(size)
+            }
         }
+        if (chunk.isNotEmpty()) emit(chunk)
+    }
+
+    companion object {
+        // position before all changes used when no cursor is passed
+        private val CHANGES_EPOCH = LocalDateTime.of(1970, 1, 1, 0, 0)
+
+        private val POSITION_ORDER = compareBy<Pair<LocalDateTime, Long>>({ it.first }, { it.second })
+
+        private val WHITESPACE = Regex("\\s+")
     }
 
 }
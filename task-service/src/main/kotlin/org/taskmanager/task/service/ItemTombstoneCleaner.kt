@@ -0,0 +1,59 @@
+package org.taskmanager.task.service
+
+import kotlinx.coroutines.runBlocking
+import org.slf4j.LoggerFactory
+import org.springframework.beans.factory.DisposableBean
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.stereotype.Component
+import org.taskmanager.task.repository.ItemTombstoneRepository
+import java.time.Duration
+import java.time.LocalDateTime
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+/**
+ * Periodically remove the tombstones older than the retention.
+ * Delta synchronization cursors from before the retention are rejected by the ItemService.
+ */
+@Component
+class ItemTombstoneCleaner(
+    private val itemTombstoneRepository: ItemTombstoneRepository,
+    @Value("\${app.item.changes.tombstone-retention:30d}")
+    private val retention: Duration,
+    @Value("\${app.item.changes.tombstone-cleanup-interval:1h}")
+    cleanupInterval: Duration
+) : DisposableBean {
+
+    private val log = LoggerFactory.getLogger(ItemTombstoneCleaner::class.java)
+
+    private val scheduler = Executors.newSingleThreadScheduledExecutor { runnable ->
+        Thread(runnable, "item-tombstone-cleanup").apply { isDaemon = true }
+    }
+
+    init {
+        val interval = cleanupInterval.toMillis().coerceAtLeast(1)
+        scheduler.scheduleWithFixedDelay(::cleanup, interval, interval, TimeUnit.MILLISECONDS)
+    }
+
+    /**
+     * Remove the tombstones older than the retention
+     * @return number of removed tombstones
+     */
+    suspend fun removeExpired(): Int {
+        return itemTombstoneRepository.deleteByDeletedDateBefore(LocalDateTime.now().minus(retention))
+    }
+
+    override fun destroy() {
+        scheduler.shutdown()
+    }
+
+    private fun cleanup() {
+        try {
+            val removed = runBlocking { removeExpired() }
+            if (removed > 0) log.info("Removed $removed expired item tombstones")
+        } catch (e: Exception) {
+            // the next run removes them, a failure must not cancel the schedule
+            log.error("Failed to remove the expired item tombstones", e)
+        }
+    }
+}
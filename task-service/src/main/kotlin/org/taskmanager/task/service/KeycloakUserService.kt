@@ -1,52 +1,37 @@
 package org.taskmanager.task.service
 
-import org.keycloak.admin.client.CreatedResponseUtil
-import org.keycloak.admin.client.Keycloak
 import org.keycloak.representations.idm.CredentialRepresentation
 import org.keycloak.representations.idm.UserRepresentation
 import org.slf4j.LoggerFactory
 import org.springframework.beans.factory.annotation.Value
 import org.springframework.stereotype.Service
 import org.taskmanager.task.exception.GroupNotFoundException
-import javax.ws.rs.core.Response
+import org.taskmanager.task.keycloak.KeycloakAdminClient
 
 
 @Service
 class KeycloakUserService(
-    private val keycloak: Keycloak,
-    @Value("\${keycloak.realm}")
-    private val realm: String,
+    private val keycloakAdminClient: KeycloakAdminClient,
     @Value("\${keycloak.group-name}")
     private val groupName: String
 ) {
     private val log = LoggerFactory.getLogger(KeycloakUserService::class.java)
 
-    fun findAll(): List<UserRepresentation> =
-        keycloak
-            .realm(realm)
-            .users()
-            .list()
+    suspend fun findAll(): List<UserRepresentation> =
+        keycloakAdminClient.search()
 
-    fun findByUsername(username: String): List<UserRepresentation> =
-        keycloak
-            .realm(realm)
-            .users()
-            .search(username)
+    suspend fun findByUsername(username: String): List<UserRepresentation> =
+        keycloakAdminClient.search(username)
 
-    fun findById(id: String): UserRepresentation =
-        keycloak
-            .realm(realm)
-            .users()
-            .get(id)
-            .toRepresentation()
+    suspend fun findById(id: String): UserRepresentation? =
+        keycloakAdminClient.findById(id)
 
-    fun assignToGroup(userId: String, groupName: String) {
-        val realmResource = keycloak.realm(realm)
-        val groupRepresentations = realmResource.groups().groups(groupName, 0, 100)
+    suspend fun assignToGroup(userId: String, groupName: String) {
+        val groupRepresentations = keycloakAdminClient.findGroups(groupName)
         if (groupRepresentations.size != 1) throw GroupNotFoundException(groupName)
         val groupRepresentation = groupRepresentations.first()
         val groupId = groupRepresentation.id
-        realmResource.users().get(userId).joinGroup(groupId)
+        keycloakAdminClient.joinGroup(userId, groupId)
         log.debug("Keycloak user '${userId}' joined group '${groupName}' with id '${groupId}'")
     }
 
@@ -56,7 +41,7 @@ class KeycloakUserService(
      * @param password password of the user to be created
      * @return the userId of the user from Keycloak
      */
-    fun create(email: String, password: String, firstName: String?, lastName: String?): String {
+    suspend fun create(email: String, password: String, firstName: String?, lastName: String?): String {
         val passwordRepresentation = prepareCredentialRepresentation(password)
         val userRepresentation = prepareUserRepresentation(
             email,
@@ -64,11 +49,7 @@ class KeycloakUserService(
             lastName,
             passwordRepresentation
         )
-        val response = keycloak
-            .realm(realm)
-            .users()
-            .create(userRepresentation)
-        val userId = CreatedResponseUtil.getCreatedId(response)
+        val userId = keycloakAdminClient.create(userRepresentation)
         assignToGroup(userId, groupName)
         log.debug("Keycloak user '${email}' created with userId '${userId}'")
         return userId
@@ -79,7 +60,7 @@ class KeycloakUserService(
      * Only non-null parameters are respected
      * @param user user to be updated
      */
-    fun update(userId: String, email: String?, password: String?, firstName: String?, lastName: String?) {
+    suspend fun update(userId: String, email: String?, password: String?, firstName: String?, lastName: String?) {
         updateUser(
             userId = userId,
             email = email,
@@ -93,11 +74,8 @@ class KeycloakUserService(
      * Delete an existing user in the Keycloak realm
      * @param userId userId of the user to be deleted
      */
-    fun delete(userId: String): Response {
-        return keycloak
-            .realm(realm)
-            .users()
-            .delete(userId)
+    suspend fun delete(userId: String) {
+        keycloakAdminClient.delete(userId)
     }
 
     private fun prepareCredentialRepresentation(password: String): CredentialRepresentation {
@@ -124,18 +102,14 @@ class KeycloakUserService(
         return newUser
     }
 
-    private fun updateUser(userId: String, email: String?, password: String?, firstName: String?, lastName: String?) {
+    private suspend fun updateUser(userId: String, email: String?, password: String?, firstName: String?, lastName: String?) {
         val userRepresentation = prepareUserRepresentation(
             email = email,
             firstName = firstName,
             lastName = lastName,
             credentialRepresentation = password?.let(::prepareCredentialRepresentation)
         )
-        keycloak
-            .realm(realm)
-            .users()
-            .get(userId)
-            .update(userRepresentation)
+        keycloakAdminClient.update(userId, userRepresentation)
     }
 
 }
\ No newline at end of file
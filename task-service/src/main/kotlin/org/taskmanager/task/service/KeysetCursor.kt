@@ -0,0 +1,49 @@
+package org.taskmanager.task.service
+
+import org.taskmanager.task.exception.InvalidCursorException
+import java.time.DateTimeException
+import java.util.*
+
+/**
+ * Opaque cursor used for keyset pagination.
+ * It encodes the values of the sort key of the last element of a page.
+ */
+object KeysetCursor {
+
+    const val MAX_PAGE_SIZE = 2000
+
+    private const val SEPARATOR = "."
+
+    /**
+     * Encode the values of a sort key into a cursor
+     * @param values values of the sort key
+     * @return URL safe cursor
+     */
+    fun encode(vararg values: Any): String {
+        return values.joinToString(SEPARATOR) {
+            Base64.getUrlEncoder().withoutPadding().encodeToString(it.toString().toByteArray())
+        }
+    }
+
+    /**
+     * Decode a cursor into the values of a sort key
+     * @param cursor cursor that has been created with [encode]
+     * @param size expected number of values
+     * @param transform function converting the decoded values into the sort key
+     * @return the sort key
+     * @throws InvalidCursorException if the cursor is malformed
+     */
+    fun <T : Any> decode(cursor: String, size: Int, transform: (List<String>) -> T): T {
+        val key = try {
+            val values = cursor.split(SEPARATOR).map { String(Base64.getUrlDecoder().decode(it)) }
+            if (values.size == size) transform(values) else null
+        } catch (e: IllegalArgumentException) {
+            // invalid Base64 or number
+            null
+        } catch (e: DateTimeException) {
+            null
+        }
+        return key ?: throw InvalidCursorException(cursor)
+    }
+
+}
@@ -0,0 +1,33 @@
+package org.taskmanager.task.service
+
+import org.taskmanager.task.model.CacheInvalidation
+import org.taskmanager.task.model.CachedEntityType
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+
+/**
+ * In-process bus for a single replica: the invalidations are dispatched to the local listeners only
+ */
+class LocalCacheInvalidationBus : CacheInvalidationBus {
+
+    private val listeners = ConcurrentHashMap<CachedEntityType, MutableList<(CacheInvalidation) -> Unit>>()
+
+    override suspend fun publish(invalidations: Collection<CacheInvalidation>) {
+        if (invalidations.isEmpty()) return
+        afterCommit { dispatch(invalidations) }
+    }
+
+    override fun subscribe(entityType: CachedEntityType, listener: (CacheInvalidation) -> Unit) {
+        listeners.computeIfAbsent(entityType) { CopyOnWriteArrayList() }.add(listener)
+    }
+
+    /**
+     * Call the listeners of the invalidated entity types
+     * @param invalidations changed entities
+     */
+    fun dispatch(invalidations: Collection<CacheInvalidation>) {
+        invalidations.forEach { invalidation ->
+            listeners[invalidation.entityType]?.forEach { it(invalidation) }
+        }
+    }
+}
@@ -1,39 +1,84 @@
 package org.taskmanager.task.service
 
+import io.micrometer.core.instrument.MeterRegistry
 import kotlinx.coroutines.flow.toList
-import org.springframework.data.domain.Page
-import org.springframework.data.domain.PageImpl
+import org.springframework.beans.factory.annotation.Value
 import org.springframework.data.domain.Pageable
 import org.springframework.stereotype.Service
 import org.springframework.transaction.annotation.Transactional
+import org.taskmanager.task.api.dto.CursorPage
 import org.taskmanager.task.api.dto.TagCreateDto
 import org.taskmanager.task.api.dto.TagPatchDto
 import org.taskmanager.task.api.dto.TagDto
 import org.taskmanager.task.api.dto.TagUpdateDto
+import org.taskmanager.task.api.dto.TotalCountPage
 import org.taskmanager.task.exception.TagNotFoundException
 import org.taskmanager.task.exception.UnexpectedTagVersionException
 import org.taskmanager.task.mapper.toTag
 import org.taskmanager.task.mapper.toTagDto
+import org.taskmanager.task.model.CacheInvalidation
+import org.taskmanager.task.model.CachedEntityType
 import org.taskmanager.task.model.Tag
 import org.taskmanager.task.repository.ItemTagRepository
 import org.taskmanager.task.repository.TagRepository
+import java.time.LocalDateTime
 
 
 @Service
 class TagService(
     private val tagRepository: TagRepository,
-    private val itemTagRepository: ItemTagRepository
+    private val itemTagRepository: ItemTagRepository,
+    private val totalCountProvider: TotalCountProvider,
+    private val cacheInvalidationBus: CacheInvalidationBus,
+    meterRegistry: MeterRegistry,
+    @Value("\${app.cache.tag.max-size:10000}")
+    tagCacheMaxSize: Int,
+    @Value("\${app.cache.item-tag-ids.max-size:100000}")
+    itemTagIdsCacheMaxSize: Int
 ) {
 
+    // tags by id
+    private val tagCache = BoundedCache<Long, Tag>("tag", tagCacheMaxSize, meterRegistry) { it.copy() }
+
+    // ids of the tags of an item by item id
+    private val itemTagIdsCache = BoundedCache<Long, List<Long>>("item-tag-ids", itemTagIdsCacheMaxSize, meterRegistry)
+
+    init {
+        // evict the entries changed by other replicas
+        cacheInvalidationBus.subscribe(CachedEntityType.TAG) { tagCache.evict(it.id.toLong()) }
+        cacheInvalidationBus.subscribe(CachedEntityType.ITEM_TAGS) { itemTagIdsCache.evict(it.id.toLong()) }
+    }
+
     /**
      * Get a page of tags
      * @param pageable page definition
      * @return flow of tags
      */
-    suspend fun findAllBy(pageable: Pageable): Page<TagDto> {
-        val dataPage = tagRepository.findAllBy(pageable).toList()
-        val total = tagRepository.count()
-        return PageImpl(dataPage, pageable, total).map(Tag::toTagDto)
+    suspend fun findAllBy(pageable: Pageable): TotalCountPage<TagDto> {
+        val dataPage = tagRepository.findAllProjectedBy(pageable).toList()
+        val total = totalCountProvider.count("tag") { tagRepository.count() }
+        return TotalCountPage(dataPage, pageable, total)
+    }
+
+    /**
+     * Get a page of tags using keyset pagination ordered by name and id
+     * @param after cursor returned with the previous page or null to get the first page
+     * @param size maximum number of tags in the page
+     * @return page of tags with the cursor of the next page
+     */
+    suspend fun findAllAfter(after: String?, size: Int): CursorPage<TagDto> {
+        val limit = size.coerceIn(1, KeysetCursor.MAX_PAGE_SIZE)
+        val tags = if (after.isNullOrEmpty()) {
+            tagRepository.findFirstKeysetPage(limit)
+        } else {
+            KeysetCursor.decode(after, 2) { (name, id) ->
+                tagRepository.findKeysetPageAfter(name, id.toLong(), limit)
+            }
+        }.toList()
+        val nextCursor = tags.takeIf { it.size == limit }?.last()?.let {
+            KeysetCursor.encode(it.name!!, it.id!!)
+        }
+        return CursorPage(tags.map(Tag::toTagDto), limit, nextCursor)
     }
 
     /**
@@ -46,6 +91,58 @@ class TagService(
         return getTagById(id, version).toTagDto()
     }
 
+    /**
+     * Get the version of a tag without loading it
+     * @param id id of the tag
+     * @return the currently stored version
+     */
+    suspend fun getVersion(id: Long): Long {
+        return tagRepository.findVersionById(id) ?: throw TagNotFoundException(id)
+    }
+
+    /**
+     * Get the tags of a list of items from the cache.
+     * Only the item-tags and tags missing in the cache are loaded with one query each.
+     * @param itemIds ids of the items
+     * @return tags ordered by name by item id
+     */
+    suspend fun findTagsByItemIds(itemIds: Collection<Long>): Map<Long, List<Tag>> {
+        if (itemIds.isEmpty()) return mapOf()
+        val tagIdsByItemId = itemTagIdsCache.getAll(itemIds) { missingItemIds ->
+            val loaded = itemTagRepository.findAllByItemIdIn(missingItemIds).toList()
+                .groupBy({ it.itemId!! }, { it.tagId!! })
+            missingItemIds.associateWith { loaded[it] ?: listOf() }
+        }
+        val tagsById = findAllByIds(tagIdsByItemId.values.flatten().toSet())
+        return tagIdsByItemId.mapValues { (_, tagIds) ->
+            tagIds.mapNotNull(tagsById::get).sortedBy { it.name }
+        }
+    }
+
+    /**
+     * Get tags by id from the cache.
+     * Only the tags missing in the cache are loaded with one query.
+     * @param ids ids of the tags
+     * @return the existing tags by id
+     */
+    suspend fun findAllByIds(ids: Collection<Long>): Map<Long, Tag> {
+        return tagCache.getAll(ids) { missingIds ->
+            tagRepository.findAllById(missingIds).toList().associateBy { it.id!! }
+        }
+    }
+
+    /**
+     * Evict the cached tag ids of items after their item-tags have been changed.
+     * The entries are evicted immediately and again when the current transaction completes,
+     * the other replicas are notified after the commit.
+     * @param itemIds ids of the changed items
+     */
+    suspend fun evictItemTags(itemIds: Collection<Long>) {
+        itemTagIdsCache.evictAll(itemIds)
+        afterTransactionCompletion { itemTagIdsCache.evictAll(itemIds) }
+        cacheInvalidationBus.publish(itemIds.map { CacheInvalidation(CachedEntityType.ITEM_TAGS, it.toString()) })
+    }
+
     /**
      * Create a new tag
      * @param tag tag to be created
@@ -54,7 +151,10 @@ class TagService(
     @Transactional
     suspend fun create(tagCreateDto: TagCreateDto): TagDto {
         val tag = tagCreateDto.toTag()
-        return tagRepository.save(tag).toTagDto()
+        return tagRepository.save(tag).also {
+            evictTag(it.id!!)
+            totalCountProvider.invalidate("tag")
+        }.toTagDto()
     }
 
     /**
@@ -75,8 +175,7 @@ class TagService(
      */
     @Transactional
     suspend fun patch(id: Long, version: Long?, tagPatchDto: TagPatchDto): TagDto {
-        val existingTag = getTagById(id, version)
-        val patchedTag = tagPatchDto.toTag(existingTag)
+        val patchedTag = Tag(id = id, version = version, name = tagPatchDto.name.orElse(null))
         return updateTag(patchedTag).toTagDto()
     }
 
@@ -90,8 +189,11 @@ class TagService(
     suspend fun delete(id: Long, version: Long? = null) {
         // check that tag with this id exists
         val tag = getTagById(id, version)
+        evictItemTags(itemTagRepository.findAllByTagId(id).toList().map { it.itemId!! })
         itemTagRepository.deleteAllByTagId(id)
         tagRepository.delete(tag)
+        evictTag(id)
+        totalCountProvider.invalidate("tag")
     }
 
     /**
@@ -113,11 +215,27 @@ class TagService(
         if (tag.id == null) {
             throw IllegalArgumentException("When updating a tag, the id must be provided")
         }
-        // verify that the tag with id exists and if version!=null then check that it matches
-        val storedTag = getById(tag.id, tag.version)
-        val tagToSave = tag.copy(version = storedTag.version, createdDate = storedTag.createdDate)
-        // Save the tag
-        return tagRepository.save(tagToSave)
+        // update the tag if it exists and if version!=null the version matches
+        val updatedTag = tagRepository.updateIfVersionMatches(tag.id, tag.version, tag.name, LocalDateTime.now())
+        evictTag(tag.id)
+        if (updatedTag == null) {
+            // Optimistic locking: the tag is either missing or has a different version
+            val storedVersion = tagRepository.findById(tag.id)?.version
+            if (tag.version == null || storedVersion == null) throw TagNotFoundException(tag.id)
+            throw UnexpectedTagVersionException(tag.version, storedVersion)
+        }
+        return updatedTag
+    }
+
+    /**
+     * Evict a cached tag immediately and again when the current transaction completes,
+     * the other replicas are notified after the commit
+     * @param id id of the tag
+     */
+    private suspend fun evictTag(id: Long) {
+        tagCache.evict(id)
+        afterTransactionCompletion { tagCache.evict(id) }
+        cacheInvalidationBus.publish(listOf(CacheInvalidation(CachedEntityType.TAG, id.toString())))
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,95 @@
+package org.taskmanager.task.service
+
+import kotlinx.coroutines.CancellationException
+import org.slf4j.LoggerFactory
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.r2dbc.core.DatabaseClient
+import org.springframework.r2dbc.core.awaitOneOrNull
+import org.springframework.stereotype.Component
+import org.taskmanager.task.api.dto.TotalCount
+import org.taskmanager.task.api.dto.TotalCountMode
+import java.time.Duration
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Provide the total number of rows of a table for paged responses
+ * without necessarily running a count(*) on every request.
+ */
+@Component
+class TotalCountProvider(
+    private val databaseClient: DatabaseClient,
+    @Value("\${app.total-count.mode:exact}")
+    private val mode: TotalCountMode,
+    @Value("\${app.total-count.ttl:10s}")
+    private val ttl: Duration,
+    @Value("\${app.total-count.estimate-threshold:100000}")
+    private val estimateThreshold: Long
+) {
+
+    private data class CachedCount(val value: Long, val expiresAt: Long)
+
+    private val log = LoggerFactory.getLogger(TotalCountProvider::class.java)
+
+    private val cache = ConcurrentHashMap<String, CachedCount>()
+
+    // incremented by every invalidation, only changed while the cache entry of the table is locked
+    private val generations = ConcurrentHashMap<String, Long>()
+
+    /**
+     * Get the total number of rows of a table
+     * @param table name of the table
+     * @param exactCount function that counts the rows of the table exactly
+     * @return the total and the mode that produced it
+     */
+    suspend fun count(table: String, exactCount: suspend () -> Long): TotalCount {
+        return when (mode) {
+            TotalCountMode.EXACT -> TotalCount(exactCount(), TotalCountMode.EXACT)
+            TotalCountMode.CACHED -> cachedCount(table, exactCount)
+            TotalCountMode.ESTIMATED -> estimatedCount(table)
+                ?.takeIf { it >= estimateThreshold }
+                ?.let { TotalCount(it, TotalCountMode.ESTIMATED) }
+            // estimates of small or never analyzed tables are unreliable
+                ?: TotalCount(exactCount(), TotalCountMode.EXACT)
+        }
+    }
+
+    /**
+     * Invalidate the cached total of a table once the current transaction has completed,
+     * so that a concurrent request cannot cache the count from before the commit.
+     * Must be called whenever rows are inserted into or deleted from the table.
+     * @param table name of the table
+     */
+    suspend fun invalidate(table: String) {
+        afterTransactionCompletion {
+            cache.compute(table) { _, _ ->
+                generations.merge(table, 1, Long::plus)
+                null
+            }
+        }
+    }
+
+    private suspend fun cachedCount(table: String, exactCount: suspend () -> Long): TotalCount {
+        val now = System.nanoTime()
+        cache[table]?.takeIf { it.expiresAt - now > 0 }?.also { return TotalCount(it.value, TotalCountMode.CACHED) }
+        val generation = generations[table]
+        val count = CachedCount(exactCount(), now + ttl.toNanos())
+        // a count that started before an invalidation may be stale and is not cached
+        cache.compute(table) { _, cachedCount -> if (generations[table] == generation) count else cachedCount }
+        return TotalCount(count.value, TotalCountMode.CACHED)
+    }
+
+    private suspend fun estimatedCount(table: String): Long? {
+        return try {
+            databaseClient.sql("SELECT CAST(reltuples AS BIGINT) AS estimate FROM pg_class WHERE oid = to_regclass(:table)")
+                .bind("table", table)
+                .map { row -> row.get("estimate", Number::class.java)?.toLong() ?: -1 }
+                .awaitOneOrNull()
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: Exception) {
+            log.debug("Unable to estimate the number of rows of table '$table': ${e.message}")
+            null
+        }
+    }
+
+}
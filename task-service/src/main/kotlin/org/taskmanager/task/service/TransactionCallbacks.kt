@@ -0,0 +1,47 @@
+package org.taskmanager.task.service
+
+import kotlinx.coroutines.reactor.awaitSingleOrNull
+import org.springframework.transaction.NoTransactionException
+import org.springframework.transaction.reactive.TransactionSynchronization
+import org.springframework.transaction.reactive.TransactionSynchronizationManager
+import reactor.core.publisher.Mono
+
+/**
+ * Run an action when the current reactive transaction has completed, after a commit or a rollback.
+ * Without an active transaction the action runs immediately.
+ * @param action action to be run
+ */
+suspend fun afterTransactionCompletion(action: () -> Unit) {
+    val registered = registerSynchronization(object : TransactionSynchronization {
+        override fun afterCompletion(status: Int): Mono<Void> = Mono.fromRunnable(action)
+    })
+    if (!registered) action()
+}
+
+/**
+ * Run an action when the current reactive transaction has been committed, it is dropped on a rollback.
+ * Without an active transaction the action runs immediately.
+ * @param action action to be run
+ */
+suspend fun afterCommit(action: () -> Unit) {
+    val registered = registerSynchronization(object : TransactionSynchronization {
+        override fun afterCommit(): Mono<Void> = Mono.fromRunnable(action)
+    })
+    if (!registered) action()
+}
+
+/**
+ * Register a synchronization with the current reactive transaction
+ * @param synchronization synchronization to be registered
+ * @return false if there is no active transaction
+ */
+private suspend fun registerSynchronization(synchronization: TransactionSynchronization): Boolean {
+    return TransactionSynchronizationManager.forCurrentTransaction()
+        .filter { it.isSynchronizationActive }
+        .map {
+            it.registerSynchronization(synchronization)
+            true
+        }
+        .onErrorResume(NoTransactionException::class.java) { Mono.empty() }
+        .awaitSingleOrNull() ?: false
+}
@@ -1,24 +1,36 @@
 package org.taskmanager.task.service
 
+import io.micrometer.core.instrument.MeterRegistry
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
 import kotlinx.coroutines.flow.toList
-import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
 import org.keycloak.representations.idm.UserRepresentation
 import org.slf4j.LoggerFactory
-import org.springframework.data.domain.Page
-import org.springframework.data.domain.PageImpl
+import org.springframework.beans.factory.annotation.Value
 import org.springframework.data.domain.Pageable
 import org.springframework.stereotype.Service
 import org.springframework.transaction.annotation.Transactional
+import org.springframework.transaction.reactive.TransactionalOperator
+import org.springframework.transaction.reactive.executeAndAwait
+import org.taskmanager.task.api.dto.CursorPage
+import org.taskmanager.task.api.dto.TotalCountPage
 import org.taskmanager.task.api.dto.UserDto
 import org.taskmanager.task.exception.UnexpectedUserVersionException
 import org.taskmanager.task.exception.UserNotFoundException
 import org.taskmanager.task.mapper.toUser
 import org.taskmanager.task.mapper.toUserDto
+import org.taskmanager.task.model.CacheInvalidation
+import org.taskmanager.task.model.CachedEntityType
 import org.taskmanager.task.model.User
 import org.taskmanager.task.repository.ItemRepository
 import org.taskmanager.task.repository.ItemTagRepository
+import org.taskmanager.task.repository.ItemTombstoneRepository
 import org.taskmanager.task.repository.UserRepository
-import javax.ws.rs.NotFoundException
+import java.time.Duration
+import java.time.LocalDateTime
 
 
 @Service
@@ -26,38 +38,85 @@ class UserService(
     private val keycloakUserService: KeycloakUserService,
     private val userRepository: UserRepository,
     private val itemRepository: ItemRepository,
-    private val itemTagRepository: ItemTagRepository
+    private val itemTagRepository: ItemTagRepository,
+    private val itemTombstoneRepository: ItemTombstoneRepository,
+    private val tagService: TagService,
+    private val totalCountProvider: TotalCountProvider,
+    private val itemEventPublisher: ItemEventPublisher,
+    private val transactionalOperator: TransactionalOperator,
+    private val cacheInvalidationBus: CacheInvalidationBus,
+    meterRegistry: MeterRegistry,
+    @Value("\${app.cache.user.max-size:10000}")
+    userCacheMaxSize: Int,
+    @Value("\${app.cache.user.ttl:10m}")
+    userCacheTtl: Duration,
+    @Value("\${keycloak.sync.fetch-concurrency:8}")
+    private val keycloakFetchConcurrency: Int
 ) {
 
     private val log = LoggerFactory.getLogger(UserService::class.java)
 
+    // users by internal id and by Keycloak userId
+    private val userByIdCache =
+        BoundedCache<Long, User>("user-by-id", userCacheMaxSize, meterRegistry, userCacheTtl) { it.copy() }
+    private val userByUserIdCache =
+        BoundedCache<String, User>("user-by-user-id", userCacheMaxSize, meterRegistry, userCacheTtl) { it.copy() }
+
+    init {
+        // evict the users changed by other replicas
+        cacheInvalidationBus.subscribe(CachedEntityType.USER) { invalidation ->
+            val id = invalidation.id.toLong()
+            userByIdCache.evict(id)
+            userByUserIdCache.evictIf { it.id == id }
+        }
+    }
+
     /**
      * Synchronize user from Keycloak
+     * @param userId Keycloak id of the user
      */
-    fun synchronizeUserFromKeycloak(userId: String) {
-        log.info("Synchronizing user with id '$userId' from Keycloak")
-
-        val keycloakUserRepresentation = try {
-            keycloakUserService.findById(userId)
-        } catch (e: NotFoundException) {
-            null
-        }
+    suspend fun synchronizeUserFromKeycloak(userId: String) {
+        synchronizeUsersFromKeycloak(listOf(userId))
+    }
 
-        runBlocking {
-            val localUser = userRepository.findByUserId(userId)
-            if (keycloakUserRepresentation != null) {
-                if (localUser != null) {
-                    log.info("Updating user with id '$userId' after an update in Keycloak")
-                    update(keycloakUserRepresentation)
-                } else {
-                    log.info("Creating user user with id '$userId' after creation in Keycloak")
-                    create(keycloakUserRepresentation)
+    /**
+     * Synchronize several users from Keycloak.
+     * The users whose state is not known are fetched concurrently from Keycloak
+     * and the local users are changed in one transaction.
+     * Nothing is changed if a user cannot be fetched from Keycloak, the failure is thrown so that it can be retried.
+     * A known state is ignored if the user has already been synchronized with a later event.
+     * @param userIds Keycloak ids of the users
+     * @param knownKeycloakUsers current Keycloak state of some of the users, null for deleted users
+     * @param eventTimes time of the latest Keycloak event of each user
+     */
+    suspend fun synchronizeUsersFromKeycloak(
+        userIds: Collection<String>,
+        knownKeycloakUsers: Map<String, UserRepresentation?> = emptyMap(),
+        eventTimes: Map<String, Long> = emptyMap()
+    ) {
+        val distinctUserIds = userIds.distinct()
+        val missingUserIds = distinctUserIds.filterNot(knownKeycloakUsers::containsKey)
+        log.info("Synchronizing ${distinctUserIds.size} users from Keycloak, fetching ${missingUserIds.size}")
+        val fetchPermits = Semaphore(keycloakFetchConcurrency)
+        val fetchedKeycloakUsers = coroutineScope {
+            missingUserIds.map { userId ->
+                async {
+                    fetchPermits.withPermit {
+                        userId to keycloakUserService.findById(userId)
+                    }
                 }
-            } else {
-                if (localUser != null) {
-                    log.info("Deleting user with id '$userId' after deletion from Keycloak")
-                    delete(userId)
-                } else null
+            }.awaitAll()
+        }
+        val keycloakUsers = distinctUserIds.filter(knownKeycloakUsers::containsKey)
+            .map { it to knownKeycloakUsers[it] } + fetchedKeycloakUsers
+        transactionalOperator.executeAndAwait {
+            val localUserIds = userRepository.findByUserIdIn(keycloakUsers.map { it.first }).toList()
+                .mapTo(HashSet()) { it.userId!! }
+            keycloakUsers.forEach { (userId, keycloakUserRepresentation) ->
+                synchronizeUser(
+                    userId, keycloakUserRepresentation, localUserIds.contains(userId),
+                    eventTimes[userId], knownKeycloakUsers.containsKey(userId)
+                )
             }
         }
     }
@@ -67,10 +126,31 @@ class UserService(
      * @param pageable page definition
      * @return Page of users
      */
-    suspend fun findAllBy(pageable: Pageable): Page<UserDto> {
-        val dataPage = userRepository.findAllBy(pageable).toList()
-        val total = userRepository.count()
-        return PageImpl(dataPage, pageable, total).map(User::toUserDto)
+    suspend fun findAllBy(pageable: Pageable): TotalCountPage<UserDto> {
+        val dataPage = userRepository.findAllProjectedBy(pageable).toList()
+        val total = totalCountProvider.count("users") { userRepository.count() }
+        return TotalCountPage(dataPage, pageable, total)
+    }
+
+    /**
+     * Get a page of users using keyset pagination ordered by firstName, lastName, email and id
+     * @param after cursor returned with the previous page or null to get the first page
+     * @param size maximum number of users in the page
+     * @return page of users with the cursor of the next page
+     */
+    suspend fun findAllAfter(after: String?, size: Int): CursorPage<UserDto> {
+        val limit = size.coerceIn(1, KeysetCursor.MAX_PAGE_SIZE)
+        val users = if (after.isNullOrEmpty()) {
+            userRepository.findFirstKeysetPage(limit)
+        } else {
+            KeysetCursor.decode(after, 4) { (firstName, lastName, email, id) ->
+                userRepository.findKeysetPageAfter(firstName, lastName, email, id.toLong(), limit)
+            }
+        }.toList()
+        val nextCursor = users.takeIf { it.size == limit }?.last()?.let {
+            KeysetCursor.encode(it.firstName ?: "", it.lastName ?: "", it.email!!, it.id!!)
+        }
+        return CursorPage(users.map(User::toUserDto), limit, nextCursor)
     }
 
     /**
@@ -83,21 +163,92 @@ class UserService(
         return getUserByUserId(userId, version).toUserDto()
     }
 
+    /**
+     * Get users by internal id from the cache.
+     * Only the users missing in the cache are loaded with one query.
+     * @param ids internal ids of the users
+     * @return the existing users by id
+     */
+    suspend fun findAllByIds(ids: Collection<Long>): Map<Long, User> {
+        return userByIdCache.getAll(ids) { missingIds ->
+            userByUserIdCache.loading { stamp ->
+                userRepository.findAllById(missingIds).toList()
+                    .also { users -> userByUserIdCache.putAll(users.associateBy { it.userId!! }, stamp) }
+                    .associateBy { it.id!! }
+            }
+        }
+    }
+
+    /**
+     * Get users by Keycloak userId from the cache.
+     * Only the users missing in the cache are loaded with one query.
+     * @param userIds Keycloak ids of the users
+     * @return the existing users by userId
+     */
+    suspend fun findAllByUserIds(userIds: Collection<String>): Map<String, User> {
+        return userByUserIdCache.getAll(userIds) { missingUserIds ->
+            userByIdCache.loading { stamp ->
+                userRepository.findByUserIdIn(missingUserIds).toList()
+                    .also { users -> userByIdCache.putAll(users.associateBy { it.id!! }, stamp) }
+                    .associateBy { it.userId!! }
+            }
+        }
+    }
+
+    /**
+     * Get a user by Keycloak userId from the cache
+     * @param userId Keycloak id of the user
+     * @return the user or null if it does not exist
+     */
+    suspend fun findByUserId(userId: String): User? {
+        return findAllByUserIds(listOf(userId))[userId]
+    }
+
+    /**
+     * Create, update or delete the local user according to its state in Keycloak
+     * @param userId Keycloak id of the user
+     * @param keycloakUserRepresentation current state of the user in Keycloak, null if it has been deleted
+     * @param localUserExists whether the user is stored locally
+     * @param eventTime time of the latest Keycloak event of the user if known
+     * @param known whether the state has been carried by the event, it is outdated if the user
+     * has been synchronized with a later event, while a fetched state is always current
+     */
+    private suspend fun synchronizeUser(
+        userId: String,
+        keycloakUserRepresentation: UserRepresentation?,
+        localUserExists: Boolean,
+        eventTime: Long?,
+        known: Boolean
+    ) {
+        if (keycloakUserRepresentation != null) {
+            val user = keycloakUserRepresentation.toUser().apply { keycloakEventTime = eventTime }
+            if (localUserExists) {
+                log.info("Updating user with id '$userId' after an update in Keycloak")
+                val maxKeycloakEventTime = if (known && eventTime != null) eventTime else Long.MAX_VALUE
+                if (updateUser(user, maxKeycloakEventTime) == null) {
+                    log.info("Ignoring the outdated state of user with id '$userId' from an earlier Keycloak event")
+                }
+            } else {
+                log.info("Creating user user with id '$userId' after creation in Keycloak")
+                create(user)
+            }
+        } else if (localUserExists) {
+            log.info("Deleting user with id '$userId' after deletion from Keycloak")
+            delete(userId)
+        }
+    }
+
     /**
      * Create a new user
      * @param user user to be created
      * @return the created user without the related entities
      */
     @Transactional
-    protected suspend fun create(userRepresentation: UserRepresentation): UserDto {
-        val user = userRepresentation.toUser()
-        return userRepository.save(user).toUserDto()
-    }
-
-    @Transactional
-    protected suspend fun update(userRepresentation: UserRepresentation): UserDto {
-        val user = userRepresentation.toUser()
-        return updateUser(user).toUserDto()
+    protected suspend fun create(user: User): UserDto {
+        return userRepository.save(user).also {
+            evictUser(it)
+            totalCountProvider.invalidate("users")
+        }.toUserDto()
     }
 
     /**
@@ -108,20 +259,25 @@ class UserService(
      */
     @Transactional
     protected suspend fun delete(userId: String, version: Long? = null) {
-        // check that user with this id exists
+        // check that user with this id exists, it has already been deleted in Keycloak
         val user = getUserByUserId(userId, version)
-        keycloakUserService.delete(userId)
         val userId = user.id!!
         val itemsOfUser = itemRepository.findByAssigneeId(userId).toList()
         itemsOfUser.forEach {
             itemTagRepository.deleteAllByItemId(it.id!!)
         }
+        tagService.evictItemTags(itemsOfUser.map { it.id!! })
+        itemTombstoneRepository.insertForAssigneeId(userId, LocalDateTime.now())
         itemRepository.deleteByAssigneeId(userId)
         userRepository.delete(user)
+        evictUser(user)
+        totalCountProvider.invalidate("item")
+        totalCountProvider.invalidate("users")
+        itemEventPublisher.publishDeleted(itemsOfUser.map { it.id!! })
     }
 
     private suspend fun getUserByUserId(userId: String, version: Long? = null): User {
-        val user = userRepository.findByUserId(userId)
+        val user = findByUserId(userId)
             ?: throw UserNotFoundException(userId)
         if (version != null && version != user.version) {
             // Optimistic locking: pre-check
@@ -134,20 +290,41 @@ class UserService(
      * Update a user with version check
      * @param userId userId of the user to be updated
      * @param user object that contains the values to be updated
-     * @return the updated user
+     * @param maxKeycloakEventTime the user is not updated if it has been synchronized with a later Keycloak event
+     * @return the updated user or null if it has been synchronized with a later Keycloak event
      */
-    private suspend fun updateUser(user: User): User {
-        // verify that the user with userId exists and if version!=null then check that it matches
+    private suspend fun updateUser(user: User, maxKeycloakEventTime: Long = Long.MAX_VALUE): User? {
+        // update the user if it exists and if version!=null the version matches
         val userId = user.userId ?: throw IllegalArgumentException("When updating a user a userId must be provided")
-        val storedUser = getUserByUserId(userId, user.version)
-        val userToSave = user.copy(
-            id = storedUser.id,
-            userId = storedUser.userId,
-            version = storedUser.version,
-            createdDate = storedUser.createdDate
+        val updatedUser = userRepository.updateIfVersionMatches(
+            userId, user.version, user.email, user.firstName, user.lastName,
+            user.keycloakEventTime ?: 0, maxKeycloakEventTime, LocalDateTime.now()
         )
-        // Save the user
-        return userRepository.save(userToSave)
+        if (updatedUser == null) {
+            // Optimistic locking: the user is either missing or has a different version
+            val storedUser = userRepository.findByUserId(userId) ?: throw UserNotFoundException(userId)
+            if ((storedUser.keycloakEventTime ?: 0) > maxKeycloakEventTime) return null
+            if (user.version == null) throw UserNotFoundException(userId)
+            throw UnexpectedUserVersionException(user.version, storedUser.version!!)
+        }
+        return updatedUser.also { evictUser(it) }
+    }
+
+    /**
+     * Evict a cached user by both keys immediately and again when the current transaction completes,
+     * the other replicas are notified after the commit
+     * @param user user to be evicted
+     */
+    private suspend fun evictUser(user: User) {
+        val id = user.id!!
+        val userId = user.userId!!
+        userByIdCache.evict(id)
+        userByUserIdCache.evict(userId)
+        afterTransactionCompletion {
+            userByIdCache.evict(id)
+            userByUserIdCache.evict(userId)
+        }
+        cacheInvalidationBus.publish(listOf(CacheInvalidation(CachedEntityType.USER, id.toString())))
     }
 
 }
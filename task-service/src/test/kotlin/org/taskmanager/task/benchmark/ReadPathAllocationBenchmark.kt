@@ -0,0 +1,133 @@
+package org.taskmanager.task.benchmark
+
+import kotlinx.coroutines.flow.toList
+import kotlinx.coroutines.runBlocking
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.Tag
+import org.junit.jupiter.api.Test
+import org.slf4j.LoggerFactory
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.data.domain.PageRequest
+import org.springframework.data.domain.Sort
+import org.taskmanager.task.IntegrationTest
+import org.taskmanager.task.mapper.toItemDto
+import org.taskmanager.task.mapper.toTagDto
+import org.taskmanager.task.mapper.toUserDto
+import org.taskmanager.task.model.Item
+import org.taskmanager.task.model.ItemFilter
+import org.taskmanager.task.model.Tag as TagEntity
+import org.taskmanager.task.model.User
+import org.taskmanager.task.repository.ItemRepository
+import org.taskmanager.task.repository.TagRepository
+import org.taskmanager.task.repository.UserRepository
+import org.taskmanager.task.service.TagService
+import org.taskmanager.task.service.UserService
+import java.lang.management.ManagementFactory
+
+/**
+ * Compares the bytes allocated by the entity read path (entity, then mapper to dto)
+ * with the projection read path (row straight to dto) of the list endpoints.
+ * Run with `./gradlew benchmark`.
+ */
+@IntegrationTest
+@Tag("benchmark")
+class ReadPathAllocationBenchmark(
+    @Autowired val tagRepository: TagRepository,
+    @Autowired val userRepository: UserRepository,
+    @Autowired val itemRepository: ItemRepository,
+    @Autowired val tagService: TagService,
+    @Autowired val userService: UserService
+) {
+
+    private val log = LoggerFactory.getLogger(ReadPathAllocationBenchmark::class.java)
+
+    private val pageable = PageRequest.of(0, 100, Sort.by("id"))
+
+    @Test
+    fun `tag projection allocates less than entity mapping`() {
+        assertProjectionAllocatesLess(
+            "tag",
+            entityPath = { tagRepository.findAllBy(pageable).toList().map(TagEntity::toTagDto) },
+            projectionPath = { tagRepository.findAllProjectedBy(pageable).toList() }
+        )
+    }
+
+    @Test
+    fun `user projection allocates less than entity mapping`() {
+        assertProjectionAllocatesLess(
+            "user",
+            entityPath = { userRepository.findAllBy(pageable).toList().map(User::toUserDto) },
+            projectionPath = { userRepository.findAllProjectedBy(pageable).toList() }
+        )
+    }
+
+    @Test
+    fun `item projection allocation is reported`() {
+        // the joined query reads wider rows than the page query with cached relations,
+        // so the numbers are reported but the strategies are not ranked
+        measure(
+            "item",
+            entityPath = {
+                // the relations come from warm caches just like on the list endpoint
+                val items = itemRepository.findAllBy(ItemFilter(), pageable).toList()
+                val tagsByItemId = tagService.findTagsByItemIds(items.map { it.id!! })
+                val assigneesById = userService.findAllByIds(items.mapNotNull(Item::assigneeId))
+                items.map {
+                    it.tags = tagsByItemId[it.id]
+                    it.assignee = assigneesById[it.assigneeId]
+                    it.toItemDto()
+                }
+            },
+            projectionPath = { itemRepository.findAllWithRelations(ItemFilter(), pageable) }
+        )
+    }
+
+    private fun assertProjectionAllocatesLess(
+        name: String,
+        entityPath: suspend () -> List<Any>,
+        projectionPath: suspend () -> List<Any>
+    ) {
+        val (entityBytes, projectionBytes) = measure(name, entityPath, projectionPath)
+        assertThat(projectionBytes).`as`("$name page: bytes per read of the projection path").isLessThan(entityBytes)
+    }
+
+    /**
+     * Measure the average bytes allocated per read of both paths
+     * @return bytes of the entity path and bytes of the projection path
+     */
+    private fun measure(
+        name: String,
+        entityPath: suspend () -> List<Any>,
+        projectionPath: suspend () -> List<Any>
+    ): Pair<Long, Long> {
+        return runBlocking {
+            // same result, then warm up both paths before measuring
+            assertThat(projectionPath()).isEqualTo(entityPath())
+            repeat(WARMUP_ITERATIONS) {
+                entityPath()
+                projectionPath()
+            }
+            val entityBytes = allocatedBytes { repeat(ITERATIONS) { entityPath() } } / ITERATIONS
+            val projectionBytes = allocatedBytes { repeat(ITERATIONS) { projectionPath() } } / ITERATIONS
+            log.info("{} page: entity path {} bytes, projection path {} bytes per read", name, entityBytes, projectionBytes)
+            Pair(entityBytes, projectionBytes)
+        }
+    }
+
+    /**
+     * Bytes allocated by all live threads while running a block,
+     * the database driver may hand over work to other threads than the calling one
+     */
+    private suspend fun allocatedBytes(block: suspend () -> Unit): Long {
+        val threadMXBean = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+        val before = threadMXBean.getThreadAllocatedBytes(threadMXBean.allThreadIds).filter { it > 0 }.sum()
+        block()
+        val after = threadMXBean.getThreadAllocatedBytes(threadMXBean.allThreadIds).filter { it > 0 }.sum()
+        return after - before
+    }
+
+    companion object {
+        private const val WARMUP_ITERATIONS = 500
+        private const val ITERATIONS = 2000
+    }
+}
@@ -0,0 +1,190 @@
+package org.taskmanager.task.configuration.keycloak
+
+import com.fasterxml.jackson.databind.DeserializationFeature
+import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
+import com.fasterxml.jackson.module.kotlin.readValue
+import io.netty.handler.codec.http.HttpResponseStatus
+import io.netty.handler.codec.http.QueryStringDecoder
+import org.keycloak.representations.idm.UserRepresentation
+import org.springframework.beans.factory.DisposableBean
+import org.springframework.http.HttpHeaders
+import org.springframework.http.MediaType
+import reactor.core.publisher.Mono
+import reactor.netty.DisposableServer
+import reactor.netty.http.server.HttpServer
+import reactor.netty.http.server.HttpServerRequest
+import reactor.netty.http.server.HttpServerResponse
+import java.time.Duration
+import java.util.UUID.randomUUID
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Local HTTP server implementing the token endpoint and the parts of the Keycloak admin api
+ * used by the task-service on top of a fakeKeycloakUserStore
+ */
+class KeycloakStubServer(
+    private val userStore: FakeKeycloakUserStore,
+    realm: String
+) : DisposableBean {
+
+    private val objectMapper = jacksonObjectMapper()
+        .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+
+    // access tokens accepted by the admin api
+    private val validTokens = ConcurrentHashMap.newKeySet<String>()
+
+    // number of tokens issued by the token endpoint
+    val tokenRequests = AtomicInteger()
+
+    // lifespan of the issued tokens
+    @Volatile
+    var tokenLifespan: Duration = Duration.ofMinutes(5)
+
+    // delay of the responses of the admin api
+    @Volatile
+    var responseDelay: Duration = Duration.ZERO
+
+    // ids of the users whose requests fail with an internal server error
+    val failingUserIds: MutableSet<String> = ConcurrentHashMap.newKeySet()
+
+    private val server: DisposableServer = HttpServer.create()
+        .host("localhost")
+        .port(0)
+        .route { routes ->
+            val adminPath = "/admin/realms/$realm"
+            routes
+                .post("/realms/$realm/protocol/openid-connect/token") { _, response -> issueToken(response) }
+                .get("$adminPath/users") { request, response ->
+                    admin(request, response) {
+                        val username = QueryStringDecoder(request.uri()).parameters()["username"]?.first()
+                        val users = userStore.users.values
+                            .filter { username == null || it.username.contains(username) }
+                            .map { it.toUserRepresentation() }
+                        json(response, users)
+                    }
+                }
+                .post("$adminPath/users") { request, response ->
+                    admin(request, response) {
+                        request.receive().aggregate().asString().flatMap { body ->
+                            val user = objectMapper.readValue<UserRepresentation>(body)
+                            val userId = randomUUID().toString()
+                            userStore.users[userId] = FakeKeycloakUser(
+                                userId = userId,
+                                username = user.username,
+                                email = user.email,
+                                firstName = user.firstName,
+                                lastName = user.lastName,
+                                password = user.credentials.first().value,
+                                isEnabled = user.isEnabled
+                            )
+                            response.status(HttpResponseStatus.CREATED)
+                                .header(HttpHeaders.LOCATION, "$url$adminPath/users/$userId")
+                                .send()
+                        }
+                    }
+                }
+                .get("$adminPath/users/{id}") { request, response ->
+                    admin(request, response) {
+                        if (failingUserIds.contains(request.param("id"))) {
+                            return@admin response.status(HttpResponseStatus.INTERNAL_SERVER_ERROR).send()
+                        }
+                        userStore.users[request.param("id")]
+                            ?.let { json(response, it.toUserRepresentation()) }
+                            ?: response.status(HttpResponseStatus.NOT_FOUND).send()
+                    }
+                }
+                .put("$adminPath/users/{id}") { request, response ->
+                    admin(request, response) {
+                        val user = userStore.users[request.param("id")]
+                            ?: return@admin response.status(HttpResponseStatus.NOT_FOUND).send()
+                        request.receive().aggregate().asString().flatMap { body ->
+                            val update = objectMapper.readValue<UserRepresentation>(body)
+                            update.username?.also { user.username = it }
+                            update.email?.also { user.email = it }
+                            update.firstName?.also { user.firstName = it }
+                            update.lastName?.also { user.lastName = it }
+                            update.credentials?.first()?.value?.also { user.password = it }
+                            update.isEnabled?.also { user.isEnabled = it }
+                            response.status(HttpResponseStatus.NO_CONTENT).send()
+                        }
+                    }
+                }
+                .delete("$adminPath/users/{id}") { request, response ->
+                    admin(request, response) {
+                        val userId = request.param("id")
+                        val status = if (userStore.users.remove(userId) != null) {
+                            HttpResponseStatus.NO_CONTENT
+                        } else {
+                            HttpResponseStatus.NOT_FOUND
+                        }
+                        userStore.groupUsers.remove(userId)
+                        response.status(status).send()
+                    }
+                }
+                .put("$adminPath/users/{id}/groups/{groupId}") { request, response ->
+                    admin(request, response) {
+                        val userId = request.param("id")!!
+                        if (request.param("groupId") != userStore.group.id || !userStore.users.containsKey(userId)) {
+                            return@admin response.status(HttpResponseStatus.NOT_FOUND).send()
+                        }
+                        userStore.groupUsers.add(userId)
+                        response.status(HttpResponseStatus.NO_CONTENT).send()
+                    }
+                }
+                .get("$adminPath/groups") { request, response ->
+                    admin(request, response) {
+                        val search = QueryStringDecoder(request.uri()).parameters()["search"]?.first() ?: ""
+                        val groups = listOf(userStore.group)
+                            .filter { it.name.contains(search) }
+                            .map { it.toGroupRepresentation() }
+                        json(response, groups)
+                    }
+                }
+        }
+        .bindNow()
+
+    // base url of the server
+    val url: String = "http://localhost:${server.port()}"
+
+    /**
+     * Reject all tokens issued so far like Keycloak does after a restart or a revocation
+     */
+    fun revokeTokens() {
+        validTokens.clear()
+    }
+
+    override fun destroy() {
+        server.disposeNow()
+    }
+
+    private fun issueToken(response: HttpServerResponse): Mono<Void> {
+        val token = "token-${tokenRequests.incrementAndGet()}"
+        validTokens.add(token)
+        val tokenResponse = mapOf(
+            "access_token" to token,
+            "expires_in" to tokenLifespan.seconds,
+            "token_type" to "Bearer"
+        )
+        return json(response, tokenResponse)
+    }
+
+    private fun admin(
+        request: HttpServerRequest,
+        response: HttpServerResponse,
+        handler: () -> Mono<Void>
+    ): Mono<Void> {
+        val token = request.requestHeaders()[HttpHeaders.AUTHORIZATION]?.removePrefix("Bearer ")
+        if (token == null || !validTokens.contains(token)) {
+            return response.status(HttpResponseStatus.UNAUTHORIZED).send()
+        }
+        return Mono.delay(responseDelay).then(Mono.defer(handler))
+    }
+
+    private fun json(response: HttpServerResponse, body: Any): Mono<Void> {
+        return response
+            .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+            .sendString(Mono.just(objectMapper.writeValueAsString(body)))
+            .then()
+    }
+}
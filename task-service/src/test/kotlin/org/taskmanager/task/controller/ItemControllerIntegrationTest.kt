@@ -11,7 +11,10 @@ import org.springframework.data.domain.Page
 import org.springframework.data.domain.PageRequest
 import org.springframework.data.domain.Sort
 import org.springframework.data.domain.Sort.Order
+import org.springframework.http.HttpHeaders
+import org.springframework.http.HttpStatus
 import org.springframework.http.MediaType
+import org.springframework.http.codec.ServerSentEvent
 import org.springframework.security.core.authority.SimpleGrantedAuthority
 import org.springframework.security.test.web.reactive.server.SecurityMockServerConfigurers.mockJwt
 import org.springframework.test.annotation.DirtiesContext
@@ -21,6 +24,8 @@ import org.taskmanager.task.api.dto.*
 import org.taskmanager.task.exception.ItemNotFoundException
 import org.taskmanager.task.model.ItemStatus
 import org.taskmanager.task.service.ItemService
+import java.time.Duration
+import java.util.concurrent.TimeUnit
 import java.util.*
 
 @AutoConfigureWebTestClient
@@ -62,6 +67,23 @@ class ItemControllerIntegrationTest(
         }
     }
 
+    @Test
+    fun `test get item page reports how the total was determined`() {
+        runBlocking {
+            // when
+            webTestClient.mutateWith(mockJwt().jwt { it.subject(SUBJECT) }.authorities(USER_AUTHORITY))
+                .get()
+                .uri("/item")
+                .accept(MediaType.APPLICATION_JSON)
+                .exchange()
+                // then
+                .expectStatus().isOk
+                .expectBody()
+                .jsonPath("$.totalElements").isNumber
+                .jsonPath("$.totalElementsMode").isEqualTo("CACHED")
+        }
+    }
+
     @Test
     fun `test get item page unauthorized`() {
         runBlocking {
@@ -297,4 +319,424 @@ class ItemControllerIntegrationTest(
         }
     }
 
-}
\ No newline at end of file
+    @Test
+    fun `test get item page using a cursor`() {
+        runBlocking {
+            // setup
+            val expectedCursorPage = itemService.findAllAfter(null, 2)
+            assertThat(expectedCursorPage.nextCursor).isNotNull
+            // when
+            webTestClient.mutateWith(mockJwt().jwt { it.subject(SUBJECT) }.authorities(USER_AUTHORITY))
+                .get()
+                .uri("/item?after=&size=2")
+                .accept(MediaType.APPLICATION_JSON)
+                .exchange()
+                // then
+                .expectStatus().isOk
+                .expectBody(object : ParameterizedTypeReference<CursorPage<ItemDto>>() {})
+                .value {
+                    assertThat(it).isEqualTo(expectedCursorPage)
+                }
+            // when
+            webTestClient.mutateWith(mockJwt().jwt { it.subject(SUBJECT) }.authorities(USER_AUTHORITY))
+                .get()
+                .uri("/item?after={after}&size=2", expectedCursorPage.nextCursor)
+                .accept(MediaType.APPLICATION_JSON)
+                .exchange()
+                // then
+                .expectStatus().isOk
+                .expectBody(object : ParameterizedTypeReference<CursorPage<ItemDto>>() {})
+                .value {
+                    assertThat(it.content).isNotEmpty
+                    assertThat(it.content).doesNotContainAnyElementsOf(expectedCursorPage.content)
+                }
+        }
+    }
+
+    @Test
+    fun `test get item page using an invalid cursor`() {
+        runBlocking {
+            // when
+            webTestClient.mutateWith(mockJwt().jwt { it.subject(SUBJECT) }.authorities(USER_AUTHORITY))
+                .get()
+                .uri("/item?after=invalid")
+                .accept(MediaType.APPLICATION_JSON)
+                .exchange()
+                // then
+                .expectStatus().isBadRequest
+                .expectBody()
+                .jsonPath("$.status").isEqualTo(400)
+                .jsonPath("$.message").isEqualTo("Cursor [invalid] is invalid")
+        }
+    }
+
+    @Test
+    fun `test create a batch of items`() {
+        runBlocking {
+            // setup
+            val itemCreateDtos = listOf(
+                ItemCreateDto(description = "first batch item", tagIds = setOf(3)),
+                ItemCreateDto(description = " ")
+            )
+            // when
+            webTestClient.mutateWith(mockJwt().jwt { it.subject(SUBJECT) }.authorities(USER_AUTHORITY))
+                .post()
+                .uri("/item/batch")
+                .bodyValue(itemCreateDtos)
+                .exchange()
+                // then
+                .expectStatus().isOk
+                .expectBody(object : ParameterizedTypeReference<List<ItemBatchResultDto>>() {})
+                .value {
+                    assertThat(it).hasSize(2)
+                    assertThat(it[0].index).isEqualTo(0)
+                    assertThat(it[0].error).isNull()
+                    assertThat(it[0].item?.id).isNotNull
+                    assertThat(it[0].item?.description).isEqualTo("first batch item")
+                    assertThat(it[0].item?.tags?.map(TagDto::id)).isEqualTo(listOf(3L))
+                    assertThat(it[1].index).isEqualTo(1)
+                    assertThat(it[1].error).isEqualTo("description [ ] must not be blank")
+                    assertThat(it[1].item).isNull()
+                }
+        }
+    }
+
+    @Test
+    fun `test export all items as ndjson`() {
+        runBlocking {
+            // setup
+            val expectedItems = itemService.findAllBy(PageRequest.of(0, 2000, Sort.by("id"))).toList()
+            // when
+            webTestClient.mutateWith(mockJwt().jwt { it.subject(SUBJECT) }.authorities(USER_AUTHORITY))
+                .get()
+                .uri("/item/export")
+                .accept(MediaType.APPLICATION_NDJSON)
+                .exchange()
+                // then
+                .expectStatus().isOk
+                .expectHeader().contentType(MediaType.APPLICATION_NDJSON)
+                .expectBodyList(ItemDto::class.java)
+                .value<WebTestClient.ListBodySpec<ItemDto>> {
+                    assertThat(it).isEqualTo(expectedItems)
+                }
+        }
+    }
+
+    @Test
+    fun `test get item changes with invalid cursor`() {
+        runBlocking {
+            // when
+            webTestClient.mutateWith(mockJwt().jwt { it.subject(SUBJECT) }.authorities(USER_AUTHORITY))
+                .get()
+                .uri("/item/changes?since=invalid")
+                .accept(MediaType.APPLICATION_JSON)
+                .exchange()
+                // then
+                .expectStatus().isBadRequest
+        }
+    }
+
+    @Test
+    fun `test search items`() {
+        runBlocking {
+            // setup
+            val item = itemService.create(ItemCreateDto(description = "Renew the passport", tagIds = setOf(1)))
+            // when
+            webTestClient.mutateWith(mockJwt().jwt { it.subject(SUBJECT) }.authorities(USER_AUTHORITY))
+                .get()
+                .uri("/item/search?q=passport")
+                .accept(MediaType.APPLICATION_JSON)
+                .exchange()
+                // then
+                .expectStatus().isOk
+                .expectBody(object : ParameterizedTypeReference<CursorPage<ItemDto>>() {})
+                .value {
+                    assertThat(it.content.map(ItemDto::id)).isEqualTo(listOf(item.id))
+                    assertThat(it.content[0].tags).isEqualTo(item.tags)
+                    assertThat(it.nextCursor).isNull()
+                }
+        }
+    }
+
+    @Test
+    fun `test get filtered item page`() {
+        runBlocking {
+            // setup
+            val item = itemService.create(ItemCreateDto(description = "filtered by tags", tagIds = setOf(5, 6)))
+            // when
+            webTestClient.mutateWith(mockJwt().jwt { it.subject(SUBJECT) }.authorities(USER_AUTHORITY))
+                .get()
+                .uri("/item?status=TODO&status=IN_PROGRESS&tagId=5&tagId=6&tagMatch=ALL&createdFrom=2000-01-01T00:00:00")
+                .accept(MediaType.APPLICATION_JSON)
+                .exchange()
+                // then
+                .expectStatus().isOk
+                .expectBody(object : ParameterizedTypeReference<Page<ItemDto>>() {})
+                .value {
+                    assertThat(it.content.map(ItemDto::id)).contains(item.id)
+                    it.content.forEach { itemDto ->
+                        assertThat(itemDto.tags?.map(TagDto::id)).contains(5, 6)
+                    }
+                }
+        }
+    }
+
+    @Test
+    fun `test get filtered item page with invalid sort property`() {
+        runBlocking {
+            // when
+            webTestClient.mutateWith(mockJwt().jwt { it.subject(SUBJECT) }.authorities(USER_AUTHORITY))
+                .get()
+                .uri("/item?status=TODO&sort=assignee")
+                .accept(MediaType.APPLICATION_JSON)
+                .exchange()
+                // then
+                .expectStatus().isBadRequest
+        }
+    }
+
+    @Test
+    fun `test get item page with sparse fields`() {
+        runBlocking {
+            // when
+            webTestClient.mutateWith(mockJwt().jwt { it.subject(SUBJECT) }.authorities(USER_AUTHORITY))
+                .get()
+                .uri("/item?fields=status,description&sort=id")
+                .accept(MediaType.APPLICATION_JSON)
+                .exchange()
+                // then
+                .expectStatus().isOk
+                .expectBody()
+                .jsonPath("$.content[0].id").isNumber
+                .jsonPath("$.content[0].status").isNotEmpty
+                .jsonPath("$.content[0].description").isNotEmpty
+                .jsonPath("$.content[0].version").doesNotExist()
+                .jsonPath("$.content[0].tags").doesNotExist()
+                .jsonPath("$.content[0].assignee").doesNotExist()
+        }
+    }
+
+    @Test
+    fun `test get item without sparse fields writes null properties`() {
+        runBlocking {
+            // setup
+            val item = itemService.create(ItemCreateDto(description = "unassigned item"))
+            // when
+            webTestClient.mutateWith(mockJwt().jwt { it.subject(SUBJECT) }.authorities(USER_AUTHORITY))
+                .get()
+                .uri("/item/${item.id}")
+                .accept(MediaType.APPLICATION_JSON)
+                .exchange()
+                // then
+                .expectStatus().isOk
+                .expectBody(String::class.java)
+                .value { assertThat(it).contains("\"assignee\":null") }
+        }
+    }
+
+    @Test
+    fun `test get item with expanded tags`() {
+        runBlocking {
+            // when
+            webTestClient.mutateWith(mockJwt().jwt { it.subject(SUBJECT) }.authorities(USER_AUTHORITY))
+                .get()
+                .uri("/item/1?fields=description&expand=tags")
+                .accept(MediaType.APPLICATION_JSON)
+                .exchange()
+                // then
+                .expectStatus().isOk
+                .expectBody()
+                .jsonPath("$.id").isEqualTo(1)
+                .jsonPath("$.description").isEqualTo("Flight to JNB")
+                .jsonPath("$.tags").isArray
+                .jsonPath("$.status").doesNotExist()
+                .jsonPath("$.assignee").doesNotExist()
+        }
+    }
+
+    @Test
+    fun `test get item page with invalid field`() {
+        runBlocking {
+            // when
+            webTestClient.mutateWith(mockJwt().jwt { it.subject(SUBJECT) }.authorities(USER_AUTHORITY))
+                .get()
+                .uri("/item?expand=description")
+                .accept(MediaType.APPLICATION_JSON)
+                .exchange()
+                // then
+                .expectStatus().isBadRequest
+                .expectBody()
+                .jsonPath("$.message").isEqualTo("Field [description] is invalid")
+        }
+    }
+
+    @Test
+    fun `test get item answers If-None-Match with not modified`() {
+        runBlocking {
+            // setup
+            val item = itemService.getById(1)
+            val eTag = "\"1.${item.version}\""
+            // when
+            webTestClient.mutateWith(mockJwt().jwt { it.subject(SUBJECT) }.authorities(USER_AUTHORITY))
+                .get()
+                .uri("/item/1")
+                .accept(MediaType.APPLICATION_JSON)
+                .exchange()
+                // then
+                .expectStatus().isOk
+                .expectHeader().valueEquals(HttpHeaders.ETAG, eTag)
+            // when
+            webTestClient.mutateWith(mockJwt().jwt { it.subject(SUBJECT) }.authorities(USER_AUTHORITY))
+                .get()
+                .uri("/item/1")
+                .header(HttpHeaders.IF_NONE_MATCH, eTag)
+                .accept(MediaType.APPLICATION_JSON)
+                .exchange()
+                // then
+                .expectStatus().isNotModified
+                .expectBody().isEmpty
+        }
+    }
+
+    @Test
+    fun `test patch item with If-Match entity tag`() {
+        runBlocking {
+            // setup
+            val item = itemService.create(ItemCreateDto(description = "patched with entity tag"))
+            // when
+            webTestClient.mutateWith(mockJwt().jwt { it.subject(SUBJECT) }.authorities(USER_AUTHORITY))
+                .patch()
+                .uri("/item/${item.id}")
+                .header(HttpHeaders.IF_MATCH, "\"${item.id}.${item.version}\"")
+                .bodyValue(ItemPatchDto(Optional.empty(), Optional.of(ItemStatus.DONE), Optional.empty(), Optional.empty()))
+                .exchange()
+                // then
+                .expectStatus().isOk
+                .expectBody(ItemDto::class.java)
+                .value {
+                    assertThat(it.version).isEqualTo(item.version!! + 1)
+                }
+            // when the entity tag is outdated
+            webTestClient.mutateWith(mockJwt().jwt { it.subject(SUBJECT) }.authorities(USER_AUTHORITY))
+                .patch()
+                .uri("/item/${item.id}")
+                .header(HttpHeaders.IF_MATCH, "\"${item.id}.${item.version}\"")
+                .bodyValue(ItemPatchDto(Optional.empty(), Optional.of(ItemStatus.TODO), Optional.empty(), Optional.empty()))
+                .exchange()
+                // then
+                .expectStatus().isNotFound
+            // when the entity tag belongs to another item
+            webTestClient.mutateWith(mockJwt().jwt { it.subject(SUBJECT) }.authorities(USER_AUTHORITY))
+                .patch()
+                .uri("/item/${item.id}")
+                .header(HttpHeaders.IF_MATCH, "\"0.${item.version}\"")
+                .bodyValue(ItemPatchDto(Optional.empty(), Optional.of(ItemStatus.TODO), Optional.empty(), Optional.empty()))
+                .exchange()
+                // then
+                .expectStatus().isEqualTo(HttpStatus.PRECONDITION_FAILED)
+            // when the entity tag is weak
+            webTestClient.mutateWith(mockJwt().jwt { it.subject(SUBJECT) }.authorities(USER_AUTHORITY))
+                .patch()
+                .uri("/item/${item.id}")
+                .header(HttpHeaders.IF_MATCH, "W/\"${item.id}.${item.version!! + 1}\"")
+                .bodyValue(ItemPatchDto(Optional.empty(), Optional.of(ItemStatus.TODO), Optional.empty(), Optional.empty()))
+                .exchange()
+                // then
+                .expectStatus().isEqualTo(HttpStatus.PRECONDITION_FAILED)
+        }
+    }
+
+    @Test
+    fun `test get item page with weak entity tag`() {
+        runBlocking {
+            // setup
+            val eTag = webTestClient.mutateWith(mockJwt().jwt { it.subject(SUBJECT) }.authorities(USER_AUTHORITY))
+                .get()
+                .uri("/item?status=TODO")
+                .accept(MediaType.APPLICATION_JSON)
+                .exchange()
+                .expectStatus().isOk
+                .returnResult(String::class.java)
+                .responseHeaders.eTag!!
+            assertThat(eTag).startsWith("W/")
+            // when
+            webTestClient.mutateWith(mockJwt().jwt { it.subject(SUBJECT) }.authorities(USER_AUTHORITY))
+                .get()
+                .uri("/item?status=TODO")
+                .header(HttpHeaders.IF_NONE_MATCH, eTag)
+                .accept(MediaType.APPLICATION_JSON)
+                .exchange()
+                // then
+                .expectStatus().isNotModified
+            // when a matching item is created
+            itemService.create(ItemCreateDto(description = "changes the entity tag"))
+            webTestClient.mutateWith(mockJwt().jwt { it.subject(SUBJECT) }.authorities(USER_AUTHORITY))
+                .get()
+                .uri("/item?status=TODO")
+                .header(HttpHeaders.IF_NONE_MATCH, eTag)
+                .accept(MediaType.APPLICATION_JSON)
+                .exchange()
+                // then
+                .expectStatus().isOk
+                .expectHeader().value(HttpHeaders.ETAG) { assertThat(it).isNotEqualTo(eTag) }
+        }
+    }
+
+    @Test
+    fun `test weak entity tag of an item page changes when an item of the page is updated`() {
+        runBlocking {
+            // setup
+            val item = itemService.create(ItemCreateDto(description = "on the first page"))
+            val uri = "/item?sort=lastModifiedDate,desc"
+            val eTag = webTestClient.mutateWith(mockJwt().jwt { it.subject(SUBJECT) }.authorities(USER_AUTHORITY))
+                .get()
+                .uri(uri)
+                .accept(MediaType.APPLICATION_JSON)
+                .exchange()
+                .expectStatus().isOk
+                .returnResult(String::class.java)
+                .responseHeaders.eTag!!
+            // when the number of items stays the same
+            itemService.patch(
+                item.id!!, item.version,
+                ItemPatchDto(Optional.of("changes the entity tag"), Optional.empty(), Optional.empty(), Optional.empty())
+            )
+            webTestClient.mutateWith(mockJwt().jwt { it.subject(SUBJECT) }.authorities(USER_AUTHORITY))
+                .get()
+                .uri(uri)
+                .header(HttpHeaders.IF_NONE_MATCH, eTag)
+                .accept(MediaType.APPLICATION_JSON)
+                .exchange()
+                // then
+                .expectStatus().isOk
+                .expectHeader().value(HttpHeaders.ETAG) { assertThat(it).isNotEqualTo(eTag) }
+        }
+    }
+
+    @Test
+    fun `test stream items resumes after Last-Event-ID`() {
+        runBlocking {
+            // setup
+            val earlierEvent = itemService.streamEvents(null).next().toFuture()
+            itemService.create(ItemCreateDto(description = "earlier item"))
+            val lastEvent = earlierEvent.get(5, TimeUnit.SECONDS)
+            val item = itemService.create(ItemCreateDto(description = "streamed item"))
+            // when
+            val event = webTestClient.mutateWith(mockJwt().jwt { it.subject(SUBJECT) }.authorities(USER_AUTHORITY))
+                .get()
+                .uri("/item/stream")
+                .header("Last-Event-ID", lastEvent.id)
+                .accept(MediaType.TEXT_EVENT_STREAM)
+                .exchange()
+                .expectStatus().isOk
+                .returnResult(object : ParameterizedTypeReference<ServerSentEvent<ItemEventDto>>() {})
+                .responseBody
+                .filter { it.data()?.itemId == item.id }
+                .blockFirst(Duration.ofSeconds(5))
+            // then
+            assertThat(event!!.event()).isEqualTo("CREATED")
+            assertThat(event.id()).isEqualTo(event.data()!!.id)
+            assertThat(event.data()!!.item).isEqualTo(item)
+        }
+    }
+}
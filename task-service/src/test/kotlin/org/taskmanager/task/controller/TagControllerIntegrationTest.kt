@@ -9,6 +9,7 @@ import org.springframework.boot.test.autoconfigure.web.reactive.AutoConfigureWeb
 import org.springframework.data.domain.PageRequest
 import org.springframework.data.domain.Sort
 import org.springframework.data.domain.Sort.Order
+import org.springframework.http.HttpHeaders
 import org.springframework.http.MediaType
 import org.springframework.security.core.authority.SimpleGrantedAuthority
 import org.springframework.security.test.web.reactive.server.SecurityMockServerConfigurers.mockJwt
@@ -206,4 +207,21 @@ class TagControllerIntegrationTest(
         }
     }
 
-}
\ No newline at end of file
+    @Test
+    fun `test get tag answers If-None-Match with not modified`() {
+        runBlocking {
+            // setup
+            val tag = tagService.getById(2)
+            // when
+            webTestClient.mutateWith(mockJwt().jwt { it.subject(SUBJECT) }.authorities(USER_AUTHORITY))
+                .get()
+                .uri("/tag/2")
+                .header(HttpHeaders.IF_NONE_MATCH, "\"2.${tag.version}\"")
+                .accept(MediaType.APPLICATION_JSON)
+                .exchange()
+                // then
+                .expectStatus().isNotModified
+                .expectHeader().valueEquals(HttpHeaders.ETAG, "\"2.${tag.version}\"")
+        }
+    }
+}
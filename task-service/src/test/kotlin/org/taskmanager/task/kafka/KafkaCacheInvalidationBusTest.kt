@@ -0,0 +1,75 @@
+package org.taskmanager.task.kafka
+
+import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.verify
+import kotlinx.coroutines.runBlocking
+import org.apache.kafka.clients.consumer.ConsumerRecord
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Test
+import org.springframework.kafka.core.KafkaOperations
+import org.taskmanager.task.model.CacheInvalidation
+import org.taskmanager.task.model.CachedEntityType
+import java.time.Duration
+
+class KafkaCacheInvalidationBusTest {
+
+    private val objectMapper = jacksonObjectMapper()
+
+    private val kafkaOperations = mockk<KafkaOperations<String, String>> {
+        every { send(any<String>(), any(), any()) } returns mockk()
+    }
+
+    // long flush interval so that the tests flush explicitly
+    private val bus = KafkaCacheInvalidationBus(kafkaOperations, objectMapper, TOPIC, "this", Duration.ofHours(1))
+
+    @AfterEach
+    fun tearDown() {
+        bus.destroy()
+    }
+
+    @Test
+    fun `test flush sends one record per entity`() {
+        // setup
+        runBlocking {
+            bus.publish(listOf(CacheInvalidation(CachedEntityType.TAG, "1"), CacheInvalidation(CachedEntityType.TAG, "2")))
+            bus.publish(listOf(CacheInvalidation(CachedEntityType.TAG, "1"), CacheInvalidation(CachedEntityType.TAG, "1")))
+        }
+        // when
+        bus.flush()
+        bus.flush()
+        // then
+        val expected = CacheInvalidationMessage("this", CachedEntityType.TAG, "1")
+        verify(exactly = 1) { kafkaOperations.send(TOPIC, "TAG:1", objectMapper.writeValueAsString(expected)) }
+        verify(exactly = 1) { kafkaOperations.send(TOPIC, "TAG:2", any()) }
+        verify(exactly = 2) { kafkaOperations.send(any<String>(), any(), any()) }
+    }
+
+    @Test
+    fun `test consumed records are deduplicated and records of the own instance are skipped`() {
+        // setup
+        val received = mutableListOf<CacheInvalidation>()
+        bus.subscribe(CachedEntityType.USER) { received.add(it) }
+        val records = listOf(
+            record(CacheInvalidationMessage("other", CachedEntityType.USER, "5")),
+            record(CacheInvalidationMessage("other", CachedEntityType.USER, "5")),
+            record(CacheInvalidationMessage("this", CachedEntityType.USER, "6")),
+            record(CacheInvalidationMessage("other", CachedEntityType.TAG, "7"))
+        )
+        // when
+        bus.onMessages(records)
+        // then
+        assertThat(received).containsExactly(CacheInvalidation(CachedEntityType.USER, "5"))
+    }
+
+    private fun record(message: CacheInvalidationMessage): ConsumerRecord<String, String> {
+        val key = "${message.entityType}:${message.id}"
+        return ConsumerRecord(TOPIC, 0, 0, key, objectMapper.writeValueAsString(message))
+    }
+
+    companion object {
+        private const val TOPIC = "cache-invalidations"
+    }
+}
@@ -0,0 +1,62 @@
+package org.taskmanager.task.kafka
+
+import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
+import com.fasterxml.jackson.module.kotlin.readValue
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.Test
+
+class KeycloakAdminEventTest {
+
+    private val objectMapper = jacksonObjectMapper()
+
+    @Test
+    fun `test representation of a created user is decoded`() {
+        // setup
+        val json = adminEventJson(
+            "CREATE",
+            """{"username":"vince.power@test.org","email":"vince.power@test.org","firstName":"Vince","lastName":"Power","enabled":true}"""
+        )
+        // when
+        val event = objectMapper.readValue<KeycloakAdminEvent>(json)
+        // then
+        val userRepresentation = event.userRepresentation()!!
+        assertThat(userRepresentation.id).isEqualTo(USER_ID)
+        assertThat(userRepresentation.email).isEqualTo("vince.power@test.org")
+        assertThat(userRepresentation.firstName).isEqualTo("Vince")
+        assertThat(userRepresentation.lastName).isEqualTo("Power")
+    }
+
+    @Test
+    fun `test incomplete or missing representations are not decoded`() {
+        // when
+        val partialUpdate = objectMapper.readValue<KeycloakAdminEvent>(adminEventJson("UPDATE", """{"firstName":"Vince"}"""))
+        val withoutRepresentation = objectMapper.readValue<KeycloakAdminEvent>(adminEventJson("UPDATE", null))
+        // then
+        assertThat(partialUpdate.userId()).isEqualTo(USER_ID)
+        assertThat(partialUpdate.userRepresentation()).isNull()
+        assertThat(withoutRepresentation.userRepresentation()).isNull()
+    }
+
+    private fun adminEventJson(operationType: String, representation: String?): String {
+        return objectMapper.writeValueAsString(
+            mapOf(
+                "id" to "1",
+                "time" to 0,
+                "realmId" to "TaskManager",
+                "authDetails" to mapOf(
+                    "realmId" to "TaskManager", "clientId" to "admin-cli", "userId" to USER_ID, "ipAddress" to "127.0.0.1"
+                ),
+                "resourceType" to "USER",
+                "operationType" to operationType,
+                "resourcePath" to "users/$USER_ID",
+                // the representation is a JSON document wrapped into a string
+                "representation" to representation,
+                "error" to null
+            )
+        )
+    }
+
+    companion object {
+        private const val USER_ID = "00000000-0000-0000-0000-000000000004"
+    }
+}
@@ -0,0 +1,235 @@
+package org.taskmanager.task.kafka
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import io.mockk.Runs
+import io.mockk.coEvery
+import io.mockk.coVerify
+import io.mockk.every
+import io.mockk.just
+import io.mockk.mockk
+import io.mockk.slot
+import io.mockk.verify
+import kotlinx.coroutines.delay
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Test
+import org.keycloak.representations.idm.UserRepresentation
+import org.springframework.kafka.config.KafkaListenerEndpointRegistry
+import org.springframework.kafka.listener.MessageListenerContainer
+import org.springframework.kafka.support.Acknowledgment
+import org.taskmanager.task.service.UserService
+import java.time.Duration
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class KeycloakKafkaConsumerTest {
+
+    private val userService = mockk<UserService>()
+
+    private val meterRegistry = SimpleMeterRegistry()
+
+    private val listenerContainer = mockk<MessageListenerContainer>(relaxed = true)
+
+    private val listenerEndpointRegistry = mockk<KafkaListenerEndpointRegistry> {
+        every { listenerContainers } returns listOf(listenerContainer)
+    }
+
+    private var consumer = consumer(workers = 1)
+
+    @AfterEach
+    fun tearDown() {
+        consumer.destroy()
+    }
+
+    @Test
+    fun `test events of a batch are coalesced per user and acknowledged when done`() {
+        // setup
+        val synchronizedUserIds = slot<Collection<String>>()
+        coEvery { userService.synchronizeUsersFromKeycloak(capture(synchronizedUserIds), any(), any()) } just Runs
+        val acknowledged = CountDownLatch(1)
+        // when
+        consumer.handleKeycloakEvents(
+            listOf(event(USER_A), event(USER_B), event(USER_A), event(USER_A)),
+            acknowledgment(acknowledged)
+        )
+        // then
+        assertThat(acknowledged.await(5, TimeUnit.SECONDS)).isTrue
+        assertThat(synchronizedUserIds.captured).containsExactlyInAnyOrder(USER_A, USER_B)
+        assertThat(meterRegistry.counter("keycloak.sync.events").count()).isEqualTo(4.0)
+        assertThat(meterRegistry.counter("keycloak.sync.users").count()).isEqualTo(2.0)
+    }
+
+    @Test
+    fun `test admin events carrying the user or its deletion are applied without fetching`() {
+        // setup
+        val userIds = slot<Collection<String>>()
+        val keycloakUsers = slot<Map<String, UserRepresentation?>>()
+        val eventTimes = slot<Map<String, Long>>()
+        coEvery {
+            userService.synchronizeUsersFromKeycloak(capture(userIds), capture(keycloakUsers), capture(eventTimes))
+        } just Runs
+        val acknowledged = CountDownLatch(1)
+        val completeUpdate = mapOf("email" to "a@test.org", "firstName" to "Anna", "lastName" to "Adams")
+        // when
+        consumer.handleKeycloakAdminEvents(
+            listOf(
+                adminEvent(USER_A, OperationType.UPDATE, mapOf("firstName" to "Ann"), time = 1),
+                adminEvent(USER_A, OperationType.UPDATE, completeUpdate, time = 2),
+                adminEvent(USER_B, OperationType.DELETE, time = 3),
+                adminEvent(USER_C, OperationType.UPDATE, mapOf("firstName" to "Carl"), time = 4)
+            ),
+            acknowledgment(acknowledged)
+        )
+        // then
+        assertThat(acknowledged.await(5, TimeUnit.SECONDS)).isTrue
+        assertThat(userIds.captured).containsExactly(USER_A, USER_B, USER_C)
+        assertThat(keycloakUsers.captured.keys).containsExactlyInAnyOrder(USER_A, USER_B)
+        assertThat(keycloakUsers.captured[USER_A]!!.id).isEqualTo(USER_A)
+        assertThat(keycloakUsers.captured[USER_A]!!.firstName).isEqualTo("Anna")
+        assertThat(keycloakUsers.captured[USER_B]).isNull()
+        assertThat(eventTimes.captured).isEqualTo(mapOf(USER_A to 2L, USER_B to 3L, USER_C to 4L))
+    }
+
+    @Test
+    fun `test batches are synchronized in the order in which they have been consumed`() {
+        // setup: the first batch is the slowest
+        val synchronizations = Collections.synchronizedList(mutableListOf<Collection<String>>())
+        coEvery { userService.synchronizeUsersFromKeycloak(any(), any(), any()) } coAnswers {
+            val userIds = firstArg<Collection<String>>()
+            if (userIds.contains(USER_A)) delay(200)
+            synchronizations.add(userIds)
+        }
+        val acknowledged = CountDownLatch(2)
+        // when
+        consumer.handleKeycloakEvents(listOf(event(USER_A)), acknowledgment(acknowledged))
+        consumer.handleKeycloakEvents(listOf(event(USER_B)), acknowledgment(acknowledged))
+        // then
+        assertThat(acknowledged.await(5, TimeUnit.SECONDS)).isTrue
+        assertThat(synchronizations).containsExactly(setOf(USER_A), setOf(USER_B))
+    }
+
+    @Test
+    fun `test users are synchronized in parallel and batches acknowledged in order`() {
+        // setup: the users of both batches are synchronized by different workers, the first batch is the slowest
+        consumer.destroy()
+        consumer = consumer(workers = 2)
+        val synchronizations = Collections.synchronizedList(mutableListOf<Collection<String>>())
+        coEvery { userService.synchronizeUsersFromKeycloak(any(), any(), any()) } coAnswers {
+            val userIds = firstArg<Collection<String>>()
+            if (userIds.contains(USER_A)) delay(200)
+            synchronizations.add(userIds)
+        }
+        val acknowledgments = Collections.synchronizedList(mutableListOf<String>())
+        val acknowledged = CountDownLatch(2)
+        // when
+        consumer.handleKeycloakEvents(listOf(event(USER_A)), acknowledgment(acknowledged) { acknowledgments.add("first") })
+        consumer.handleKeycloakEvents(listOf(event(USER_B)), acknowledgment(acknowledged) { acknowledgments.add("second") })
+        // then
+        assertThat(acknowledged.await(5, TimeUnit.SECONDS)).isTrue
+        assertThat(synchronizations).containsExactly(setOf(USER_B), setOf(USER_A))
+        assertThat(acknowledgments).containsExactly("first", "second")
+    }
+
+    @Test
+    fun `test a failed batch is synchronized again with one transaction per user`() {
+        // setup
+        val synchronizations = Collections.synchronizedList(mutableListOf<Collection<String>>())
+        coEvery { userService.synchronizeUsersFromKeycloak(any(), any(), any()) } coAnswers {
+            val userIds = firstArg<Collection<String>>()
+            synchronizations.add(userIds.toSet())
+            if (userIds.size > 1) throw IllegalStateException("Duplicate email")
+        }
+        val acknowledged = CountDownLatch(1)
+        // when
+        consumer.handleKeycloakEvents(listOf(event(USER_A), event(USER_B)), acknowledgment(acknowledged))
+        // then
+        assertThat(acknowledged.await(5, TimeUnit.SECONDS)).isTrue
+        assertThat(synchronizations).containsExactly(setOf(USER_A, USER_B), setOf(USER_A), setOf(USER_B))
+    }
+
+    @Test
+    fun `test failed synchronizations are not acknowledged and the listeners are restarted`() {
+        // setup
+        coEvery { userService.synchronizeUsersFromKeycloak(any(), any(), any()) } throws IllegalStateException("Database is down")
+        val started = CountDownLatch(1)
+        every { listenerContainer.start() } answers { started.countDown() }
+        val firstAcknowledgment = mockk<Acknowledgment>(relaxed = true)
+        val secondAcknowledgment = mockk<Acknowledgment>(relaxed = true)
+        // when
+        consumer.handleKeycloakEvents(listOf(event(USER_A)), firstAcknowledgment)
+        consumer.handleKeycloakEvents(listOf(event(USER_B)), secondAcknowledgment)
+        // then
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue
+        verify(exactly = 1) { listenerContainer.stop() }
+        verify(exactly = 0) { firstAcknowledgment.acknowledge() }
+        verify(exactly = 0) { secondAcknowledgment.acknowledge() }
+        assertThat(meterRegistry.counter("keycloak.sync.failed-users").count()).isGreaterThanOrEqualTo(1.0)
+        // when: the events are consumed again after the restart
+        coEvery { userService.synchronizeUsersFromKeycloak(any(), any(), any()) } just Runs
+        val acknowledged = CountDownLatch(1)
+        consumer.handleKeycloakEvents(listOf(event(USER_A)), acknowledgment(acknowledged))
+        // then
+        assertThat(acknowledged.await(5, TimeUnit.SECONDS)).isTrue
+    }
+
+    @Test
+    fun `test admin events of other resources are acknowledged without synchronization`() {
+        // setup
+        val acknowledgment = mockk<Acknowledgment>(relaxed = true)
+        val event = adminEvent(USER_A, OperationType.CREATE).copy(resourceType = "GROUP", resourcePath = "groups/$USER_A")
+        // when
+        consumer.handleKeycloakAdminEvents(listOf(event), acknowledgment)
+        // then
+        verify(exactly = 1) { acknowledgment.acknowledge() }
+        coVerify(exactly = 0) { userService.synchronizeUsersFromKeycloak(any(), any(), any()) }
+    }
+
+    private fun consumer(workers: Int) = KeycloakKafkaConsumer(
+        userService, meterRegistry, maxPendingBatches = 4, workers = workers, shutdownTimeout = Duration.ofSeconds(5),
+        retryBackoff = Duration.ofMillis(100), listenerEndpointRegistry = listenerEndpointRegistry
+    )
+
+    private fun acknowledgment(acknowledged: CountDownLatch, onAcknowledge: () -> Unit = {}): Acknowledgment {
+        return mockk {
+            every { acknowledge() } answers {
+                onAcknowledge()
+                acknowledged.countDown()
+            }
+        }
+    }
+
+    private fun event(userId: String) = KeycloakEvent(
+        id = "1",
+        time = 0,
+        type = "UPDATE_PROFILE",
+        realmId = "TaskManager",
+        clientId = "task-browser",
+        userId = userId,
+        ipAddress = "127.0.0.1"
+    )
+
+    private fun adminEvent(
+        userId: String,
+        operationType: OperationType,
+        representation: Map<String, Any>? = null,
+        time: Long = 0
+    ) =
+        KeycloakAdminEvent(
+            id = "1",
+            time = time,
+            realmId = "TaskManager",
+            authDetails = KeycloakAuthDetails("TaskManager", "admin-cli", USER_B, "127.0.0.1"),
+            resourceType = "USER",
+            operationType = operationType,
+            resourcePath = "users/$userId",
+            representation = representation,
+            error = null
+        )
+
+    companion object {
+        private const val USER_A = "00000000-0000-0000-0000-00000000000a"
+        private const val USER_B = "00000000-0000-0000-0000-00000000000b"
+        private const val USER_C = "00000000-0000-0000-0000-00000000000c"
+    }
+}
@@ -0,0 +1,93 @@
+package org.taskmanager.task.keycloak
+
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.runBlocking
+import org.assertj.core.api.Assertions.assertThat
+import org.assertj.core.api.Assertions.assertThatThrownBy
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Test
+import org.springframework.web.reactive.function.client.WebClient
+import org.taskmanager.task.configuration.keycloak.FakeKeycloakUser
+import org.taskmanager.task.configuration.keycloak.FakeKeycloakUserStore
+import org.taskmanager.task.configuration.keycloak.KeycloakStubServer
+import java.time.Duration
+import java.util.concurrent.TimeoutException
+
+class KeycloakAdminClientTest {
+
+    private val userStore = FakeKeycloakUserStore("task-manager-users").apply {
+        users[USER_ID] = FakeKeycloakUser(USER_ID, "vince.power@test.org", null, "Vince", "Power", "secret", true)
+    }
+
+    private val stubServer = KeycloakStubServer(userStore, REALM)
+
+    @AfterEach
+    fun tearDown() {
+        stubServer.destroy()
+    }
+
+    @Test
+    fun `test access token is cached across calls`() {
+        // setup
+        val client = client()
+        // when
+        runBlocking {
+            (1..10).map { async { client.findById(USER_ID) } }.awaitAll()
+            client.search()
+        }
+        // then
+        assertThat(stubServer.tokenRequests.get()).isEqualTo(1)
+    }
+
+    @Test
+    fun `test access token is refreshed when it is about to expire`() {
+        // setup: tokens expire within the minimum validity
+        stubServer.tokenLifespan = Duration.ofSeconds(10)
+        val client = client(tokenMinValidity = Duration.ofSeconds(30))
+        // when
+        runBlocking {
+            client.findById(USER_ID)
+            client.findById(USER_ID)
+        }
+        // then
+        assertThat(stubServer.tokenRequests.get()).isEqualTo(2)
+    }
+
+    @Test
+    fun `test rejected access token is replaced and the call is retried`() {
+        // setup
+        val client = client()
+        runBlocking { client.findById(USER_ID) }
+        stubServer.revokeTokens()
+        // when
+        val user = runBlocking { client.findById(USER_ID) }
+        // then
+        assertThat(user!!.id).isEqualTo(USER_ID)
+        assertThat(stubServer.tokenRequests.get()).isEqualTo(2)
+    }
+
+    @Test
+    fun `test calls exceeding the timeout fail`() {
+        // setup
+        stubServer.responseDelay = Duration.ofSeconds(2)
+        val client = client(callTimeout = Duration.ofMillis(200))
+        // when / then
+        assertThatThrownBy {
+            runBlocking { client.findById(USER_ID) }
+        }.isInstanceOf(TimeoutException::class.java)
+    }
+
+    private fun client(
+        callTimeout: Duration = Duration.ofSeconds(5),
+        tokenMinValidity: Duration = Duration.ofSeconds(30)
+    ): KeycloakAdminClient {
+        val webClient = WebClient.builder().baseUrl(stubServer.url).build()
+        return KeycloakAdminClient(webClient, REALM, "task-service", "secret", callTimeout, tokenMinValidity)
+    }
+
+    companion object {
+        private const val REALM = "TaskManager"
+        private const val USER_ID = "00000000-0000-0000-0000-000000000004"
+    }
+}
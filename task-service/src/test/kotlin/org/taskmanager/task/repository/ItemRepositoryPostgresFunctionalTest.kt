@@ -0,0 +1,56 @@
+package org.taskmanager.task.repository
+
+import kotlinx.coroutines.flow.toList
+import kotlinx.coroutines.runBlocking
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.Disabled
+import org.junit.jupiter.api.Test
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.test.annotation.DirtiesContext
+import org.springframework.test.context.TestPropertySource
+import org.taskmanager.task.IntegrationTest
+import org.taskmanager.task.model.Item
+
+/**
+ * This test requires a working PostgreSQL instance configured with the database properties of application.yml
+ */
+@Disabled
+@IntegrationTest
+@DirtiesContext
+@TestPropertySource(
+    properties = [
+        "spring.liquibase.url=jdbc:postgresql://\${database.host}:\${database.port}/\${database.name}?sslmode=disable",
+        "spring.r2dbc.url=r2dbc:postgresql://\${database.host}:\${database.port}/\${database.name}?sslmode=disable"
+    ]
+)
+class ItemRepositoryPostgresFunctionalTest(
+    @Autowired val itemRepository: ItemRepository
+) {
+
+    @Test
+    fun `test search matches whole words of the full-text column`() {
+        runBlocking {
+            // setup
+            val passport = itemRepository.save(Item(description = "Renew the passport at the town hall"))
+            val passports = itemRepository.save(Item(description = "Passport photos for the passport renewal"))
+            val pass = itemRepository.save(Item(description = "Pass the salt"))
+            try {
+                // when
+                val hits = itemRepository.search(listOf("PASSPORT"), null, null, 10).toList()
+                // then
+                assertThat(hits.map { it.item.id }).containsExactly(passports.id, passport.id)
+                assertThat(hits[0].rank).isGreaterThan(hits[1].rank)
+                assertThat(hits[1].item.description).isEqualTo(passport.description)
+                assertThat(itemRepository.search(listOf("pass"), null, null, 10).toList().map { it.item.description })
+                    .containsExactly("Pass the salt")
+                // when: the page after the first hit
+                val nextHits = itemRepository.search(listOf("passport"), hits[0].rank, hits[0].item.id, 10).toList()
+                // then
+                assertThat(nextHits.map { it.item.id }).containsExactly(passport.id)
+            } finally {
+                itemRepository.deleteAll(listOf(passport, passports, pass))
+            }
+        }
+    }
+
+}
@@ -2,6 +2,8 @@ package org.taskmanager.task.repository
 
 import kotlinx.coroutines.flow.count
 import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.flow.map
+import kotlinx.coroutines.flow.toList
 import kotlinx.coroutines.runBlocking
 import org.assertj.core.api.Assertions.assertThat
 import org.junit.jupiter.api.Test
@@ -9,11 +11,15 @@ import org.springframework.beans.factory.annotation.Autowired
 import org.springframework.test.annotation.DirtiesContext
 import org.taskmanager.task.IntegrationTest
 import org.taskmanager.task.model.ItemTag
+import org.taskmanager.task.model.Tag
 
 
 @IntegrationTest
 @DirtiesContext
-class ItemTagRepositoryIntegrationTest(@Autowired val itemTagRepository: ItemTagRepository) {
+class ItemTagRepositoryIntegrationTest(
+    @Autowired val itemTagRepository: ItemTagRepository,
+    @Autowired val tagRepository: TagRepository
+) {
 
     @Test
     fun `test that item-tags can be loaded from db using findAllByItemId`() {
@@ -83,5 +89,35 @@ class ItemTagRepositoryIntegrationTest(@Autowired val itemTagRepository: ItemTag
         }
     }
 
-}
+    @Test
+    fun `test replaceTagIds keeps existing item-tags and links the added tags`() {
+        runBlocking {
+            // setup
+            val testItemId = 2L
+            val keptItemTag = itemTagRepository.findAllByItemId(testItemId).first { it.tagId == 5L }
+            // when
+            itemTagRepository.replaceTagIds(testItemId, listOf(5, 4, 4))
+            // then
+            val itemTags = itemTagRepository.findAllByItemId(testItemId).toList()
+            assertThat(itemTags.map { it.tagId }).containsExactlyInAnyOrder(5, 4)
+            assertThat(itemTags).contains(keptItemTag)
+        }
+    }
+
+    @Test
+    fun `test replaceTagIds splits more tags than fit into one statement`() {
+        runBlocking {
+            // setup
+            val testItemId = 3L
+            val tagIds = tagRepository.saveAll((0..1001).map { Tag(name = "Chunked $it") })
+                .map { it.id!! }.toList()
+            itemTagRepository.replaceTagIds(testItemId, tagIds.dropLast(1))
+            // when
+            itemTagRepository.replaceTagIds(testItemId, tagIds.drop(1))
+            // then
+            val itemTags = itemTagRepository.findAllByItemId(testItemId).toList()
+            assertThat(itemTags.map { it.tagId }).containsExactlyInAnyOrderElementsOf(tagIds.drop(1))
+        }
+    }
 
+}
@@ -0,0 +1,84 @@
+package org.taskmanager.task.repository
+
+import kotlinx.coroutines.flow.toList
+import kotlinx.coroutines.runBlocking
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.Test
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.test.annotation.DirtiesContext
+import org.taskmanager.task.IntegrationTest
+import org.taskmanager.task.model.ItemTombstone
+import java.time.LocalDateTime
+
+
+@IntegrationTest
+@DirtiesContext
+class ItemTombstoneRepositoryIntegrationTest(
+    @Autowired val itemTombstoneRepository: ItemTombstoneRepository,
+    @Autowired val itemRepository: ItemRepository
+) {
+
+    @Test
+    fun `test insertForAssigneeId creates a tombstone for each item of the assignee`() {
+        runBlocking {
+            // setup
+            val testAssigneeId = 3L
+            val itemIds = itemRepository.findByAssigneeId(testAssigneeId).toList().map { it.id }
+            assertThat(itemIds).isNotEmpty
+            val deletedDate = LocalDateTime.of(2000, 1, 1, 0, 0)
+            // when
+            val nTombstones = itemTombstoneRepository.insertForAssigneeId(testAssigneeId, deletedDate)
+            // then
+            assertThat(nTombstones).isEqualTo(itemIds.size)
+            val tombstones = itemTombstoneRepository.findChangesAfter(deletedDate.minusDays(1), 0, deletedDate.plusDays(1), 100).toList()
+                .filter { it.deletedDate == deletedDate }
+            assertThat(tombstones.map { it.itemId }).containsExactlyInAnyOrderElementsOf(itemIds)
+        }
+    }
+
+    @Test
+    fun `test findChangesAfter excludes the tombstones from the until date on`() {
+        runBlocking {
+            // setup
+            val testAssigneeId = 3L
+            val deletedDate = LocalDateTime.of(2001, 1, 1, 0, 0)
+            val nTombstones = itemTombstoneRepository.insertForAssigneeId(testAssigneeId, deletedDate.minusSeconds(1))
+            itemTombstoneRepository.insertForAssigneeId(testAssigneeId, deletedDate)
+            // when
+            val tombstones = itemTombstoneRepository.findChangesAfter(deletedDate.minusDays(1), 0, deletedDate, 100).toList()
+            // then
+            assertThat(tombstones).hasSize(nTombstones)
+            assertThat(tombstones).allMatch { it.deletedDate == deletedDate.minusSeconds(1) }
+        }
+    }
+
+    @Test
+    fun `test deleteByDeletedDateBefore removes only the older tombstones`() {
+        runBlocking {
+            // setup
+            val testAssigneeId = 3L
+            val deletedDate = LocalDateTime.of(1999, 1, 1, 0, 0)
+            val nTombstones = itemTombstoneRepository.insertForAssigneeId(testAssigneeId, deletedDate.minusDays(1))
+            itemTombstoneRepository.insertForAssigneeId(testAssigneeId, deletedDate)
+            // when
+            val nRemoved = itemTombstoneRepository.deleteByDeletedDateBefore(deletedDate)
+            // then
+            assertThat(nRemoved).isEqualTo(nTombstones)
+            val tombstones = itemTombstoneRepository.findChangesAfter(deletedDate.minusDays(2), 0, deletedDate.plusDays(1), 100)
+                .toList()
+            assertThat(tombstones).hasSize(nTombstones).allMatch { it.deletedDate == deletedDate }
+        }
+    }
+
+    @Test
+    fun `test save sets the deletedDate`() {
+        runBlocking {
+            // when
+            val tombstone = itemTombstoneRepository.save(ItemTombstone(itemId = 1))
+            // then
+            assertThat(tombstone.id).isNotNull
+            assertThat(tombstone.deletedDate).isNotNull
+        }
+    }
+
+}
@@ -73,5 +73,16 @@ class TagRepositoryIntegrationTest(@Autowired val tagRepository: TagRepository)
             assertThat(tags.size).isGreaterThanOrEqualTo(2)
         }
     }
-}
 
+    @Test
+    fun `test findItemTagViewsByItemIds`() {
+        runBlocking {
+            // when
+            val itemTagViews = tagRepository.findItemTagViewsByItemIds(listOf(1, 2)).toList()
+            // then
+            assertThat(itemTagViews.map { it.itemId }.toSet()).containsExactlyInAnyOrder(1, 2)
+            assertThat(itemTagViews.filter { it.itemId == 1L }.map { it.name }).isEqualTo(listOf("Private", "Vacation"))
+            assertThat(itemTagViews.map { it.name }).isSorted
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package org.taskmanager.task.service
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import kotlinx.coroutines.runBlocking
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.Test
+import org.taskmanager.task.model.Tag
+
+class BoundedCacheTest {
+
+    private val meterRegistry = SimpleMeterRegistry()
+
+    @Test
+    fun `test a value loaded before the eviction of its key is not cached`() {
+        runBlocking {
+            // setup
+            val cache = BoundedCache<Long, String>("test", 10, meterRegistry)
+            // when
+            val loaded = cache.getAll(listOf(1L, 2L)) { keys ->
+                // a concurrent commit evicts the first key while the load is running
+                cache.evict(1L)
+                keys.associateWith { "stale $it" }
+            }
+            // then
+            assertThat(loaded).containsEntry(1L, "stale 1").containsEntry(2L, "stale 2")
+            val reloaded = cache.getAll(listOf(1L, 2L)) { keys -> keys.associateWith { "fresh $it" } }
+            assertThat(reloaded).containsEntry(1L, "fresh 1").containsEntry(2L, "stale 2")
+        }
+    }
+
+    @Test
+    fun `test a value loaded before all keys have been evicted is not cached`() {
+        runBlocking {
+            // setup
+            val cache = BoundedCache<Long, String>("test", 10, meterRegistry)
+            // when
+            cache.getAll(listOf(1L)) { keys ->
+                cache.clear()
+                keys.associateWith { "stale $it" }
+            }
+            // then
+            val reloaded = cache.getAll(listOf(1L)) { keys -> keys.associateWith { "fresh $it" } }
+            assertThat(reloaded).containsEntry(1L, "fresh 1")
+        }
+    }
+
+    @Test
+    fun `test mutable values are cached and handed out as copies`() {
+        runBlocking {
+            // setup
+            val cache = BoundedCache<Long, Tag>("test", 10, meterRegistry) { it.copy() }
+            val loaded = cache.getAll(listOf(1L)) { mapOf(1L to Tag(id = 1, name = "Work")) }
+            // when
+            loaded.getValue(1L).name = "changed by the caller"
+            cache.getAll(listOf(1L)) { mapOf() }.getValue(1L).name = "changed again"
+            // then
+            assertThat(cache.getAll(listOf(1L)) { mapOf() }.getValue(1L).name).isEqualTo("Work")
+        }
+    }
+
+}
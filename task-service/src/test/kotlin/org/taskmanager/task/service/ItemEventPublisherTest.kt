@@ -0,0 +1,90 @@
+package org.taskmanager.task.service
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import kotlinx.coroutines.runBlocking
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.Test
+import org.taskmanager.task.api.dto.ItemDto
+import org.taskmanager.task.api.dto.ItemEventDto
+import org.taskmanager.task.model.ItemEventType
+import reactor.test.StepVerifier
+import java.time.Duration
+
+class ItemEventPublisherTest {
+
+    private val meterRegistry = SimpleMeterRegistry()
+
+    @Test
+    fun `test events are replayed after the last event id and continue live`() {
+        // setup
+        val publisher = ItemEventPublisher(meterRegistry, bufferSize = 16, replaySize = 3)
+        val eventIds = publishCreated(publisher, 1L..5L)
+        // when / then
+        StepVerifier.create(publisher.events(lastEventId = eventIds[2]).map(ItemEventDto::itemId))
+            .expectNext(4, 5)
+            .then { runBlocking { publisher.publishDeleted(listOf(6)) } }
+            .assertNext { assertThat(it).isEqualTo(6) }
+            .thenCancel()
+            .verify(Duration.ofSeconds(5))
+    }
+
+    @Test
+    fun `test a reset precedes the replay when the last event id is no longer in the ring`() {
+        // setup
+        val publisher = ItemEventPublisher(meterRegistry, bufferSize = 16, replaySize = 3)
+        val eventIds = publishCreated(publisher, 1L..5L)
+        // when / then
+        StepVerifier.create(publisher.events(lastEventId = eventIds[0]))
+            .assertNext {
+                assertThat(it.type).isEqualTo(ItemEventType.RESET)
+                assertThat(it.itemId).isNull()
+                // resuming after the reset replays the whole ring
+                assertThat(it.id).isEqualTo(eventIds[1])
+            }
+            .assertNext { assertThat(it.id).isEqualTo(eventIds[2]) }
+            .expectNextCount(2)
+            .thenCancel()
+            .verify(Duration.ofSeconds(5))
+    }
+
+    @Test
+    fun `test nothing is replayed for the event ids of other instances`() {
+        // setup
+        val publisher = ItemEventPublisher(meterRegistry, bufferSize = 16, replaySize = 3)
+        val otherPublisher = ItemEventPublisher(meterRegistry, bufferSize = 16, replaySize = 3)
+        publishCreated(publisher, 1L..2L)
+        val otherEventId = publishCreated(otherPublisher, 1L..1L).single()
+        // when / then
+        listOf(otherEventId.replaceBefore('-', "other"), "1", "unknown").forEach { lastEventId ->
+            StepVerifier.create(publisher.events(lastEventId).map(ItemEventDto::itemId))
+                .then { runBlocking { publisher.publishDeleted(listOf(3)) } }
+                .expectNext(3)
+                .thenCancel()
+                .verify(Duration.ofSeconds(5))
+        }
+    }
+
+    @Test
+    fun `test slow subscribers lose the oldest events`() {
+        // setup
+        val publisher = ItemEventPublisher(meterRegistry, bufferSize = 2, replaySize = 10)
+        // when / then
+        StepVerifier.create(publisher.events().map(ItemEventDto::itemId), 0)
+            .then { runBlocking { publisher.publishDeleted((1L..5L).toList()) } }
+            .thenRequest(2)
+            .expectNext(4, 5)
+            .thenCancel()
+            .verify(Duration.ofSeconds(5))
+        assertThat(meterRegistry.counter("item.events.dropped").count()).isEqualTo(3.0)
+    }
+
+    private fun publishCreated(publisher: ItemEventPublisher, itemIds: LongRange): List<String> {
+        val eventIds = mutableListOf<String>()
+        val subscription = publisher.events().subscribe { eventIds.add(it.id!!) }
+        runBlocking {
+            itemIds.forEach { publisher.publish(ItemEventType.CREATED, listOf(ItemDto(id = it))) }
+        }
+        subscription.dispose()
+        return eventIds
+    }
+}
@@ -2,6 +2,7 @@ package org.taskmanager.task.service
 
 import kotlinx.coroutines.runBlocking
 import org.assertj.core.api.Assertions.assertThat
+import org.assertj.core.api.Assertions.assertThatThrownBy
 import org.junit.jupiter.api.Test
 import org.springframework.beans.factory.annotation.Autowired
 import org.springframework.data.domain.PageRequest
@@ -10,11 +11,33 @@ import org.springframework.data.domain.Sort.Order
 import org.springframework.test.annotation.DirtiesContext
 import org.taskmanager.task.IntegrationTest
 import org.taskmanager.task.api.dto.ItemCreateDto
+import org.taskmanager.task.api.dto.ItemDto
+import org.taskmanager.task.api.dto.ItemFilterDto
+import org.taskmanager.task.api.dto.ItemPatchDto
+import org.taskmanager.task.api.dto.ItemUpdateDto
+import org.taskmanager.task.api.dto.TagCreateDto
+import org.taskmanager.task.api.dto.TotalCountMode
+import org.taskmanager.task.exception.BatchSizeExceededException
+import org.taskmanager.task.exception.ExpiredCursorException
+import org.taskmanager.task.exception.InvalidCursorException
+import org.taskmanager.task.exception.ItemNotFoundException
+import org.taskmanager.task.exception.UnexpectedItemVersionException
+import org.taskmanager.task.model.ItemField
+import org.taskmanager.task.model.ItemFilter
+import org.taskmanager.task.model.ItemStatus
+import org.taskmanager.task.model.TagMatch
+import org.taskmanager.task.repository.ItemRepository
+import java.time.LocalDateTime
+import java.util.*
 
 
 @IntegrationTest
 @DirtiesContext
-class ItemServiceIntegrationTest(@Autowired val itemService: ItemService) {
+class ItemServiceIntegrationTest(
+    @Autowired val itemService: ItemService,
+    @Autowired val tagService: TagService,
+    @Autowired val itemRepository: ItemRepository
+) {
 
     @Test
     fun `test findAllBy pageable returns page of items`() {
@@ -60,5 +83,272 @@ class ItemServiceIntegrationTest(@Autowired val itemService: ItemService) {
             assertThat(savedTestItemCreateResource.lastModifiedDate).isNotNull()
         }
     }
-}
 
+    @Test
+    fun `test findAllAfter pages through all items in keyset order`() {
+        runBlocking {
+            // setup
+            val sort = Sort.by(Order.by("lastModifiedDate"), Order.by("id"))
+            val expectedItems = itemService.findAllBy(PageRequest.of(0, 100, sort)).toList()
+            // when
+            val pagedItems = mutableListOf<ItemDto>()
+            var cursor: String? = null
+            do {
+                val page = itemService.findAllAfter(cursor, 2)
+                assertThat(page.content.size).isLessThanOrEqualTo(2)
+                pagedItems.addAll(page.content)
+                cursor = page.nextCursor
+            } while (cursor != null)
+            // then
+            assertThat(pagedItems).isEqualTo(expectedItems)
+        }
+    }
+
+    @Test
+    fun `test findAllAfter with invalid cursor throws InvalidCursorException`() {
+        runBlocking {
+            // when / then
+            assertThatThrownBy {
+                runBlocking {
+                    itemService.findAllAfter("invalid", 2)
+                }
+            }.isInstanceOf(InvalidCursorException::class.java)
+        }
+    }
+
+    @Test
+    fun `test createAll creates valid items and rejects invalid ones`() {
+        runBlocking {
+            // setup
+            val assigneeUserId = "00000000-0000-0000-0000-000000000002"
+            val itemCreateDtos = listOf(
+                ItemCreateDto(description = "batch item 1", assigneeUserId = assigneeUserId, tagIds = setOf(1, 2)),
+                ItemCreateDto(description = ""),
+                ItemCreateDto(description = "batch item 3", assigneeUserId = "ffffffff-ffff-ffff-ffff-ffffffffffff"),
+                ItemCreateDto(description = "batch item 4", tagIds = setOf(-1)),
+                ItemCreateDto(description = "batch item 5")
+            )
+            // when
+            val results = itemService.createAll(itemCreateDtos)
+            // then
+            assertThat(results.map { it.index }).isEqualTo(listOf(0, 1, 2, 3, 4))
+            assertThat(results.map { it.error }).isEqualTo(
+                listOf(
+                    null,
+                    "description [] must not be blank",
+                    "User [ffffffff-ffff-ffff-ffff-ffffffffffff] was not found",
+                    "Tag [-1] was not found",
+                    null
+                )
+            )
+            val firstItem = results[0].item!!
+            assertThat(firstItem.id).isNotNull
+            assertThat(firstItem.version).isNotNull
+            assertThat(firstItem.description).isEqualTo("batch item 1")
+            assertThat(firstItem.assignee?.userId).isEqualTo(assigneeUserId)
+            assertThat(firstItem.tags?.map { it.id }).containsExactlyInAnyOrder(1, 2)
+            assertThat(itemService.getById(firstItem.id!!, null, true)).isEqualTo(firstItem)
+            val lastItem = results[4].item!!
+            assertThat(lastItem.id).isNotEqualTo(firstItem.id)
+            assertThat(lastItem.assignee).isNull()
+            assertThat(lastItem.tags).isEmpty()
+            assertThat(results.filter { it.error != null }.map { it.item }).containsOnlyNulls()
+        }
+    }
+
+    @Test
+    fun `test createAll rejects batches that are too large`() {
+        runBlocking {
+            // setup
+            val itemCreateDtos = (0..1000).map { ItemCreateDto(description = "item $it") }
+            // when / then
+            assertThatThrownBy {
+                runBlocking {
+                    itemService.createAll(itemCreateDtos)
+                }
+            }.isInstanceOf(BatchSizeExceededException::class.java)
+        }
+    }
+
+    @Test
+    fun `test update Item replaces its tags`() {
+        runBlocking {
+            // setup
+            val savedItem = itemService.create(ItemCreateDto(description = "test update tags", tagIds = setOf(1, 2, 3)))
+            val itemUpdateDto = ItemUpdateDto(description = "test update tags", status = ItemStatus.TODO, tagIds = setOf(2, 3, 4))
+            // when
+            val updatedItem = itemService.update(savedItem.id!!, savedItem.version, itemUpdateDto)
+            // then
+            assertThat(updatedItem.tags?.map { it.id }).containsExactlyInAnyOrder(2, 3, 4)
+            // when
+            val clearedItem = itemService.update(savedItem.id!!, null, itemUpdateDto.copy(tagIds = null))
+            // then
+            assertThat(clearedItem.tags).isEmpty()
+        }
+    }
+
+    @Test
+    fun `test patch Item changes only the present properties`() {
+        runBlocking {
+            // setup
+            val assigneeUserId = "00000000-0000-0000-0000-000000000002"
+            val savedItem = itemService.create(
+                ItemCreateDto(description = "test patch", assigneeUserId = assigneeUserId, tagIds = setOf(1))
+            )
+            val itemPatchDto = ItemPatchDto(
+                description = Optional.empty(),
+                status = Optional.of(ItemStatus.DONE),
+                assigneeUserId = Optional.empty(),
+                tagIds = Optional.empty()
+            )
+            // when
+            val patchedItem = itemService.patch(savedItem.id!!, savedItem.version, itemPatchDto)
+            // then
+            assertThat(patchedItem.version).isEqualTo(savedItem.version!! + 1)
+            assertThat(patchedItem.description).isEqualTo("test patch")
+            assertThat(patchedItem.status).isEqualTo(ItemStatus.DONE)
+            assertThat(patchedItem.assignee?.userId).isEqualTo(assigneeUserId)
+            assertThat(patchedItem.tags?.map { it.id }).containsExactly(1)
+            // when / then
+            assertThatThrownBy {
+                runBlocking {
+                    itemService.patch(savedItem.id!!, savedItem.version, itemPatchDto)
+                }
+            }.isInstanceOf(UnexpectedItemVersionException::class.java)
+            assertThatThrownBy {
+                runBlocking {
+                    itemService.patch(-1, null, itemPatchDto)
+                }
+            }.isInstanceOf(ItemNotFoundException::class.java)
+        }
+    }
+
+    @Test
+    fun `test findChangesSince returns changed and deleted items after the cursor`() {
+        runBlocking {
+            // setup: synchronize all items
+            var changes = itemService.findChangesSince(null, 1000)
+            while (changes.hasMore) {
+                changes = itemService.findChangesSince(changes.nextCursor, 1000)
+            }
+            val cursor = changes.nextCursor
+            assertThat(itemService.findChangesSince(cursor, 1000).changed).isEmpty()
+            val createdItem = itemService.create(ItemCreateDto(description = "test changes created"))
+            val deletedItem = itemService.create(ItemCreateDto(description = "test changes deleted"))
+            itemService.delete(deletedItem.id!!)
+            // when
+            val newChanges = itemService.findChangesSince(cursor, 1000)
+            // then
+            assertThat(newChanges.changed.map { it.id }).containsExactly(createdItem.id)
+            assertThat(newChanges.deleted).containsExactly(deletedItem.id)
+            assertThat(newChanges.hasMore).isFalse
+            val followingChanges = itemService.findChangesSince(newChanges.nextCursor, 1000)
+            assertThat(followingChanges.changed).isEmpty()
+            assertThat(followingChanges.deleted).isEmpty()
+        }
+    }
+
+    @Test
+    fun `test findChangesSince rejects a cursor older than the tombstone retention`() {
+        runBlocking {
+            // setup
+            val expired = LocalDateTime.now().minusDays(31)
+            val cursor = KeysetCursor.encode(expired, 0L, expired, 0L)
+            // when / then
+            assertThatThrownBy {
+                runBlocking {
+                    itemService.findChangesSince(cursor, 10)
+                }
+            }.isInstanceOf(ExpiredCursorException::class.java)
+        }
+    }
+
+    @Test
+    fun `test search pages through the items containing all words`() {
+        runBlocking {
+            // setup
+            val firstItem = itemService.create(ItemCreateDto(description = "Searchable alpha one"))
+            val secondItem = itemService.create(ItemCreateDto(description = "searchable ALPHA two"))
+            itemService.create(ItemCreateDto(description = "searchable beta"))
+            // when
+            val firstPage = itemService.search(" alpha  searchable ", null, 1)
+            val secondPage = itemService.search("alpha searchable", firstPage.nextCursor, 1)
+            val lastPage = itemService.search("alpha searchable", secondPage.nextCursor, 1)
+            // then
+            assertThat((firstPage.content + secondPage.content).map { it.id })
+                .containsExactlyInAnyOrder(firstItem.id, secondItem.id)
+            assertThat(lastPage.content).isEmpty()
+            assertThat(lastPage.nextCursor).isNull()
+            assertThat(itemService.search("alpha%", null, 10).content).isEmpty()
+            // whole words only, like the full-text search of PostgreSQL
+            assertThat(itemService.search("alph searchable", null, 10).content).isEmpty()
+            assertThat(itemService.search(" ", null, 10).content).isEmpty()
+        }
+    }
+
+    @Test
+    fun `test findAllBy filter returns the matching items`() {
+        runBlocking {
+            // setup
+            val tagId = tagService.create(TagCreateDto("Filter")).id!!
+            val assigneeUserId = "00000000-0000-0000-0000-000000000001"
+            val bothTagsItem = itemService.create(
+                ItemCreateDto(description = "filter both tags", assigneeUserId = assigneeUserId, tagIds = setOf(tagId, 1))
+            )
+            val filterTagItem = itemService.create(ItemCreateDto(description = "filter tag", tagIds = setOf(tagId)))
+            itemService.patch(
+                filterTagItem.id!!, null,
+                ItemPatchDto(Optional.empty(), Optional.of(ItemStatus.DONE), Optional.empty(), Optional.empty())
+            )
+            val pageable = PageRequest.of(0, 100, Sort.by("id"))
+            // when / then
+            fun ids(itemFilterDto: ItemFilterDto) = runBlocking {
+                itemService.findAllBy(itemFilterDto, pageable).content.map { it.id }
+            }
+            assertThat(ids(ItemFilterDto(tagIds = setOf(tagId)))).containsExactly(bothTagsItem.id, filterTagItem.id)
+            assertThat(ids(ItemFilterDto(tagIds = setOf(tagId, 1), tagMatch = TagMatch.ALL)))
+                .containsExactly(bothTagsItem.id)
+            assertThat(ids(ItemFilterDto(statuses = setOf(ItemStatus.DONE), tagIds = setOf(tagId))))
+                .containsExactly(filterTagItem.id)
+            assertThat(ids(ItemFilterDto(assigneeUserId = assigneeUserId, tagIds = setOf(tagId))))
+                .containsExactly(bothTagsItem.id)
+            assertThat(ids(ItemFilterDto(assigneeUserId = "ffffffff-ffff-ffff-ffff-ffffffffffff"))).isEmpty()
+            // the created item carries the date as stored
+            assertThat(itemService.getById(bothTagsItem.id!!).createdDate).isEqualTo(bothTagsItem.createdDate)
+            assertThat(ids(ItemFilterDto(tagIds = setOf(tagId), createdTo = bothTagsItem.createdDate))).isEmpty()
+            val page = itemService.findAllBy(ItemFilterDto(tagIds = setOf(tagId)), PageRequest.of(1, 1, Sort.by("id")))
+            assertThat(page.content.map { it.id }).containsExactly(filterTagItem.id)
+            assertThat(page.totalElements).isEqualTo(2)
+            assertThat(page.totalElementsMode).isEqualTo(TotalCountMode.EXACT)
+        }
+    }
+
+    @Test
+    fun `test findAllWithRelations returns the same page as findAllBy`() {
+        runBlocking {
+            // setup
+            val pageable = PageRequest.of(0, 100, Sort.by(Order.by("lastModifiedDate"), Order.by("description")))
+            val expectedItems = itemService.findAllBy(pageable).content
+            // when
+            val items = itemRepository.findAllWithRelations(ItemFilter(), pageable)
+            // then
+            assertThat(items).isEqualTo(expectedItems)
+            assertThat(items.flatMap { it.tags ?: listOf() }).isNotEmpty
+            assertThat(items.mapNotNull { it.assignee }).isNotEmpty
+        }
+    }
+
+    @Test
+    fun `test findAllBy fields returns only the selected fields and relations`() {
+        runBlocking {
+            // setup
+            val pageable = PageRequest.of(0, 100, Sort.by("id"))
+            val expectedItems = itemService.findAllBy(ItemFilterDto(), pageable).content
+            // when
+            val items = itemService.findAllBy(ItemFilterDto(), pageable, setOf(ItemField.ID, ItemField.STATUS, ItemField.TAGS))
+            // then
+            assertThat(items.totalElements).isEqualTo(expectedItems.size.toLong())
+            assertThat(items.content).isEqualTo(expectedItems.map { ItemDto(id = it.id, status = it.status, tags = it.tags) })
+        }
+    }
+}
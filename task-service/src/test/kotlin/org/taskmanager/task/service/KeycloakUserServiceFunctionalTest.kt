@@ -1,10 +1,10 @@
 package org.taskmanager.task.service
 
 import kotlinx.coroutines.runBlocking
-import org.assertj.core.api.Assertions
 import org.assertj.core.api.Assertions.assertThat
 import org.junit.jupiter.api.Disabled
 import org.junit.jupiter.api.Test
+import org.keycloak.OAuth2Constants.CLIENT_CREDENTIALS
 import org.keycloak.OAuth2Constants.PASSWORD
 import org.keycloak.TokenVerifier
 import org.keycloak.admin.client.Keycloak
@@ -13,7 +13,6 @@ import org.keycloak.representations.AccessToken
 import org.springframework.beans.factory.annotation.Autowired
 import org.springframework.beans.factory.annotation.Value
 import org.taskmanager.task.IntegrationTest
-import javax.ws.rs.NotFoundException
 
 /**
  * This test requires a working Keycloak instance
@@ -23,7 +22,8 @@ import javax.ws.rs.NotFoundException
 class KeycloakUserServiceFunctionalTest(
     @Value("\${keycloak.realm}") private val realm: String,
     @Value("\${keycloak.auth-server-url}") private val authUrl: String,
-    @Autowired private val keycloak: Keycloak,
+    @Value("\${keycloak.resource}") private val clientId: String,
+    @Value("\${keycloak.credentials.secret}") private val secretKey: String,
     @Autowired private val keycloakUserService: KeycloakUserService
 ) {
 
@@ -42,7 +42,7 @@ class KeycloakUserServiceFunctionalTest(
             assertThat(userId).isNotBlank
             assertThat(userId).matches("^[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}\$")
             // when: find user
-            val createdUserRepresentation = keycloakUserService.findById(userId)
+            val createdUserRepresentation = keycloakUserService.findById(userId)!!
             // then
             assertThat(createdUserRepresentation.username).isEqualTo(email)
             assertThat(createdUserRepresentation.email).isEqualTo(email)
@@ -51,13 +51,13 @@ class KeycloakUserServiceFunctionalTest(
             // when: assign to group
             keycloakUserService.assignToGroup(userId, "task-manager-users")
             // then
-            val groupRepresentations = keycloak.realm(realm).users().get(userId).groups()
+            val groupRepresentations = adminKeycloak().realm(realm).users().get(userId).groups()
             assertThat(groupRepresentations.size).isEqualTo(1)
             // when: update email
             val updatedEmail = "roger.donald@test.com"
             keycloakUserService.update(userId, updatedEmail, null, null, null)
             // then
-            val userWithUpdatedEmail = keycloak.realm(realm).users().get(userId).toRepresentation()
+            val userWithUpdatedEmail = adminKeycloak().realm(realm).users().get(userId).toRepresentation()
             assertThat(userWithUpdatedEmail.username).isEqualTo("roger.donald@test.com")
             assertThat(userWithUpdatedEmail.email).isEqualTo("roger.donald@test.com")
             assertThat(userWithUpdatedEmail.firstName).isEqualTo("Roger")
@@ -79,13 +79,21 @@ class KeycloakUserServiceFunctionalTest(
             // when: delete user
             keycloakUserService.delete(userId)
             // then
-            Assertions.assertThatThrownBy {
-                keycloakUserService.findById(userId)
-            }.isInstanceOf(NotFoundException::class.java)
+            assertThat(keycloakUserService.findById(userId)).isNull()
 
         }
     }
 
+    private fun adminKeycloak(): Keycloak {
+        return KeycloakBuilder.builder()
+            .grantType(CLIENT_CREDENTIALS)
+            .serverUrl(authUrl)
+            .realm(realm)
+            .clientId(clientId)
+            .clientSecret(secretKey)
+            .build()
+    }
+
     private fun login(username: String, password: String): String {
         val loginKeycloak = KeycloakBuilder.builder()
             .grantType(PASSWORD)
@@ -1,5 +1,6 @@
 package org.taskmanager.task.service
 
+import kotlinx.coroutines.runBlocking
 import org.assertj.core.api.Assertions.assertThat
 import org.junit.jupiter.api.BeforeAll
 import org.junit.jupiter.api.Test
@@ -28,7 +29,7 @@ class KeycloakUserServiceIntegrationTest(
     @Test
     fun `test findAll`() {
         // when
-        val userRepresentations = keycloakUserService.findAll()
+        val userRepresentations = runBlocking { keycloakUserService.findAll() }
         // then
         assertThat(userRepresentations).isNotEmpty
     }
@@ -38,7 +39,7 @@ class KeycloakUserServiceIntegrationTest(
         // setup
         val username = "vince.power@test.org"
         // when
-        val userRepresentations = keycloakUserService.findByUsername(username)
+        val userRepresentations = runBlocking { keycloakUserService.findByUsername(username) }
         // then
         assertThat(userRepresentations).hasSize(1)
     }
@@ -48,9 +49,17 @@ class KeycloakUserServiceIntegrationTest(
         // setup
         val userId = "00000000-0000-0000-0000-000000000004"
         // when
-        val userRepresentation = keycloakUserService.findById(userId)
+        val userRepresentation = runBlocking { keycloakUserService.findById(userId) }
         // then
-        assertThat(userRepresentation.id).isEqualTo(userId)
+        assertThat(userRepresentation!!.id).isEqualTo(userId)
+    }
+
+    @Test
+    fun `test findById returns null for a missing user`() {
+        // when
+        val userRepresentation = runBlocking { keycloakUserService.findById("00000000-0000-0000-0000-000000000099") }
+        // then
+        assertThat(userRepresentation).isNull()
     }
 
     @Test
@@ -61,7 +70,7 @@ class KeycloakUserServiceIntegrationTest(
         fakeKeycloakUserStore.groupUsers.remove(userId)
         assertThat(fakeKeycloakUserStore.groupUsers).doesNotContain(userId)
         // when
-        keycloakUserService.assignToGroup(userId, groupName)
+        runBlocking { keycloakUserService.assignToGroup(userId, groupName) }
         // then
         assertThat(fakeKeycloakUserStore.groupUsers).contains(userId)
     }
@@ -75,7 +84,7 @@ class KeycloakUserServiceIntegrationTest(
         val lastName = "Wagner"
 
         // when
-        val userId = keycloakUserService.create(email, password, firstName, lastName)
+        val userId = runBlocking { keycloakUserService.create(email, password, firstName, lastName) }
         // then
         assertThat(userId).matches("^[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}\$")
         val fakeKeycloakUser = fakeKeycloakUserStore.users.values.find { it.username == email }
@@ -102,7 +111,7 @@ class KeycloakUserServiceIntegrationTest(
         val originalFirstName = fakeKeycloakUser!!.firstName
         val originalPassword = fakeKeycloakUser.password
         // when
-        keycloakUserService.update(userId, email, null, null, lastName)
+        runBlocking { keycloakUserService.update(userId, email, null, null, lastName) }
         // then
         assertThat(fakeKeycloakUser.userId).isEqualTo(userId)
         assertThat(fakeKeycloakUser.username).isEqualTo(email)
@@ -119,7 +128,7 @@ class KeycloakUserServiceIntegrationTest(
         val userId = "00000000-0000-0000-0000-000000000002"
         assertThat(fakeKeycloakUserStore.users).containsKey(userId)
         // when
-        keycloakUserService.delete(userId)
+        runBlocking { keycloakUserService.delete(userId) }
         // then
         assertThat(fakeKeycloakUserStore.users).doesNotContainKey(userId)
     }
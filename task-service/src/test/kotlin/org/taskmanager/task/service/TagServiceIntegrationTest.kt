@@ -1,5 +1,6 @@
 package org.taskmanager.task.service
 
+import io.micrometer.core.instrument.MeterRegistry
 import kotlinx.coroutines.runBlocking
 import org.assertj.core.api.Assertions.assertThat
 import org.assertj.core.api.Assertions.assertThatThrownBy
@@ -15,11 +16,20 @@ import org.taskmanager.task.api.dto.TagDto
 import org.taskmanager.task.api.dto.TagUpdateDto
 import org.taskmanager.task.exception.TagNotFoundException
 import org.taskmanager.task.exception.UnexpectedTagVersionException
+import org.taskmanager.task.model.CacheInvalidation
+import org.taskmanager.task.model.CachedEntityType
+import org.taskmanager.task.repository.TagRepository
+import java.time.LocalDateTime
 
 
 @IntegrationTest
 @DirtiesContext
-class TagServiceIntegrationTest(@Autowired val tagService: TagService) {
+class TagServiceIntegrationTest(
+    @Autowired val tagService: TagService,
+    @Autowired val tagRepository: TagRepository,
+    @Autowired val cacheInvalidationBus: CacheInvalidationBus,
+    @Autowired val meterRegistry: MeterRegistry
+) {
 
     @Test
     fun `test findAllBy pageable returns page of tags`() {
@@ -118,4 +128,102 @@ class TagServiceIntegrationTest(@Autowired val tagService: TagService) {
             }.isInstanceOf(TagNotFoundException::class.java)
         }
     }
+
+    @Test
+    fun `test findAllAfter pages through all tags in keyset order`() {
+        runBlocking {
+            // setup
+            val expectedTags = tagService.findAllBy(PageRequest.of(0, 100, Sort.by("name", "id"))).toList()
+            // when
+            val pagedTags = mutableListOf<TagDto>()
+            var cursor: String? = null
+            do {
+                val page = tagService.findAllAfter(cursor, 3)
+                pagedTags.addAll(page.content)
+                cursor = page.nextCursor
+            } while (cursor != null)
+            // then
+            assertThat(pagedTags).isEqualTo(expectedTags)
+        }
+    }
+
+    @Test
+    fun `test update tag increments the version and rejects a stale version`() {
+        runBlocking {
+            // setup
+            val createdTag = tagService.create(TagCreateDto("Holiday"))
+            // when
+            val updatedTag = tagService.update(createdTag.id!!, createdTag.version, TagUpdateDto("Vacation"))
+            // then
+            assertThat(updatedTag.version).isEqualTo(createdTag.version!! + 1)
+            assertThat(updatedTag.createdDate).isEqualToIgnoringNanos(createdTag.createdDate)
+            assertThatThrownBy {
+                runBlocking {
+                    tagService.update(createdTag.id!!, createdTag.version, TagUpdateDto("Leave"))
+                }
+            }.isInstanceOf(UnexpectedTagVersionException::class.java)
+            assertThat(tagService.getById(createdTag.id!!).name).isEqualTo("Vacation")
+        }
+    }
+
+    @Test
+    fun `test update of missing tag throws TagNotFoundException`() {
+        runBlocking {
+            // when / then
+            assertThatThrownBy {
+                runBlocking {
+                    tagService.update(-1, 0, TagUpdateDto("Missing"))
+                }
+            }.isInstanceOf(TagNotFoundException::class.java)
+        }
+    }
+
+    @Test
+    fun `test findTagsByItemIds serves repeated reads from the cache`() {
+        runBlocking {
+            // setup
+            val testItemId = 2L
+            val expectedTags = tagService.findTagsByItemIds(listOf(testItemId))[testItemId]!!
+            val hitsBefore = cacheHits("item-tag-ids")
+            // when
+            val tags = tagService.findTagsByItemIds(listOf(testItemId))[testItemId]!!
+            // then
+            assertThat(tags).isEqualTo(expectedTags)
+            assertThat(tags.map { it.name }).isSorted
+            assertThat(cacheHits("item-tag-ids")).isEqualTo(hitsBefore + 1)
+        }
+    }
+
+    @Test
+    fun `test update tag evicts the cached tag`() {
+        runBlocking {
+            // setup
+            val testItemId = 1L
+            val tag = tagService.findTagsByItemIds(listOf(testItemId))[testItemId]!!.first()
+            // when
+            tagService.update(tag.id!!, null, TagUpdateDto("Renamed"))
+            // then
+            val tags = tagService.findTagsByItemIds(listOf(testItemId))[testItemId]!!
+            assertThat(tags.first { it.id == tag.id }.name).isEqualTo("Renamed")
+        }
+    }
+
+    @Test
+    fun `test invalidation from another replica evicts the cached tag`() {
+        runBlocking {
+            // setup: cache a tag and change its row behind the back of the service like another replica would
+            val tag = tagService.create(TagCreateDto("Before invalidation"))
+            tagService.findAllByIds(listOf(tag.id!!))
+            tagRepository.updateIfVersionMatches(tag.id!!, null, "After invalidation", LocalDateTime.now())
+            assertThat(tagService.findAllByIds(listOf(tag.id!!))[tag.id]!!.name).isEqualTo("Before invalidation")
+            // when
+            cacheInvalidationBus.publish(listOf(CacheInvalidation(CachedEntityType.TAG, tag.id.toString())))
+            // then
+            assertThat(tagService.findAllByIds(listOf(tag.id!!))[tag.id]!!.name).isEqualTo("After invalidation")
+        }
+    }
+
+    private fun cacheHits(cache: String): Double {
+        return meterRegistry.get("cache.gets").tag("cache", cache).tag("result", "hit").counter().count()
+    }
 }
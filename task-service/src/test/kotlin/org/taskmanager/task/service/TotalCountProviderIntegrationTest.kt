@@ -0,0 +1,91 @@
+package org.taskmanager.task.service
+
+import kotlinx.coroutines.runBlocking
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.Test
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.r2dbc.core.DatabaseClient
+import org.springframework.test.annotation.DirtiesContext
+import org.taskmanager.task.IntegrationTest
+import org.taskmanager.task.api.dto.TotalCountMode
+import org.taskmanager.task.repository.TagRepository
+import java.time.Duration
+
+
+@IntegrationTest
+@DirtiesContext
+class TotalCountProviderIntegrationTest(
+    @Autowired val databaseClient: DatabaseClient,
+    @Autowired val tagRepository: TagRepository
+) {
+
+    @Test
+    fun `test exact mode counts on every call`() {
+        runBlocking {
+            // setup
+            val totalCountProvider = TotalCountProvider(databaseClient, TotalCountMode.EXACT, Duration.ofMinutes(1), 0)
+            var nCounts = 0
+            // when
+            val totalCount = totalCountProvider.count("tag") { nCounts++; tagRepository.count() }
+            totalCountProvider.count("tag") { nCounts++; tagRepository.count() }
+            // then
+            assertThat(totalCount.value).isEqualTo(tagRepository.count())
+            assertThat(totalCount.mode).isEqualTo(TotalCountMode.EXACT)
+            assertThat(nCounts).isEqualTo(2)
+        }
+    }
+
+    @Test
+    fun `test cached mode counts once until invalidated`() {
+        runBlocking {
+            // setup
+            val totalCountProvider = TotalCountProvider(databaseClient, TotalCountMode.CACHED, Duration.ofMinutes(1), 0)
+            var nCounts = 0
+            // when
+            val totalCount = totalCountProvider.count("tag") { nCounts++; 42 }
+            val cachedTotalCount = totalCountProvider.count("tag") { nCounts++; 43 }
+            // then
+            assertThat(totalCount.value).isEqualTo(42)
+            assertThat(totalCount.mode).isEqualTo(TotalCountMode.CACHED)
+            assertThat(cachedTotalCount.value).isEqualTo(42)
+            assertThat(nCounts).isEqualTo(1)
+
+            // when
+            totalCountProvider.invalidate("tag")
+            val recountedTotalCount = totalCountProvider.count("tag") { nCounts++; 43 }
+            // then
+            assertThat(recountedTotalCount.value).isEqualTo(43)
+            assertThat(nCounts).isEqualTo(2)
+        }
+    }
+
+    @Test
+    fun `test cached mode does not cache a count that started before an invalidation`() {
+        runBlocking {
+            // setup
+            val totalCountProvider = TotalCountProvider(databaseClient, TotalCountMode.CACHED, Duration.ofMinutes(1), 0)
+            // when: a row is inserted while the count is running
+            val staleTotalCount = totalCountProvider.count("tag") {
+                totalCountProvider.invalidate("tag")
+                42
+            }
+            val totalCount = totalCountProvider.count("tag") { 43 }
+            // then
+            assertThat(staleTotalCount.value).isEqualTo(42)
+            assertThat(totalCount.value).isEqualTo(43)
+        }
+    }
+
+    @Test
+    fun `test estimated mode falls back to an exact count without planner statistics`() {
+        runBlocking {
+            // setup
+            val totalCountProvider = TotalCountProvider(databaseClient, TotalCountMode.ESTIMATED, Duration.ofMinutes(1), 1)
+            // when
+            val totalCount = totalCountProvider.count("tag") { tagRepository.count() }
+            // then
+            assertThat(totalCount.value).isEqualTo(tagRepository.count())
+            assertThat(totalCount.mode).isEqualTo(TotalCountMode.EXACT)
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package org.taskmanager.task.service
+
+import kotlinx.coroutines.runBlocking
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.Test
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.test.annotation.DirtiesContext
+import org.springframework.transaction.reactive.TransactionalOperator
+import org.springframework.transaction.reactive.executeAndAwait
+import org.taskmanager.task.IntegrationTest
+
+
+@IntegrationTest
+@DirtiesContext
+class TransactionCallbacksIntegrationTest(@Autowired val transactionalOperator: TransactionalOperator) {
+
+    @Test
+    fun `test afterTransactionCompletion runs the action when the transaction has completed`() {
+        runBlocking {
+            // setup
+            var completed = false
+            // when
+            transactionalOperator.executeAndAwait {
+                afterTransactionCompletion { completed = true }
+                // then
+                assertThat(completed).isFalse
+            }
+            // then
+            assertThat(completed).isTrue
+        }
+    }
+
+    @Test
+    fun `test afterTransactionCompletion without transaction runs the action immediately`() {
+        runBlocking {
+            // setup
+            var completed = false
+            // when
+            afterTransactionCompletion { completed = true }
+            // then
+            assertThat(completed).isTrue
+        }
+    }
+
+}
@@ -15,7 +15,9 @@ import org.springframework.test.context.ContextConfiguration
 import org.taskmanager.task.IntegrationTest
 import org.taskmanager.task.api.dto.UserDto
 import org.taskmanager.task.configuration.keycloak.FakeKeycloakUserStore
+import org.taskmanager.task.configuration.keycloak.KeycloakStubServer
 import org.taskmanager.task.configuration.keycloak.KeycloakTestConfiguration
+import org.taskmanager.task.configuration.keycloak.toUserRepresentation
 import org.taskmanager.task.exception.UnexpectedUserVersionException
 import org.taskmanager.task.exception.UserNotFoundException
 import org.taskmanager.task.repository.UserRepository
@@ -28,7 +30,8 @@ import org.taskmanager.task.repository.UserRepository
 class UserServiceIntegrationTest(
     @Autowired val userService: UserService,
     @Autowired val userRepository: UserRepository,
-    @Autowired val fakeKeycloakUserStore: FakeKeycloakUserStore
+    @Autowired val fakeKeycloakUserStore: FakeKeycloakUserStore,
+    @Autowired val keycloakStubServer: KeycloakStubServer
 ) {
     @BeforeAll
     fun beforeAll() {
@@ -84,4 +87,113 @@ class UserServiceIntegrationTest(
         }
     }
 
+    @Test
+    fun `test cached users are found by id and by userId`() {
+        runBlocking {
+            // setup
+            val userId = "00000000-0000-0000-0000-000000000003"
+            val user = userService.findByUserId(userId)!!
+            // when
+            val usersById = userService.findAllByIds(listOf(user.id!!, -1))
+            // then
+            assertThat(usersById).containsOnlyKeys(user.id)
+            assertThat(usersById[user.id]).isEqualTo(user)
+            assertThat(userService.findAllByUserIds(listOf(userId))).isEqualTo(mapOf(userId to user))
+            assertThat(userService.findByUserId("ffffffff-ffff-ffff-ffff-ffffffffffff")).isNull()
+        }
+    }
+
+    @Test
+    fun `test synchronizeUserFromKeycloak evicts the cached user`() {
+        runBlocking {
+            // setup
+            val userId = "00000000-0000-0000-0000-000000000004"
+            val cachedUser = userService.findByUserId(userId)!!
+            fakeKeycloakUserStore.users[userId]!!.firstName = "Vincent"
+            // when
+            userService.synchronizeUserFromKeycloak(userId)
+            // then
+            val user = userService.findByUserId(userId)!!
+            assertThat(user.firstName).isEqualTo("Vincent")
+            assertThat(user.version).isEqualTo(cachedUser.version!! + 1)
+            assertThat(userService.findAllByIds(listOf(cachedUser.id!!))[cachedUser.id]).isEqualTo(user)
+        }
+    }
+
+    @Test
+    fun `test synchronizeUsersFromKeycloak applies each user once`() {
+        runBlocking {
+            // setup
+            val userIds = listOf("00000000-0000-0000-0000-000000000003", "00000000-0000-0000-0000-000000000004")
+            val versions = userIds.associateWith { userService.findByUserId(it)!!.version!! }
+            userIds.forEach { fakeKeycloakUserStore.users[it]!!.lastName = "Synchronized" }
+            // when
+            userService.synchronizeUsersFromKeycloak(userIds + userIds)
+            // then
+            userIds.forEach {
+                val user = userService.findByUserId(it)!!
+                assertThat(user.lastName).isEqualTo("Synchronized")
+                assertThat(user.version).isEqualTo(versions[it]!! + 1)
+            }
+        }
+    }
+
+    @Test
+    fun `test synchronizeUsersFromKeycloak applies known users without fetching them`() {
+        runBlocking {
+            // setup: the fake Keycloak store still has the old state
+            val userId = "00000000-0000-0000-0000-000000000003"
+            val keycloakUser = fakeKeycloakUserStore.users[userId]!!.toUserRepresentation()
+            keycloakUser.firstName = "Known"
+            // when
+            userService.synchronizeUsersFromKeycloak(listOf(userId), mapOf(userId to keycloakUser))
+            // then
+            assertThat(userService.findByUserId(userId)!!.firstName).isEqualTo("Known")
+            assertThat(fakeKeycloakUserStore.users[userId]!!.firstName).isNotEqualTo("Known")
+        }
+    }
+
+    @Test
+    fun `test synchronizeUsersFromKeycloak changes nothing if a user cannot be fetched`() {
+        runBlocking {
+            // setup
+            val userId = "00000000-0000-0000-0000-000000000003"
+            val failingUserId = "00000000-0000-0000-0000-000000000004"
+            val lastName = userService.findByUserId(userId)!!.lastName
+            fakeKeycloakUserStore.users[userId]!!.lastName = "Not synchronized"
+            keycloakStubServer.failingUserIds.add(failingUserId)
+            try {
+                // when / then
+                assertThatThrownBy {
+                    runBlocking { userService.synchronizeUsersFromKeycloak(listOf(userId, failingUserId)) }
+                }.isInstanceOf(Exception::class.java)
+                assertThat(userService.findByUserId(userId)!!.lastName).isEqualTo(lastName)
+            } finally {
+                keycloakStubServer.failingUserIds.clear()
+                fakeKeycloakUserStore.users[userId]!!.lastName = lastName
+            }
+        }
+    }
+
+    @Test
+    fun `test synchronizeUsersFromKeycloak ignores known users older than the last synchronization`() {
+        runBlocking {
+            // setup
+            val userId = "00000000-0000-0000-0000-000000000002"
+            val laterUser = fakeKeycloakUserStore.users[userId]!!.toUserRepresentation().apply { firstName = "Later" }
+            val earlierUser = fakeKeycloakUserStore.users[userId]!!.toUserRepresentation().apply { firstName = "Earlier" }
+            userService.synchronizeUsersFromKeycloak(listOf(userId), mapOf(userId to laterUser), mapOf(userId to 2000L))
+            // when
+            userService.synchronizeUsersFromKeycloak(listOf(userId), mapOf(userId to earlierUser), mapOf(userId to 1000L))
+            // then
+            assertThat(userService.findByUserId(userId)!!.firstName).isEqualTo("Later")
+            assertThat(userService.findByUserId(userId)!!.keycloakEventTime).isEqualTo(2000L)
+            // when: the fetched state is current even for an earlier event
+            userService.synchronizeUsersFromKeycloak(listOf(userId), eventTimes = mapOf(userId to 1000L))
+            // then
+            val user = userService.findByUserId(userId)!!
+            assertThat(user.firstName).isEqualTo(fakeKeycloakUserStore.users[userId]!!.firstName)
+            assertThat(user.keycloakEventTime).isEqualTo(2000L)
+        }
+    }
 }
@@ -1,5 +1,6 @@
 -- noinspection SqlWithoutWhereForFile
 
+DELETE FROM item_tombstone;
 DELETE FROM item_tag;
 DELETE FROM tag;
 DELETE FROM item;